@@ -0,0 +1,591 @@
+package dk.dbc.holdingsitems;
+
+import dk.dbc.holdingsitems.jpa.CacheCustomizer;
+import dk.dbc.holdingsitems.jpa.CacheInvalidation;
+import dk.dbc.holdingsitems.jpa.LoanRestriction;
+import dk.dbc.holdingsitems.jpa.Status;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Complete updates of many records of an agency, applied with set based
+ * statements
+ * <p>
+ * The records are streamed into a temporary (unlogged) table using COPY, and
+ * applied by {@link #apply(String, String, CacheInvalidation)} with the same
+ * rules as a complete update of a single record:
+ * <ul>
+ * <li>issues and items are only changed if the record isn't older than them
+ * <li>unchanged records, issues and items, that are older than the record, get
+ * the record's modified (and issues complete), without being enqueued or
+ * getting a new version
+ * <li>decommissioned items are removed
+ * <li>items, that aren't mentioned, are removed if they're older than the
+ * record and not online
+ * <li>empty issues are removed
+ * <li>records, where something changed, are enqueued with a status change
+ * report like a single update
+ * </ul>
+ * If a record is in the stream more than once, the newest is used.
+ * <p>
+ * The temporary tables are dropped at commit, so only one bulk load can be
+ * made per transaction.
+ */
+public class BulkComplete implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkComplete.class);
+
+    private static final int FLUSH_CHARS = 64 * 1024;
+    private static final int COLUMNS = 21;
+
+    private static final String CREATE_STAGING =
+            "CREATE TEMPORARY TABLE bulk_complete (" +
+            " seq BIGINT NOT NULL," +
+            " line BIGINT NOT NULL," +
+            " kind CHAR(1) NOT NULL," + // R=record H=issue I=item D=decommissioned item
+            " bibliographicRecordId TEXT NOT NULL," +
+            " modified TIMESTAMP WITH TIME ZONE," +
+            " note TEXT," +
+            " issueId TEXT," +
+            " issueText TEXT," +
+            " expectedDelivery DATE," +
+            " readyForLoan INTEGER," +
+            " itemId TEXT," +
+            " status VARCHAR(64)," +
+            " branch TEXT," +
+            " branchId TEXT," +
+            " department TEXT," +
+            " location TEXT," +
+            " subLocation TEXT," +
+            " circulationRule TEXT," +
+            " accessionDate DATE," +
+            " lastLoanDate DATE," +
+            " loanRestriction VARCHAR(1)" +
+            ") ON COMMIT DROP";
+
+    private static final String[] PREPARE = {
+        "CREATE TEMPORARY TABLE bulk_record ON COMMIT DROP AS" +
+        " SELECT DISTINCT ON (bibliographicRecordId) bibliographicRecordId, line, modified, COALESCE(note, '') AS note" +
+        "  FROM bulk_complete WHERE kind = 'R'" +
+        "  ORDER BY bibliographicRecordId, modified DESC, line DESC",
+        "ALTER TABLE bulk_record ADD PRIMARY KEY (bibliographicRecordId)",
+        "CREATE TEMPORARY TABLE bulk_issue ON COMMIT DROP AS" +
+        " SELECT DISTINCT ON (c.bibliographicRecordId, c.issueId) c.bibliographicRecordId, c.issueId, r.modified, c.issueText, c.expectedDelivery, c.readyForLoan" +
+        "  FROM bulk_complete c JOIN bulk_record r ON r.bibliographicRecordId = c.bibliographicRecordId AND r.line = c.line" +
+        "  WHERE c.kind = 'H'" +
+        "  ORDER BY c.bibliographicRecordId, c.issueId, c.seq DESC",
+        "ALTER TABLE bulk_issue ADD PRIMARY KEY (bibliographicRecordId, issueId)",
+        "CREATE TEMPORARY TABLE bulk_item ON COMMIT DROP AS" +
+        " SELECT DISTINCT ON (c.bibliographicRecordId, c.issueId, c.itemId) c.kind, c.bibliographicRecordId, c.issueId, c.itemId, r.modified, c.status," +
+        "  c.branch, c.branchId, c.department, c.location, c.subLocation, c.circulationRule, c.accessionDate, c.lastLoanDate, c.loanRestriction" +
+        "  FROM bulk_complete c JOIN bulk_record r ON r.bibliographicRecordId = c.bibliographicRecordId AND r.line = c.line" +
+        "  WHERE c.kind IN ('I', 'D')" +
+        "  ORDER BY c.bibliographicRecordId, c.issueId, c.itemId, c.seq DESC",
+        "ALTER TABLE bulk_item ADD PRIMARY KEY (bibliographicRecordId, issueId, itemId)",
+        "CREATE TEMPORARY TABLE bulk_changed (" +
+        " material BOOLEAN NOT NULL," + // false = only for cache invalidation
+        " level CHAR(1) NOT NULL," + // B=record I=issue T=item
+        " bibliographicRecordId TEXT NOT NULL," +
+        " issueId TEXT," +
+        " itemId TEXT" +
+        ") ON COMMIT DROP",
+        "ANALYZE bulk_record, bulk_issue, bulk_item"
+    };
+
+    private static final String ENSURE_RECORDS =
+            "INSERT INTO bibliographicItem (agencyId, bibliographicRecordId, note, firstAccessionDate, modified, trackingId, version)" +
+            " SELECT ?, bibliographicRecordId, '', ?, ?, '', 1 FROM bulk_record" +
+            "  ORDER BY bibliographicRecordId" +
+            " ON CONFLICT DO NOTHING";
+
+    private static final String LOCK_RECORDS =
+            "SELECT COUNT(*) FROM (" +
+            " SELECT 1 FROM bibliographicItem b JOIN bulk_record r ON r.bibliographicRecordId = b.bibliographicRecordId" +
+            "  WHERE b.agencyId = ?" +
+            "  ORDER BY b.bibliographicRecordId" +
+            "  FOR UPDATE OF b" +
+            ") AS locked";
+
+    private static final String SNAPSHOT_BEFORE =
+            "CREATE TEMPORARY TABLE bulk_before ON COMMIT DROP AS" +
+            " SELECT DISTINCT ON (i.bibliographicRecordId, i.itemId) i.bibliographicRecordId, i.itemId, i.status, i.modified" +
+            "  FROM item i JOIN bulk_record r ON r.bibliographicRecordId = i.bibliographicRecordId" +
+            "  WHERE i.agencyId = ?" +
+            "  ORDER BY i.bibliographicRecordId, i.itemId, i.modified";
+
+    private static final String ISSUE_DIFFERS =
+            "(i.issueText IS DISTINCT FROM h.issueText OR i.expectedDelivery IS DISTINCT FROM h.expectedDelivery OR i.readyForLoan IS DISTINCT FROM h.readyForLoan)";
+
+    private static final String UPDATE_ISSUES =
+            "WITH changed AS (" +
+            " UPDATE issue i SET issueText = h.issueText, expectedDelivery = h.expectedDelivery, readyForLoan = h.readyForLoan," +
+            "   complete = h.modified, modified = h.modified, trackingId = ?, version = i.version + 1" +
+            "  FROM bulk_issue h" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = h.bibliographicRecordId AND i.issueId = h.issueId" +
+            "   AND i.modified <= h.modified" +
+            "   AND " + ISSUE_DIFFERS +
+            "  RETURNING i.bibliographicRecordId, i.issueId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId) SELECT TRUE, 'I', bibliographicRecordId, issueId FROM changed";
+
+    // Unchanged, but newer: only modified is moved, so older updates cannot override it
+    private static final String TOUCH_ISSUES =
+            "WITH touched AS (" +
+            " UPDATE issue i SET modified = h.modified" +
+            "  FROM bulk_issue h" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = h.bibliographicRecordId AND i.issueId = h.issueId" +
+            "   AND i.modified < h.modified AND NOT " + ISSUE_DIFFERS +
+            "  RETURNING i.bibliographicRecordId, i.issueId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId) SELECT FALSE, 'I', bibliographicRecordId, issueId FROM touched";
+
+    private static final String COMPLETE_ISSUES =
+            "WITH changed AS (" +
+            " UPDATE issue i SET complete = h.modified" +
+            "  FROM bulk_issue h" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = h.bibliographicRecordId AND i.issueId = h.issueId" +
+            "   AND i.modified <= h.modified AND i.complete IS DISTINCT FROM h.modified" +
+            "  RETURNING i.bibliographicRecordId, i.issueId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId) SELECT FALSE, 'I', bibliographicRecordId, issueId FROM changed";
+
+    private static final String CREATE_ISSUES =
+            "WITH created AS (" +
+            " INSERT INTO issue (agencyId, bibliographicRecordId, issueId, issueText, expectedDelivery, readyForLoan, complete, modified, created, updated, trackingId, version)" +
+            "  SELECT ?, h.bibliographicRecordId, h.issueId, h.issueText, h.expectedDelivery, h.readyForLoan, h.modified, h.modified, h.modified, h.modified, ?, 1" +
+            "   FROM bulk_issue h" +
+            "   WHERE EXISTS (SELECT 1 FROM bulk_item t WHERE t.bibliographicRecordId = h.bibliographicRecordId AND t.issueId = h.issueId AND t.kind = 'I')" + // Empty issues aren't kept
+            " ON CONFLICT DO NOTHING" +
+            " RETURNING bibliographicRecordId, issueId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId) SELECT TRUE, 'I', bibliographicRecordId, issueId FROM created";
+
+    private static final String DECOMMISSION_ITEMS =
+            "WITH removed AS (" +
+            " DELETE FROM item i USING bulk_item t" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = t.bibliographicRecordId AND i.issueId = t.issueId AND i.itemId = t.itemId" +
+            "   AND t.kind = 'D'" +
+            "  RETURNING i.bibliographicRecordId, i.issueId, i.itemId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId, itemId) SELECT TRUE, 'T', bibliographicRecordId, issueId, itemId FROM removed";
+
+    private static final String ITEM_DIFFERS =
+            "(i.status IS DISTINCT FROM t.status OR i.branch IS DISTINCT FROM t.branch OR i.branchId IS DISTINCT FROM t.branchId" +
+            " OR i.department IS DISTINCT FROM t.department OR i.location IS DISTINCT FROM t.location OR i.subLocation IS DISTINCT FROM t.subLocation" +
+            " OR i.circulationRule IS DISTINCT FROM t.circulationRule OR i.accessionDate IS DISTINCT FROM t.accessionDate" +
+            " OR i.lastLoanDate IS DISTINCT FROM t.lastLoanDate OR i.loanRestriction IS DISTINCT FROM t.loanRestriction)";
+
+    private static final String UPDATE_ITEMS =
+            "WITH changed AS (" +
+            " UPDATE item i SET status = t.status, branch = t.branch, branchId = t.branchId, department = t.department," +
+            "   location = t.location, subLocation = t.subLocation, circulationRule = t.circulationRule," +
+            "   accessionDate = t.accessionDate, lastLoanDate = t.lastLoanDate, loanRestriction = t.loanRestriction," +
+            "   modified = t.modified, trackingId = ?, version = i.version + 1" +
+            "  FROM bulk_item t" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = t.bibliographicRecordId AND i.issueId = t.issueId AND i.itemId = t.itemId" +
+            "   AND t.kind = 'I' AND i.modified <= t.modified AND " + ITEM_DIFFERS +
+            "  RETURNING i.bibliographicRecordId, i.issueId, i.itemId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId, itemId) SELECT TRUE, 'T', bibliographicRecordId, issueId, itemId FROM changed";
+
+    private static final String TOUCH_ITEMS =
+            "WITH touched AS (" +
+            " UPDATE item i SET modified = t.modified" +
+            "  FROM bulk_item t" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = t.bibliographicRecordId AND i.issueId = t.issueId AND i.itemId = t.itemId" +
+            "   AND t.kind = 'I' AND i.modified < t.modified AND NOT " + ITEM_DIFFERS +
+            "  RETURNING i.bibliographicRecordId, i.issueId, i.itemId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId, itemId) SELECT FALSE, 'T', bibliographicRecordId, issueId, itemId FROM touched";
+
+    private static final String CREATE_ITEMS =
+            "WITH created AS (" +
+            " INSERT INTO item (agencyId, bibliographicRecordId, issueId, itemId, status, branch, branchId, department, location, subLocation, circulationRule," +
+            "   accessionDate, lastLoanDate, loanRestriction, created, modified, trackingId, version)" +
+            "  SELECT ?, t.bibliographicRecordId, t.issueId, t.itemId, t.status, t.branch, t.branchId, t.department, t.location, t.subLocation, t.circulationRule," +
+            "    t.accessionDate, t.lastLoanDate, t.loanRestriction, clock_timestamp(), t.modified, ?, 1" +
+            "   FROM bulk_item t" +
+            "   WHERE t.kind = 'I'" +
+            " ON CONFLICT DO NOTHING" +
+            " RETURNING bibliographicRecordId, issueId, itemId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId, itemId) SELECT TRUE, 'T', bibliographicRecordId, issueId, itemId FROM created";
+
+    private static final String REMOVE_ABANDONED_ITEMS =
+            "WITH removed AS (" +
+            " DELETE FROM item i USING bulk_record r" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = r.bibliographicRecordId" +
+            "   AND i.modified < r.modified AND i.status <> 'Online'" +
+            "   AND NOT EXISTS (SELECT 1 FROM bulk_item t WHERE t.bibliographicRecordId = i.bibliographicRecordId AND t.issueId = i.issueId AND t.itemId = i.itemId)" +
+            "  RETURNING i.bibliographicRecordId, i.issueId, i.itemId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId, itemId) SELECT TRUE, 'T', bibliographicRecordId, issueId, itemId FROM removed";
+
+    private static final String REMOVE_EMPTY_ISSUES =
+            "WITH removed AS (" +
+            " DELETE FROM issue i USING bulk_record r" +
+            "  WHERE i.agencyId = ? AND i.bibliographicRecordId = r.bibliographicRecordId" +
+            "   AND NOT EXISTS (SELECT 1 FROM item t WHERE t.agencyId = i.agencyId AND t.bibliographicRecordId = i.bibliographicRecordId AND t.issueId = i.issueId)" +
+            "  RETURNING i.bibliographicRecordId, i.issueId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId, issueId) SELECT FALSE, 'I', bibliographicRecordId, issueId FROM removed";
+
+    private static final String CHANGED_NOTES =
+            "INSERT INTO bulk_changed (material, level, bibliographicRecordId)" +
+            " SELECT TRUE, 'B', r.bibliographicRecordId" +
+            "  FROM bulk_record r JOIN bibliographicItem b ON b.bibliographicRecordId = r.bibliographicRecordId" +
+            "  WHERE b.agencyId = ? AND b.modified <= r.modified AND b.note IS DISTINCT FROM r.note";
+
+    private static final String[] COLLECT_DIRTY = {
+        "CREATE TEMPORARY TABLE bulk_dirty ON COMMIT DROP AS" +
+        " SELECT DISTINCT bibliographicRecordId FROM bulk_changed WHERE material",
+        "ALTER TABLE bulk_dirty ADD PRIMARY KEY (bibliographicRecordId)",
+        "ANALYZE bulk_dirty"
+    };
+
+    private static final String UPDATE_RECORDS =
+            "WITH changed AS (" +
+            " UPDATE bibliographicItem b SET note = r.note, modified = r.modified, trackingId = ?, version = b.version + 1" +
+            "  FROM bulk_record r JOIN bulk_dirty d ON d.bibliographicRecordId = r.bibliographicRecordId" +
+            "  WHERE b.agencyId = ? AND b.bibliographicRecordId = r.bibliographicRecordId AND b.modified <= r.modified" +
+            "  RETURNING b.bibliographicRecordId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId) SELECT FALSE, 'B', bibliographicRecordId FROM changed";
+
+    private static final String TOUCH_RECORDS =
+            "WITH touched AS (" +
+            " UPDATE bibliographicItem b SET modified = r.modified" +
+            "  FROM bulk_record r" +
+            "  WHERE b.agencyId = ? AND b.bibliographicRecordId = r.bibliographicRecordId" +
+            "   AND b.modified < r.modified AND b.note IS NOT DISTINCT FROM r.note" +
+            "   AND NOT EXISTS (SELECT 1 FROM bulk_dirty d WHERE d.bibliographicRecordId = r.bibliographicRecordId)" +
+            "  RETURNING b.bibliographicRecordId" +
+            ")" +
+            " INSERT INTO bulk_changed (material, level, bibliographicRecordId) SELECT FALSE, 'B', bibliographicRecordId FROM touched";
+
+    // Same content as LibIntChanges in the update service
+    private static final String REPORT =
+            "CREATE TEMPORARY TABLE bulk_report ON COMMIT DROP AS" +
+            " WITH current_items AS (" +
+            "  SELECT DISTINCT ON (i.bibliographicRecordId, i.itemId) i.bibliographicRecordId, i.itemId, i.status, i.modified" +
+            "   FROM item i JOIN bulk_dirty d ON d.bibliographicRecordId = i.bibliographicRecordId" +
+            "   WHERE i.agencyId = ?" +
+            "   ORDER BY i.bibliographicRecordId, i.itemId, i.modified" +
+            " ), old_items AS (" +
+            "  SELECT b.* FROM bulk_before b JOIN bulk_dirty d ON d.bibliographicRecordId = b.bibliographicRecordId" +
+            " ), diff AS (" +
+            "  SELECT COALESCE(a.bibliographicRecordId, b.bibliographicRecordId) AS bibliographicRecordId, COALESCE(a.itemId, b.itemId) AS itemId," +
+            "    COALESCE(a.status, 'Decommissioned') AS newStatus, b.status AS oldStatus, a.modified" +
+            "   FROM current_items a FULL JOIN old_items b ON b.bibliographicRecordId = a.bibliographicRecordId AND b.itemId = a.itemId" +
+            "   WHERE a.status IS DISTINCT FROM b.status" +
+            " )" +
+            " SELECT d.bibliographicRecordId, CAST(json_build_object(" +
+            "   'agencyId', root.agencyId, 'bibliographicRecordId', root.bibliographicRecordId, 'trackingId', root.trackingId, 'complete', TRUE," +
+            "   'items', COALESCE(json_object_agg(diff.itemId, json_strip_nulls(json_build_object(" +
+            "     'newStatus', diff.newStatus, 'oldStatus', diff.oldStatus," +
+            "     'when', to_char(COALESCE(diff.modified, root.modified) AT TIME ZONE 'UTC', 'YYYY-MM-DD\"T\"HH24:MI:SS.MS\"Z\"')" +
+            "   ))) FILTER (WHERE diff.itemId IS NOT NULL), CAST('{}' AS JSON))" +
+            "  ) AS TEXT) AS stateChange" +
+            "  FROM bulk_dirty d" +
+            "  JOIN bibliographicItem root ON root.bibliographicRecordId = d.bibliographicRecordId" +
+            "  LEFT JOIN diff ON diff.bibliographicRecordId = d.bibliographicRecordId" +
+            "  WHERE root.agencyId = ?" +
+            "  GROUP BY d.bibliographicRecordId, root.agencyId, root.bibliographicRecordId, root.trackingId, root.modified";
+
+    private static final String ENQUEUE =
+            "INSERT INTO queue (consumer, dequeueAfter, agencyId, bibliographicRecordId, stateChange, trackingId)" +
+            " SELECT qr.consumer, clock_timestamp() + COALESCE(qr.postpone, 0) * INTERVAL '1 MILLISECONDS', ?, job.bibliographicRecordId, job.stateChange, ?" +
+            "  FROM (" +
+            "   SELECT CAST(? AS TEXT) AS supplier, r.bibliographicRecordId, r.stateChange FROM bulk_report r" +
+            "   UNION ALL" +
+            "   SELECT CAST(? AS TEXT), COALESCE(s.superseding, r.bibliographicRecordId), r.stateChange FROM bulk_report r" +
+            "    LEFT JOIN supersedes s ON s.superseded = r.bibliographicRecordId" +
+            "  ) AS job" +
+            "  JOIN queue_rules qr ON qr.supplier = job.supplier" +
+            "  ORDER BY job.bibliographicRecordId";
+
+    private static final String CHANGED_ENTITIES =
+            "SELECT DISTINCT level, bibliographicRecordId, issueId, itemId FROM bulk_changed";
+
+    private final Connection connection;
+    private final int agencyId;
+    private final String trackingId;
+    private final StringBuilder buffer;
+    private CopyIn copy;
+    private long seq;
+    private long line;
+    private long records;
+    private String bibliographicRecordId;
+
+    BulkComplete(Connection connection, int agencyId, String trackingId) throws HoldingsItemsException {
+        this.connection = connection;
+        this.agencyId = agencyId;
+        this.trackingId = trackingId;
+        this.buffer = new StringBuilder(FLUSH_CHARS + 1024);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(CREATE_STAGING);
+            this.copy = connection.unwrap(PGConnection.class).getCopyAPI()
+                    .copyIn("COPY bulk_complete FROM STDIN");
+        } catch (SQLException ex) {
+            throw new HoldingsItemsException("Error starting bulk load", ex);
+        }
+    }
+
+    /**
+     * Start a record, issues and items added belong to this record until the
+     * next record is started
+     *
+     * @param bibliographicRecordId record id
+     * @param note                  note of the record
+     * @param modified              when the record was modified
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public void record(String bibliographicRecordId, String note, Instant modified) throws HoldingsItemsException {
+        this.bibliographicRecordId = bibliographicRecordId;
+        line++;
+        row("R", modified, note);
+    }
+
+    /**
+     * Add an issue to the current record
+     *
+     * @param issueId          issue id
+     * @param issueText        issue text
+     * @param expectedDelivery when it is expected to be delivered (nullable)
+     * @param readyForLoan     number of units ready for loan
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public void issue(String issueId, String issueText, LocalDate expectedDelivery, int readyForLoan) throws HoldingsItemsException {
+        row("H", null, null, issueId, issueText, expectedDelivery, readyForLoan);
+    }
+
+    /**
+     * Add an item to the current record
+     *
+     * @param issueId         issue id (the issue should be added too)
+     * @param itemId          item id
+     * @param status          status (not online or decommissioned)
+     * @param branch          branch name
+     * @param branchId        branch id
+     * @param department      department
+     * @param location        location
+     * @param subLocation     sub location
+     * @param circulationRule circulation rule
+     * @param accessionDate   accession date
+     * @param lastLoanDate    last loan date (nullable)
+     * @param loanRestriction loan restriction
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public void item(String issueId, String itemId, Status status, String branch, String branchId, String department,
+                     String location, String subLocation, String circulationRule,
+                     LocalDate accessionDate, LocalDate lastLoanDate, LoanRestriction loanRestriction) throws HoldingsItemsException {
+        if (status == Status.ONLINE || status == Status.DECOMMISSIONED)
+            throw new IllegalArgumentException("Cannot bulk load an item with status " + status);
+        row("I", null, null, issueId, null, null, null, itemId, status,
+            branch, branchId, department, location, subLocation, circulationRule,
+            accessionDate, lastLoanDate, loanRestriction);
+    }
+
+    /**
+     * Remove an item from the current record
+     *
+     * @param issueId issue id
+     * @param itemId  item id
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public void decommission(String issueId, String itemId) throws HoldingsItemsException {
+        row("D", null, null, issueId, null, null, null, itemId);
+    }
+
+    /**
+     * Apply the records to the database, and enqueue the changed records
+     *
+     * @param originalSupplier  supplier for the records as given
+     * @param supplier          supplier for the records with supersedes
+     *                          resolved
+     * @param cacheInvalidation where to register the changed entities (if the
+     *                          shared cache is in use)
+     * @return number of records, that have been changed
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public int apply(String originalSupplier, String supplier, CacheInvalidation cacheInvalidation) throws HoldingsItemsException {
+        try {
+            flush();
+            long rows = copy.endCopy();
+            copy = null;
+            log.debug("Copied {} rows of {} records", rows, line);
+            try (Statement stmt = connection.createStatement()) {
+                for (String sql : PREPARE) {
+                    stmt.executeUpdate(sql);
+                }
+                try (ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM bulk_record")) {
+                    records = resultSet.next() ? resultSet.getLong(1) : 0L;
+                }
+            }
+            execute(ENSURE_RECORDS, agencyId, Date.valueOf(LocalDate.now()), Timestamp.from(Instant.EPOCH));
+            try (PreparedStatement stmt = connection.prepareStatement(LOCK_RECORDS)) {
+                stmt.setInt(1, agencyId);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (resultSet.next())
+                        log.debug("Locked {} records", resultSet.getLong(1));
+                }
+            }
+            execute(SNAPSHOT_BEFORE, agencyId);
+            execute(UPDATE_ISSUES, trackingId, agencyId);
+            execute(TOUCH_ISSUES, agencyId);
+            execute(COMPLETE_ISSUES, agencyId);
+            execute(CREATE_ISSUES, agencyId, trackingId);
+            execute(DECOMMISSION_ITEMS, agencyId);
+            execute(UPDATE_ITEMS, trackingId, agencyId);
+            execute(TOUCH_ITEMS, agencyId);
+            execute(CREATE_ITEMS, agencyId, trackingId);
+            execute(REMOVE_ABANDONED_ITEMS, agencyId);
+            execute(REMOVE_EMPTY_ISSUES, agencyId);
+            execute(CHANGED_NOTES, agencyId);
+            try (Statement stmt = connection.createStatement()) {
+                for (String sql : COLLECT_DIRTY) {
+                    stmt.executeUpdate(sql);
+                }
+            }
+            execute(UPDATE_RECORDS, trackingId, agencyId);
+            execute(TOUCH_RECORDS, agencyId);
+            int changed = execute(REPORT, agencyId, agencyId);
+            int enqueued = execute(ENQUEUE, agencyId, trackingId, originalSupplier, supplier);
+            log.info("Bulk complete of {} records ({} distinct) for {}: {} changed, {} jobs enqueued", line, records, agencyId, changed, enqueued);
+            if (CacheCustomizer.isEnabled())
+                registerChanged(cacheInvalidation);
+            return changed;
+        } catch (SQLException ex) {
+            throw new HoldingsItemsException("Error applying bulk load", ex);
+        }
+    }
+
+    /**
+     * Number of distinct records added, a record added multiple times is only
+     * counted once
+     *
+     * @return count, only known after {@link #apply(String, String, CacheInvalidation)}
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public void close() throws HoldingsItemsException {
+        if (copy == null || !copy.isActive())
+            return;
+        try {
+            copy.cancelCopy();
+        } catch (SQLException ex) {
+            throw new HoldingsItemsException("Error cancelling bulk load", ex);
+        } finally {
+            copy = null;
+        }
+    }
+
+    private void registerChanged(CacheInvalidation cacheInvalidation) throws SQLException {
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery(CHANGED_ENTITIES)) {
+            while (resultSet.next()) {
+                String level = resultSet.getString(1);
+                String recordId = resultSet.getString(2);
+                switch (level) {
+                    case "B":
+                        cacheInvalidation.addBibliographicItem(agencyId, recordId);
+                        break;
+                    case "I":
+                        cacheInvalidation.addIssue(agencyId, recordId, resultSet.getString(3));
+                        break;
+                    case "T":
+                        cacheInvalidation.addItem(agencyId, recordId, resultSet.getString(3), resultSet.getString(4));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown level: " + level);
+                }
+            }
+        }
+    }
+
+    private int execute(String sql, Object... parameters) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (int i = 0 ; i < parameters.length ; i++) {
+                stmt.setObject(i + 1, parameters[i]);
+            }
+            return stmt.executeUpdate();
+        }
+    }
+
+    private void row(String kind, Object... columns) throws HoldingsItemsException {
+        if (bibliographicRecordId == null)
+            throw new IllegalStateException("Issues and items has to belong to a record");
+        if (copy == null)
+            throw new IllegalStateException("Bulk load has been applied or closed");
+        buffer.append(++seq).append('\t').append(line).append('\t').append(kind).append('\t');
+        escape(bibliographicRecordId);
+        for (int i = 4 ; i < COLUMNS ; i++) {
+            buffer.append('\t');
+            Object column = i - 4 < columns.length ? columns[i - 4] : null;
+            if (column == null) {
+                buffer.append("\\N");
+            } else {
+                escape(column.toString());
+            }
+        }
+        buffer.append('\n');
+        if (buffer.length() >= FLUSH_CHARS) {
+            try {
+                flush();
+            } catch (SQLException ex) {
+                throw new HoldingsItemsException("Error writing bulk load", ex);
+            }
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (buffer.length() == 0)
+            return;
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copy.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    /**
+     * Append a value in COPY text format
+     *
+     * @param value the text
+     */
+    private void escape(String value) {
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                default:
+                    buffer.append(c);
+                    break;
+            }
+        }
+    }
+}
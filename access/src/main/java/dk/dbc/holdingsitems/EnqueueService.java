@@ -1,16 +1,17 @@
 package dk.dbc.holdingsitems;
 
 import dk.dbc.pgqueue.supplier.PreparedQueueSupplier;
+import dk.dbc.holdingsitems.QueueRules.ConsumerTarget;
 import dk.dbc.pgqueue.supplier.QueueSupplier;
 import java.sql.Connection;
-import java.sql.ResultSet;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,28 +25,76 @@ public class EnqueueService implements AutoCloseable {
 
     private static final QueueSupplier QUEUE_SUPPLIER = new QueueSupplier(QueueJob.STORAGE_ABSTRACTION);
 
+    private static final String BATCH_INSERT =
+            "INSERT INTO queue (consumer, dequeueAfter, agencyId, bibliographicRecordId, stateChange, trackingId)" +
+            " SELECT consumer, clock_timestamp() + COALESCE(postpone, 0) * INTERVAL '1 MILLISECONDS', agencyId, bibliographicRecordId, stateChange, trackingId" +
+            " FROM UNNEST(CAST(? AS TEXT[]), CAST(? AS BIGINT[]), CAST(? AS INTEGER[]), CAST(? AS TEXT[]), CAST(? AS TEXT[]), CAST(? AS TEXT[]))" +
+            "  AS job(consumer, postpone, agencyId, bibliographicRecordId, stateChange, trackingId)";
+
+    private static final String BATCH_COALESCE =
+            "WITH job AS (" +
+            "  SELECT * FROM UNNEST(CAST(? AS TEXT[]), CAST(? AS BIGINT[]), CAST(? AS INTEGER[]), CAST(? AS TEXT[]), CAST(? AS TEXT[]), CAST(? AS TEXT[]))" +
+            "   AS job(consumer, postpone, agencyId, bibliographicRecordId, stateChange, trackingId)" +
+            " ), existing AS (" +
+            "  SELECT job.*, q.ctid AS queue_ctid FROM job" +
+            "   CROSS JOIN LATERAL (" +
+            "    SELECT ctid FROM queue" +
+            "     WHERE queue.consumer = job.consumer AND queue.agencyId = job.agencyId AND queue.bibliographicRecordId = job.bibliographicRecordId" +
+            "     LIMIT 1 FOR UPDATE SKIP LOCKED" +
+            "   ) AS q" +
+            " ), merged AS (" +
+            "  UPDATE queue SET" +
+            "   trackingId = queue_merge_tracking_ids(queue.trackingId, existing.trackingId)," +
+            "   stateChange = CASE WHEN existing.stateChange = '{}' THEN queue.stateChange ELSE existing.stateChange END" +
+            "   FROM existing WHERE queue.ctid = existing.queue_ctid" +
+            "   RETURNING existing.consumer, existing.agencyId, existing.bibliographicRecordId" +
+            " )" +
+            " INSERT INTO queue (consumer, dequeueAfter, agencyId, bibliographicRecordId, stateChange, trackingId)" +
+            " SELECT consumer, clock_timestamp() + COALESCE(postpone, 0) * INTERVAL '1 MILLISECONDS', agencyId, bibliographicRecordId, stateChange, trackingId" +
+            " FROM job" +
+            " WHERE NOT EXISTS (SELECT 1 FROM merged" +
+            "  WHERE merged.consumer = job.consumer AND merged.agencyId = job.agencyId AND merged.bibliographicRecordId = job.bibliographicRecordId)";
+
+    /**
+     * Number of collected jobs, at which they are written, so a long running
+     * buffered service doesn't hold every job in memory
+     */
+    static final int MAX_PENDING = 1000;
+
+    private final Connection connection;
     private final PreparedQueueSupplier<QueueJob> queueSupplier;
     private final String trackingId;
-    private final Map<String, List<ConsumerTarget>> consumers;
+    private final QueueRules rules;
+    private final List<PendingJob> pending;
+    private final Map<PendingKey, PendingJob> coalesced;
 
-    EnqueueService(Connection connection, String trackingId) throws HoldingsItemsException {
-        this.queueSupplier = QUEUE_SUPPLIER.preparedSupplier(connection);
+    /**
+     * Create an enqueue service
+     * <p>
+     * If buffered, jobs are collected in memory, and written using a single
+     * statement when {@link #flush()} or {@link #close()} is called, or when
+     * {@link #MAX_PENDING} jobs have been collected.
+     * <p>
+     * If coalescing (implies buffered), jobs for the same consumer and record
+     * are merged, both in memory and with a job already in the queue, that
+     * isn't being processed. The merge is the same as the consumer side
+     * deduplication ({@link QueueJob#DEDUPLICATION_ABSTRACTION_IGNORE_STATECHANGE}),
+     * and the queued job keeps its place in the queue.
+     *
+     * @param connection database connection
+     * @param trackingId tracking id of the jobs
+     * @param rules      supplier to consumer mapping
+     * @param buffered   if jobs should be collected
+     * @param coalesce   if jobs should be merged with queued jobs
+     * @throws HoldingsItemsException in case of a database error
+     */
+    EnqueueService(Connection connection, String trackingId, QueueRules rules, boolean buffered, boolean coalesce) throws HoldingsItemsException {
+        this.connection = connection;
+        this.queueSupplier = buffered || coalesce ? null : QUEUE_SUPPLIER.preparedSupplier(connection);
         this.trackingId = trackingId;
-        this.consumers = new HashMap<>();
-        try (Statement stmt = connection.createStatement() ;
-             ResultSet resultSet = stmt.executeQuery("SELECT supplier, consumer, postpone FROM queue_rules")) {
-            while (resultSet.next()) {
-                int i = 0;
-                String supplier = resultSet.getString(++i);
-                String consumer = resultSet.getString(++i);
-                Long postpone = resultSet.getLong(++i);
-                if (resultSet.wasNull())
-                    postpone = null;
-                consumers.computeIfAbsent(supplier, s -> new ArrayList<>()).add(new ConsumerTarget(consumer, postpone));
-            }
-        } catch (SQLException ex) {
-            throw new HoldingsItemsException("Cannot create supplier->consumer map", ex);
-        }
+        this.rules = rules;
+        this.pending = buffered && !coalesce ? new ArrayList<>() : null;
+        this.coalesced = coalesce ? new LinkedHashMap<>() : null;
     }
 
     /**
@@ -82,8 +131,26 @@ public class EnqueueService implements AutoCloseable {
      * @throws HoldingsItemsException in case of a database error
      */
     public void enqueue(String supplier, QueueJob queueJob) throws HoldingsItemsException {
+        if (coalesced != null) {
+            for (ConsumerTarget target : rules.consumers(supplier)) {
+                // A copy, since merging changes the job
+                QueueJob job = new QueueJob(queueJob.getAgencyId(), queueJob.getBibliographicRecordId(), queueJob.getStateChange(), queueJob.getTrackingId());
+                coalesced.merge(new PendingKey(target.consumer, job), new PendingJob(target, job), PendingJob::merge);
+            }
+            if (coalesced.size() >= MAX_PENDING)
+                flush();
+            return;
+        }
+        if (pending != null) {
+            for (ConsumerTarget target : rules.consumers(supplier)) {
+                pending.add(new PendingJob(target, queueJob));
+            }
+            if (pending.size() >= MAX_PENDING)
+                flush();
+            return;
+        }
         try {
-            for (ConsumerTarget target : consumers.getOrDefault(supplier, Collections.emptyList())) {
+            for (ConsumerTarget target : rules.consumers(supplier)) {
                 if (target.postpone == null) {
                     queueSupplier.enqueue(target.consumer, queueJob);
                 } else {
@@ -96,8 +163,63 @@ public class EnqueueService implements AutoCloseable {
         }
     }
 
+    /**
+     * Write the collected jobs to the queue
+     * <p>
+     * This does nothing if the service isn't buffered
+     *
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public void flush() throws HoldingsItemsException {
+        if (pending != null && !pending.isEmpty()) {
+            write(BATCH_INSERT, pending);
+            pending.clear();
+        }
+        if (coalesced != null && !coalesced.isEmpty()) {
+            write(BATCH_COALESCE, coalesced.values());
+            coalesced.clear();
+        }
+    }
+
+    private void write(String sql, Collection<PendingJob> jobs) throws HoldingsItemsException {
+        int size = jobs.size();
+        String[] consumerColumn = new String[size];
+        Long[] postponeColumn = new Long[size];
+        Integer[] agencyIdColumn = new Integer[size];
+        String[] bibliographicRecordIdColumn = new String[size];
+        String[] stateChangeColumn = new String[size];
+        String[] trackingIdColumn = new String[size];
+        int row = 0;
+        for (PendingJob job : jobs) {
+            consumerColumn[row] = job.target.consumer;
+            postponeColumn[row] = job.target.postpone;
+            agencyIdColumn[row] = job.job.getAgencyId();
+            bibliographicRecordIdColumn[row] = job.job.getBibliographicRecordId();
+            stateChangeColumn[row] = job.job.getStateChange();
+            trackingIdColumn[row] = job.job.getTrackingId();
+            row++;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int i = 0;
+            stmt.setArray(++i, connection.createArrayOf("TEXT", consumerColumn));
+            stmt.setArray(++i, connection.createArrayOf("INT8", postponeColumn));
+            stmt.setArray(++i, connection.createArrayOf("INT4", agencyIdColumn));
+            stmt.setArray(++i, connection.createArrayOf("TEXT", bibliographicRecordIdColumn));
+            stmt.setArray(++i, connection.createArrayOf("TEXT", stateChangeColumn));
+            stmt.setArray(++i, connection.createArrayOf("TEXT", trackingIdColumn));
+            int inserted = stmt.executeUpdate();
+            log.debug("Enqueued {} jobs, {} new rows", size, inserted);
+        } catch (SQLException ex) {
+            log.error("Enqueue error", ex);
+            throw new HoldingsItemsException("Enqueue error", ex);
+        }
+    }
+
     @Override
     public void close() throws HoldingsItemsException {
+        flush();
+        if (queueSupplier == null)
+            return;
         try {
             queueSupplier.close();
         } catch (SQLException ex) {
@@ -106,14 +228,49 @@ public class EnqueueService implements AutoCloseable {
         }
     }
 
-    private static class ConsumerTarget {
+    private static class PendingJob {
+
+        private final ConsumerTarget target;
+        private final QueueJob job;
+
+        private PendingJob(ConsumerTarget target, QueueJob job) {
+            this.target = target;
+            this.job = job;
+        }
+
+        private static PendingJob merge(PendingJob original, PendingJob skipped) {
+            QueueJob.DEDUPLICATION_ABSTRACTION_IGNORE_STATECHANGE.mergeJob(original.job, skipped.job);
+            return original;
+        }
+    }
+
+    private static class PendingKey {
 
         private final String consumer;
-        private final Long postpone;
+        private final int agencyId;
+        private final String bibliographicRecordId;
 
-        private ConsumerTarget(String consumer, Long postpone) {
+        private PendingKey(String consumer, QueueJob job) {
             this.consumer = consumer;
-            this.postpone = postpone;
+            this.agencyId = job.getAgencyId();
+            this.bibliographicRecordId = job.getBibliographicRecordId();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(consumer, agencyId, bibliographicRecordId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            final PendingKey other = (PendingKey) obj;
+            return this.agencyId == other.agencyId &&
+                   Objects.equals(this.consumer, other.consumer) &&
+                   Objects.equals(this.bibliographicRecordId, other.bibliographicRecordId);
         }
     }
 
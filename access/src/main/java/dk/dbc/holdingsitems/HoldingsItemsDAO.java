@@ -21,10 +21,19 @@ package dk.dbc.holdingsitems;
 import dk.dbc.holdingsitems.jpa.*;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
 import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
@@ -33,7 +42,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -43,17 +54,20 @@ public class HoldingsItemsDAO {
 
     private final EntityManager em;
     private final String trackingId;
-    Set<Status> DEAD_ITEMS = EnumSet.of(Status.DISCARDED, Status.LOST);
+    private final SupersedesResolver supersedes;
+    private static final Set<Status> DEAD_ITEMS = EnumSet.of(Status.DISCARDED, Status.LOST);
 
     /**
      * Constructor
      *
      * @param em         EntityManager
      * @param trackingId tracking of updates
+     * @param supersedes where supersedes relations are looked up
      */
-    HoldingsItemsDAO(EntityManager em, String trackingId) {
+    HoldingsItemsDAO(EntityManager em, String trackingId, SupersedesResolver supersedes) {
         this.em = em;
         this.trackingId = trackingId;
+        this.supersedes = supersedes;
     }
 
     /**
@@ -76,7 +90,22 @@ public class HoldingsItemsDAO {
      * @return a HoldingsItemsDAO for the connection
      */
     public static HoldingsItemsDAO newInstance(EntityManager em, String trackingId) {
-        return new HoldingsItemsDAO(em, trackingId);
+        return newInstance(em, trackingId, null);
+    }
+
+    /**
+     * Instantiate a DAO, that looks up supersedes relations using a resolver
+     * <p>
+     * The resolver should only be used when reading, or when the supersedes
+     * table isn't changed in the transaction
+     *
+     * @param em         database connection
+     * @param trackingId tracking id for database updates
+     * @param supersedes supersedes lookup, null means the database
+     * @return a HoldingsItemsDAO for the connection
+     */
+    public static HoldingsItemsDAO newInstance(EntityManager em, String trackingId, SupersedesResolver supersedes) {
+        return new HoldingsItemsDAO(em, trackingId, supersedes == null ? SupersedesResolver.of(em) : supersedes);
     }
 
     /**
@@ -152,6 +181,44 @@ public class HoldingsItemsDAO {
                 .getResultList();
     }
 
+    /**
+     * Stream the same ids as {@link #getHoldingItems(int)} from the database
+     * <p>
+     * This uses a server side cursor, so only {@code fetchSize} rows are held
+     * in memory at any given time. The connection is used without
+     * autocommit while streaming, and is restored afterwards.
+     *
+     * @param connection database connection (not managed by JPA)
+     * @param agencyId   agency in question
+     * @param fetchSize  number of rows to fetch from the cursor at a time
+     * @param consumer   receiver of each bibliographicRecordId
+     * @throws SQLException if the database communication fails
+     */
+    public static void streamHoldingItems(Connection connection, int agencyId, int fetchSize, Consumer<String> consumer) throws SQLException {
+        String ignore = String.join(", ", Collections.nCopies(DEAD_ITEMS.size(), "?"));
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT DISTINCT COALESCE(s.superseding, i.bibliographicRecordId) FROM item i" +
+                " LEFT JOIN supersedes s ON i.bibliographicRecordId = s.superseded" +
+                " WHERE i.agencyId = ? AND i.status NOT IN (" + ignore + ")")) {
+            int pos = 0;
+            stmt.setInt(++pos, agencyId);
+            for (Status status : DEAD_ITEMS) {
+                stmt.setString(++pos, status.toString());
+            }
+            stmt.setFetchSize(fetchSize);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString(1));
+                }
+            }
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
     /**
      * Find all issueids for a given bibliographic record
      *
@@ -220,6 +287,28 @@ public class HoldingsItemsDAO {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Get all items that match a given agencyId for a number of
+     * bibliographicRecordIds
+     * <p>
+     * Same as {@link #getItemsFromAgencyAndBibliographicRecordId(int, String)}
+     * for each id, but using a constant number of database queries
+     *
+     * @param agencyId               id of a library (int)
+     * @param bibliographicRecordIds ids of bibliographic records (string)
+     * @return map of bibliographicRecordId to the set of holdings items,
+     *         containing every requested id
+     */
+    public Map<String, Set<ItemEntity>> getItemsFromAgencyAndBibliographicRecordIds(int agencyId, Collection<String> bibliographicRecordIds) {
+        Map<String, BibliographicItemDetached> entities = BibliographicItemEntity.detachedWithSuperseded(em, supersedes, agencyId, bibliographicRecordIds);
+        HashMap<String, Set<ItemEntity>> items = new HashMap<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            items.computeIfAbsent(bibliographicRecordId, id -> streamItemsFromBibliographicEntity(entities.get(id))
+                                  .collect(Collectors.toSet()));
+        }
+        return items;
+    }
+
     /**
      * Create / Get a collection of items defined by id/library/orderId
      *
@@ -288,6 +377,110 @@ public class HoldingsItemsDAO {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Get a set of agencies that has live holdings for a record, or any of the
+     * records it supersedes
+     * <p>
+     * This is done in a single database round trip
+     *
+     * @param bibliographicRecordId id of record
+     * @param except                First status to skip
+     * @param excepts               more statuses to skip
+     * @return set of agencyId
+     * @throws HoldingsItemsException When database communication fails
+     */
+    public Set<Integer> getAgenciesThatHasHoldingsForIncludingSuperseded(String bibliographicRecordId, Status except, Status... excepts) throws HoldingsItemsException {
+        return getAgenciesThatHasHoldingsForIncludingSuperseded(List.of(bibliographicRecordId), except, excepts)
+                .get(bibliographicRecordId);
+    }
+
+    /**
+     * Get the sets of agencies that has live holdings for a number of records,
+     * or any of the records they supersede
+     * <p>
+     * This is done in a single database round trip
+     *
+     * @param bibliographicRecordIds ids of records
+     * @param except                 First status to skip
+     * @param excepts                more statuses to skip
+     * @return map of bibliographicRecordId to set of agencyId, containing
+     *         every requested id
+     * @throws HoldingsItemsException When database communication fails
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Set<Integer>> getAgenciesThatHasHoldingsForIncludingSuperseded(Collection<String> bibliographicRecordIds, Status except, Status... excepts) throws HoldingsItemsException {
+        HashMap<String, Set<Integer>> agencies = new HashMap<>();
+        bibliographicRecordIds.forEach(id -> agencies.put(id, new HashSet<>()));
+        if (agencies.isEmpty())
+            return agencies;
+        List<Object> parameters = new ArrayList<>(agencies.keySet());
+        String ids = placeholders(1, parameters.size(), "(?", ")");
+        EnumSet.of(except, excepts).forEach(status -> parameters.add(status.toString()));
+        String ignore = placeholders(agencies.size() + 1, parameters.size() - agencies.size(), "?", "");
+        Query query = em.createNativeQuery("WITH wanted(bibliographicRecordId) AS (VALUES " + ids + ")" +
+                                           " SELECT DISTINCT holder.bibliographicRecordId, i.agencyId FROM (" +
+                                           "  SELECT w.bibliographicRecordId, w.bibliographicRecordId AS holdingsRecordId" +
+                                           "   FROM wanted w" +
+                                           "  UNION ALL" +
+                                           "  SELECT s.superseding, s.superseded" +
+                                           "   FROM supersedes s" +
+                                           "   JOIN wanted w ON w.bibliographicRecordId = s.superseding" +
+                                           " ) AS holder" +
+                                           " JOIN item i ON i.bibliographicRecordId = holder.holdingsRecordId" +
+                                           " WHERE i.status NOT IN (" + ignore + ")");
+        for (int i = 0 ; i < parameters.size() ; i++) {
+            query.setParameter(i + 1, parameters.get(i));
+        }
+        for (Object[] row : (List<Object[]>) query.getResultList()) {
+            agencies.get((String) row[0]).add(( (Number) row[1] ).intValue());
+        }
+        return agencies;
+    }
+
+    private static String placeholders(int first, int count, String prefix, String postfix) {
+        return IntStream.range(first, first + count)
+                .mapToObj(i -> prefix + i + postfix)
+                .collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Create the bibliographic items (roots) that doesn't exist, in one
+     * statement
+     * <p>
+     * Existing rows are neither changed nor locked. Created rows have an empty
+     * note and tracking id, and modified at epoch, so any update takes
+     * precedence.
+     *
+     * @param agencyId               owner
+     * @param bibliographicRecordIds ids of the records
+     * @param firstAccessionDate     first accession date of created roots
+     * @return number of created roots
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public int ensureBibliographicItems(int agencyId, Collection<String> bibliographicRecordIds, LocalDate firstAccessionDate) throws HoldingsItemsException {
+        String[] ids = bibliographicRecordIds.stream()
+                .distinct()
+                .sorted() // Same order in all transactions, when waiting for concurrent inserts
+                .toArray(String[]::new);
+        if (ids.length == 0)
+            return 0;
+        Connection connection = em.unwrap(Connection.class);
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO bibliographicItem (agencyId, bibliographicRecordId, note, firstAccessionDate, modified, trackingId, version)" +
+                " SELECT ?, id, '', ?, ?, '', 1" +
+                "  FROM UNNEST(CAST(? AS TEXT[])) WITH ORDINALITY AS wanted(id, pos)" +
+                "  ORDER BY pos" +
+                " ON CONFLICT DO NOTHING")) {
+            stmt.setInt(1, agencyId);
+            stmt.setDate(2, Date.valueOf(firstAccessionDate));
+            stmt.setTimestamp(3, Timestamp.from(Instant.EPOCH));
+            stmt.setArray(4, connection.createArrayOf("TEXT", ids));
+            return stmt.executeUpdate();
+        } catch (SQLException ex) {
+            throw new HoldingsItemsException("Error creating bibliographic items", ex);
+        }
+    }
+
     /**
      * Update bibliographic item note - should be called before items are
      * fetched
@@ -321,6 +514,11 @@ public class HoldingsItemsDAO {
     }
 
     /**
+     * Number of items of each status for an agency
+     * <p>
+     * This reads the counters, that are maintained by a trigger on the item
+     * table
+     *
      * @param agency     agency id of owner
      * @param trackingId optional tracking id for debugging
      * @return object to hold response from query
@@ -328,6 +526,34 @@ public class HoldingsItemsDAO {
      */
     @SuppressWarnings("unchecked")
     public TotalStatusCountsForAgency getStatusCountsByAgency(int agency, String trackingId) throws HoldingsItemsException {
+        List<Object[]> res = (List<Object[]>) em.createNativeQuery("SELECT status, count" +
+                                                                   " FROM item_status_count" +
+                                                                   " WHERE agencyId = ?" +
+                                                                   "  AND count <> 0")
+                .setParameter(1, agency)
+                .getResultList();
+
+        Map<Status, Long> statusCounts = new HashMap<>();
+        for (Object[] counts : res) {
+            statusCounts.put(Status.parse((String) counts[0]), ((Number) counts[1]).longValue());
+        }
+
+        return new TotalStatusCountsForAgency(agency, statusCounts, trackingId);
+    }
+
+    /**
+     * Number of items of each status for an agency, counted from the items
+     * <p>
+     * This will be slow, it is for verifying
+     * {@link #getStatusCountsByAgency(int, java.lang.String)}
+     *
+     * @param agency     agency id of owner
+     * @param trackingId optional tracking id for debugging
+     * @return object to hold response from query
+     * @throws HoldingsItemsException in case of database error
+     */
+    @SuppressWarnings("unchecked")
+    public TotalStatusCountsForAgency countStatusesByAgency(int agency, String trackingId) throws HoldingsItemsException {
         List<Object[]> res = (List<Object[]>) em.createQuery("SELECT i.status, COUNT(i) " +
                                                              " FROM ItemEntity i " +
                                                              " WHERE i.agencyId = :agencyId " +
@@ -343,6 +569,36 @@ public class HoldingsItemsDAO {
         return new TotalStatusCountsForAgency(agency, statusCounts, trackingId);
     }
 
+    /**
+     * Recount the status counters of an agency from the items
+     * <p>
+     * Only the counter rows of the agency are locked. Writers, that have
+     * already changed them, are waited for. Writers, that come later, wait
+     * for this transaction and add their change to the recounted value.
+     *
+     * @param agency     agency id of owner
+     * @param trackingId optional tracking id for debugging
+     * @return the new counts
+     * @throws HoldingsItemsException in case of database error
+     */
+    public TotalStatusCountsForAgency rebuildStatusCountsByAgency(int agency, String trackingId) throws HoldingsItemsException {
+        em.flush();
+        em.createNativeQuery("INSERT INTO item_status_count (agencyId, status, count)" +
+                             " SELECT DISTINCT agencyId, status, 0 FROM item WHERE agencyId = ?" +
+                             " ON CONFLICT (agencyId, status) DO NOTHING")
+                .setParameter(1, agency)
+                .executeUpdate();
+        em.createNativeQuery("SELECT status FROM item_status_count WHERE agencyId = ? ORDER BY status FOR UPDATE")
+                .setParameter(1, agency)
+                .getResultList();
+        em.createNativeQuery("UPDATE item_status_count c" +
+                             " SET count = (SELECT COUNT(*) FROM item i WHERE i.agencyId = c.agencyId AND i.status = c.status)" +
+                             " WHERE agencyId = ?")
+                .setParameter(1, agency)
+                .executeUpdate();
+        return getStatusCountsByAgency(agency, trackingId);
+    }
+
     /**
      * Has a holding that is not decommissioned (ignore supersedes)
      *
@@ -361,7 +617,7 @@ public class HoldingsItemsDAO {
     private Stream<ItemEntity> streamItemsFromAgencyAndBibliographicRecordId(int agencyId,
                                                                              String bibliographicRecordId) {
         return streamItemsFromBibliographicEntity(
-                BibliographicItemEntity.detachedWithSuperseded(em, agencyId, bibliographicRecordId));
+                BibliographicItemEntity.detachedWithSuperseded(em, supersedes, agencyId, bibliographicRecordId));
     }
 
     private Stream<ItemEntity> streamItemsFromBibliographicEntity(BibliographicItemEntity entity) {
@@ -377,11 +633,11 @@ public class HoldingsItemsDAO {
     }
 
     public String getActualBibliographicRecordId(String bibliographicRecordId) {
-        SupersedesEntity superseded = em.find(SupersedesEntity.class, bibliographicRecordId);
-        if (superseded == null) {
+        String superseding = supersedes.supersededBy(bibliographicRecordId);
+        if (superseding == null) {
             return bibliographicRecordId;
         } else {
-            return superseded.getSuperseding();
+            return superseding;
         }
     }
 
@@ -392,6 +648,81 @@ public class HoldingsItemsDAO {
      * @throws HoldingsItemsException In case of a database error
      */
     public EnqueueService enqueueService() throws HoldingsItemsException {
-        return new EnqueueService(em.unwrap(Connection.class), trackingId);
+        return enqueueService(null);
+    }
+
+    /**
+     * Service to enqueue from a supplier
+     *
+     * @param rules supplier to consumer mapping, null means read it from the
+     *              database
+     * @return enqueue class
+     * @throws HoldingsItemsException In case of a database error
+     */
+    public EnqueueService enqueueService(QueueRules rules) throws HoldingsItemsException {
+        return enqueueService(rules, false, false);
+    }
+
+    /**
+     * Service to enqueue from a supplier, that collects the jobs and writes
+     * them all in one statement when flushed or closed
+     *
+     * @return enqueue class
+     * @throws HoldingsItemsException In case of a database error
+     */
+    public EnqueueService bufferedEnqueueService() throws HoldingsItemsException {
+        return bufferedEnqueueService(null);
+    }
+
+    /**
+     * Service to enqueue from a supplier, that collects the jobs and writes
+     * them all in one statement when flushed or closed
+     *
+     * @param rules supplier to consumer mapping, null means read it from the
+     *              database
+     * @return enqueue class
+     * @throws HoldingsItemsException In case of a database error
+     */
+    public EnqueueService bufferedEnqueueService(QueueRules rules) throws HoldingsItemsException {
+        return bufferedEnqueueService(rules, false);
+    }
+
+    /**
+     * Service to enqueue from a supplier, that collects the jobs and writes
+     * them all in one statement when flushed or closed
+     * <p>
+     * If coalescing, jobs are merged with jobs for the same consumer and
+     * record, that are in the queue but not being processed, instead of
+     * adding a new row
+     *
+     * @param rules    supplier to consumer mapping, null means read it from
+     *                 the database
+     * @param coalesce if jobs should be merged with queued jobs
+     * @return enqueue class
+     * @throws HoldingsItemsException In case of a database error
+     */
+    public EnqueueService bufferedEnqueueService(QueueRules rules, boolean coalesce) throws HoldingsItemsException {
+        return enqueueService(rules, true, coalesce);
+    }
+
+    /**
+     * Bulk load of complete records of an agency
+     * <p>
+     * Changes are made using set based SQL, so entities of the agency in the
+     * entity manager aren't updated.
+     *
+     * @param agencyId owner of the records
+     * @return bulk loader, that should be closed after use
+     * @throws HoldingsItemsException In case of a database error
+     */
+    public BulkComplete bulkComplete(int agencyId) throws HoldingsItemsException {
+        return new BulkComplete(em.unwrap(Connection.class), agencyId, trackingId);
+    }
+
+    private EnqueueService enqueueService(QueueRules rules, boolean buffered, boolean coalesce) throws HoldingsItemsException {
+        Connection connection = em.unwrap(Connection.class);
+        if (rules == null)
+            rules = QueueRules.load(connection);
+        return new EnqueueService(connection, trackingId, rules, buffered, coalesce);
     }
 }
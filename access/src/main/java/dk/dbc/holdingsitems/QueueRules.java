@@ -0,0 +1,97 @@
+package dk.dbc.holdingsitems;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the queue_rules table
+ * <p>
+ * This maps a supplier to the consumers that should receive its jobs. A
+ * snapshot can be shared between threads, and be used for any number of
+ * {@link EnqueueService}s.
+ */
+public final class QueueRules {
+
+    private final Map<String, List<ConsumerTarget>> consumers;
+    private final long loadedAt;
+
+    private QueueRules(Map<String, List<ConsumerTarget>> consumers, long loadedAt) {
+        this.consumers = consumers;
+        this.loadedAt = loadedAt;
+    }
+
+    /**
+     * Read the queue_rules table
+     *
+     * @param connection database connection
+     * @return snapshot
+     * @throws HoldingsItemsException in case of a database error
+     */
+    public static QueueRules load(Connection connection) throws HoldingsItemsException {
+        long loadedAt = System.currentTimeMillis();
+        HashMap<String, List<ConsumerTarget>> consumers = new HashMap<>();
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT supplier, consumer, postpone FROM queue_rules")) {
+            while (resultSet.next()) {
+                int i = 0;
+                String supplier = resultSet.getString(++i);
+                String consumer = resultSet.getString(++i);
+                Long postpone = resultSet.getLong(++i);
+                if (resultSet.wasNull())
+                    postpone = null;
+                consumers.computeIfAbsent(supplier, s -> new ArrayList<>()).add(new ConsumerTarget(consumer, postpone));
+            }
+        } catch (SQLException ex) {
+            throw new HoldingsItemsException("Cannot create supplier->consumer map", ex);
+        }
+        consumers.replaceAll((supplier, targets) -> List.copyOf(targets));
+        return new QueueRules(Map.copyOf(consumers), loadedAt);
+    }
+
+    /**
+     * The consumers of a supplier
+     *
+     * @param supplier name of supplier
+     * @return immutable list of consumers (possibly empty)
+     */
+    List<ConsumerTarget> consumers(String supplier) {
+        return consumers.getOrDefault(supplier, Collections.emptyList());
+    }
+
+    /**
+     * When the snapshot was taken
+     *
+     * @return epoch millis when loading started
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueRules{" + "consumers=" + consumers + ", loadedAt=" + loadedAt + '}';
+    }
+
+    static final class ConsumerTarget {
+
+        final String consumer;
+        final Long postpone;
+
+        private ConsumerTarget(String consumer, Long postpone) {
+            this.consumer = consumer;
+            this.postpone = postpone;
+        }
+
+        @Override
+        public String toString() {
+            return postpone == null ? consumer : consumer + "+" + postpone + "ms";
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package dk.dbc.holdingsitems;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory copy of the supersedes table, indexed in both directions
+ * <p>
+ * {@link #reload(Connection)} replaces the entire content atomically,
+ * {@link #refresh(Connection, Collection)} re-reads the rows of the given
+ * superseded ids. Lookups never block, and always see a consistent copy of
+ * each row.
+ */
+public class SupersedesIndex implements SupersedesResolver {
+
+    private static final String ALL = "SELECT superseded, superseding FROM supersedes";
+    private static final String ONE = "SELECT superseding FROM supersedes WHERE superseded = ?";
+
+    private volatile Snapshot snapshot = new Snapshot();
+
+    /**
+     * Load the entire supersedes table
+     *
+     * @param connection database connection
+     * @throws SQLException if the database communication fails
+     */
+    public void reload(Connection connection) throws SQLException {
+        Snapshot loaded = new Snapshot();
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery(ALL)) {
+            while (resultSet.next()) {
+                loaded.put(resultSet.getString(1), resultSet.getString(2));
+            }
+        }
+        synchronized (this) {
+            snapshot = loaded;
+        }
+    }
+
+    /**
+     * Re-read a number of rows
+     *
+     * @param connection  database connection
+     * @param supersededs the ids of the records, that are (or were) superseded
+     * @throws SQLException if the database communication fails
+     */
+    public void refresh(Connection connection, Collection<String> supersededs) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(ONE)) {
+            for (String superseded : supersededs) {
+                stmt.setString(1, superseded);
+                String superseding = null;
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (resultSet.next())
+                        superseding = resultSet.getString(1);
+                }
+                synchronized (this) {
+                    snapshot.put(superseded, superseding);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of superseded records
+     *
+     * @return number of rows in the supersedes table
+     */
+    public int size() {
+        return snapshot.supersededBy.size();
+    }
+
+    @Override
+    public String supersededBy(String bibliographicRecordId) {
+        return snapshot.supersededBy.get(bibliographicRecordId);
+    }
+
+    @Override
+    public Set<String> supersedes(String bibliographicRecordId) {
+        Set<String> superseded = snapshot.supersedes.get(bibliographicRecordId);
+        if (superseded == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(superseded);
+    }
+
+    private static class Snapshot {
+
+        private final Map<String, String> supersededBy = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> supersedes = new ConcurrentHashMap<>();
+
+        /**
+         * Set or remove (if superseding is null) a row
+         * <p>
+         * Callers are serialized by the index
+         */
+        private void put(String superseded, String superseding) {
+            String old = superseding == null ?
+                         supersededBy.remove(superseded) :
+                         supersededBy.put(superseded, superseding);
+            if (old != null && !old.equals(superseding)) {
+                supersedes.computeIfPresent(old, (k, v) -> {
+                    v.remove(superseded);
+                    return v.isEmpty() ? null : v;
+                });
+            }
+            if (superseding != null) {
+                supersedes.computeIfAbsent(superseding, k -> ConcurrentHashMap.newKeySet())
+                        .add(superseded);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package dk.dbc.holdingsitems;
+
+import dk.dbc.holdingsitems.jpa.SupersedesEntity;
+import jakarta.persistence.EntityManager;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Lookup of supersedes relations
+ * <p>
+ * The default implementation {@link #of(EntityManager)} queries the database,
+ * {@link SupersedesIndex} is an in memory version
+ */
+public interface SupersedesResolver {
+
+    /**
+     * Find the record that has taken over a given record
+     *
+     * @param bibliographicRecordId id of record
+     * @return id of superseding record or null if not superseded
+     */
+    String supersededBy(String bibliographicRecordId);
+
+    /**
+     * Find the records that a given record has taken over
+     *
+     * @param bibliographicRecordId id of record
+     * @return ids of superseded records (possibly empty)
+     */
+    Set<String> supersedes(String bibliographicRecordId);
+
+    /**
+     * Find the superseding record of a number of records
+     *
+     * @param bibliographicRecordIds ids of records
+     * @return map of id to superseding record, for ids that are superseded
+     */
+    default Map<String, String> supersededBy(Collection<String> bibliographicRecordIds) {
+        HashMap<String, String> map = new HashMap<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            String superseding = supersededBy(bibliographicRecordId);
+            if (superseding != null)
+                map.put(bibliographicRecordId, superseding);
+        }
+        return map;
+    }
+
+    /**
+     * Find the records that a number of records has taken over
+     *
+     * @param bibliographicRecordIds ids of records
+     * @return map of id to superseded records, for ids that supersedes some
+     */
+    default Map<String, Set<String>> supersedes(Collection<String> bibliographicRecordIds) {
+        HashMap<String, Set<String>> map = new HashMap<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            Set<String> superseded = supersedes(bibliographicRecordId);
+            if (!superseded.isEmpty())
+                map.put(bibliographicRecordId, superseded);
+        }
+        return map;
+    }
+
+    /**
+     * Resolver that queries the database
+     *
+     * @param em entity manager
+     * @return resolver
+     */
+    static SupersedesResolver of(EntityManager em) {
+        return new SupersedesResolver() {
+            @Override
+            public String supersededBy(String bibliographicRecordId) {
+                SupersedesEntity entity = em.find(SupersedesEntity.class, bibliographicRecordId);
+                return entity == null ? null : entity.getSuperseding();
+            }
+
+            @Override
+            public Set<String> supersedes(String bibliographicRecordId) {
+                return SupersedesEntity.bySupersedingNoLock(em, bibliographicRecordId)
+                        .map(SupersedesEntity::getSuperseded)
+                        .collect(toSet());
+            }
+
+            @Override
+            public Map<String, String> supersededBy(Collection<String> bibliographicRecordIds) {
+                HashMap<String, String> map = new HashMap<>();
+                HashSet<String> ids = new HashSet<>(bibliographicRecordIds);
+                if (!ids.isEmpty()) {
+                    SupersedesEntity.byRelatedNoLock(em, ids).stream()
+                            .filter(e -> ids.contains(e.getSuperseded()))
+                            .forEach(e -> map.put(e.getSuperseded(), e.getSuperseding()));
+                }
+                return map;
+            }
+
+            @Override
+            public Map<String, Set<String>> supersedes(Collection<String> bibliographicRecordIds) {
+                HashMap<String, Set<String>> map = new HashMap<>();
+                HashSet<String> ids = new HashSet<>(bibliographicRecordIds);
+                if (!ids.isEmpty()) {
+                    SupersedesEntity.byRelatedNoLock(em, ids).stream()
+                            .filter(e -> ids.contains(e.getSuperseding()))
+                            .forEach(e -> map.computeIfAbsent(e.getSuperseding(), s -> new HashSet<>()).add(e.getSuperseded()));
+                }
+                return map;
+            }
+        };
+    }
+}
@@ -1,5 +1,6 @@
 package dk.dbc.holdingsitems.jpa;
 
+import dk.dbc.holdingsitems.SupersedesResolver;
 import dk.dbc.holdingsitems.content_dto.CompleteBibliographic;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.sql.Date;
@@ -29,14 +30,40 @@ public class BibliographicItemDetached extends BibliographicItemEntity {
     private boolean ok;
 
     public static BibliographicItemDetached detached(EntityManager em, BibliographicItemEntity e) {
+        return detached(em, SupersedesResolver.of(em), e);
+    }
+
+    public static BibliographicItemDetached detached(EntityManager em, int agencyId, String bibliographicRecordId) {
+        return detached(em, SupersedesResolver.of(em), agencyId, bibliographicRecordId);
+    }
+
+    public static BibliographicItemDetached detached(EntityManager em, SupersedesResolver supersedes, BibliographicItemEntity e) {
         return new BibliographicItemDetached(e.agencyId, e.bibliographicRecordId, e.note, e.firstAccessionDate, e.modified, e.trackingId, e.issues)
-                .merge(em)
+                .merge(em, supersedes)
                 .validObject();
     }
 
-    public static BibliographicItemDetached detached(EntityManager em, int agencyId, String bibliographicRecordId) {
+    public static BibliographicItemDetached detached(EntityManager em, SupersedesResolver supersedes, int agencyId, String bibliographicRecordId) {
         return new BibliographicItemDetached(agencyId, bibliographicRecordId)
-                .merge(em)
+                .merge(em, supersedes)
+                .validObject();
+    }
+
+    /**
+     * Make a detached copy from already loaded entities
+     *
+     * @param e                     the entity or null if it doesn't exist
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @param extraBibItems         the records superseded by this, in merge
+     *                              order
+     * @return detached copy or null if nothing is found
+     */
+    static BibliographicItemDetached detached(BibliographicItemEntity e, int agencyId, String bibliographicRecordId, List<BibliographicItemEntity> extraBibItems) {
+        BibliographicItemDetached detached = e == null ?
+                                             new BibliographicItemDetached(agencyId, bibliographicRecordId) :
+                                             new BibliographicItemDetached(e.agencyId, e.bibliographicRecordId, e.note, e.firstAccessionDate, e.modified, e.trackingId, e.issues);
+        return detached.merge(extraBibItems)
                 .validObject();
     }
 
@@ -80,13 +107,16 @@ public class BibliographicItemDetached extends BibliographicItemEntity {
         return that;
     }
 
-    private BibliographicItemDetached merge(EntityManager em) {
-        List<BibliographicItemEntity> extraBibItems = SupersedesEntity.bySupersedingNoLock(em, bibliographicRecordId)
-                .map(SupersedesEntity::getSuperseded)
+    private BibliographicItemDetached merge(EntityManager em, SupersedesResolver supersedes) {
+        List<BibliographicItemEntity> extraBibItems = supersedes.supersedes(bibliographicRecordId).stream()
                 .sorted(new VersionSort().reversed())
                 .map(bibId -> fromUnLocked(em, agencyId, bibId))
                 .filter(Objects::nonNull)
                 .collect(toList());
+        return merge(extraBibItems);
+    }
+
+    private BibliographicItemDetached merge(List<BibliographicItemEntity> extraBibItems) {
         if (!extraBibItems.isEmpty()) {
             extraBibItems.forEach(extraBib -> {
                 mergeFirstAccessionDate(extraBib.getFirstAccessionDate());
@@ -18,16 +18,22 @@
  */
 package dk.dbc.holdingsitems.jpa;
 
+import dk.dbc.holdingsitems.SupersedesResolver;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.sql.Date;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Stream;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.EmbeddedId;
@@ -39,8 +45,11 @@ import jakarta.persistence.OneToMany;
 import jakarta.persistence.Table;
 import jakarta.persistence.Transient;
 import jakarta.persistence.Version;
+import org.eclipse.persistence.annotations.BatchFetchType;
+import org.eclipse.persistence.config.QueryHints;
 
 import static java.util.Collections.EMPTY_SET;
+import static java.util.stream.Collectors.toList;
 
 /**
  * Database mapping of bibliographicItem table
@@ -52,6 +61,7 @@ import static java.util.Collections.EMPTY_SET;
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 @Entity
+@Cacheable
 @Table(name = "bibliographicItem")
 @SuppressWarnings("PMD.UnusedPrivateField")
 public class BibliographicItemEntity implements Serializable {
@@ -95,12 +105,34 @@ public class BibliographicItemEntity implements Serializable {
     private transient EntityManager em;
 
     @Transient
-    private transient boolean pessimisticForceIncrement; // If entities fetched by this entity should be pessimistic_force_increment locked
+    private transient LockModeType lockMode = LockModeType.NONE; // How entities fetched by this entity should be locked
+
+    @Transient
+    private transient Map<String, IssueEntity> prefetchedIssues; // Issues locked and loaded by prefetch(), null if not prefetched
 
     public static BibliographicItemEntity from(EntityManager em, int agencyId, String bibliographicRecordId, Instant modified, LocalDate firstAccessionDate) {
         return from(em, new BibliographicItemKey(agencyId, bibliographicRecordId), modified, firstAccessionDate, LockModeType.PESSIMISTIC_FORCE_INCREMENT);
     }
 
+    /**
+     * Lock a record (and the issues/items fetched through it) for an update
+     * <p>
+     * Unlike {@link #from(EntityManager, int, String, Instant, LocalDate)} the
+     * rows are locked with PESSIMISTIC_WRITE, so only rows that are changed
+     * get a new version.
+     *
+     * @param em                    entity manager
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @param modified              modified if the record is created
+     * @param firstAccessionDate    first accession date if the record is
+     *                              created
+     * @return locked, possibly new, record
+     */
+    public static BibliographicItemEntity forUpdate(EntityManager em, int agencyId, String bibliographicRecordId, Instant modified, LocalDate firstAccessionDate) {
+        return from(em, new BibliographicItemKey(agencyId, bibliographicRecordId), modified, firstAccessionDate, LockModeType.PESSIMISTIC_WRITE);
+    }
+
     public static BibliographicItemEntity fromUnLocked(EntityManager em, int agencyId, String bibliographicRecordId) {
         return fromUnLocked(em, new BibliographicItemKey(agencyId, bibliographicRecordId));
     }
@@ -113,22 +145,108 @@ public class BibliographicItemEntity implements Serializable {
         BibliographicItemEntity entity = em.find(BibliographicItemEntity.class, key, LockModeType.NONE);
         if (entity != null) {
             entity.em = em;
-            entity.pessimisticForceIncrement = false;
+            entity.lockMode = LockModeType.NONE;
         }
         return entity;
     }
 
     public static BibliographicItemDetached detachedWithSuperseded(EntityManager em, int agencyId, String bibliographicRecordId) {
-        SupersedesEntity superseded = em.find(SupersedesEntity.class, bibliographicRecordId);
-        if (superseded != null) {
+        return detachedWithSuperseded(em, SupersedesResolver.of(em), agencyId, bibliographicRecordId);
+    }
+
+    /**
+     * Make a detached copy of a record, with the records it supersedes merged
+     * in
+     *
+     * @param em                    entity manager
+     * @param supersedes            where supersedes relations are looked up
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @return detached copy or null if it is superseded or has no holdings
+     */
+    public static BibliographicItemDetached detachedWithSuperseded(EntityManager em, SupersedesResolver supersedes, int agencyId, String bibliographicRecordId) {
+        if (supersedes.supersededBy(bibliographicRecordId) != null) {
             return null;
         }
         BibliographicItemEntity entity = fromUnLocked(em, agencyId, bibliographicRecordId);
         if (entity != null) {
-            return BibliographicItemDetached.detached(em, entity);
+            return BibliographicItemDetached.detached(em, supersedes, entity);
         } else {
-            return BibliographicItemDetached.detached(em, agencyId, bibliographicRecordId);
+            return BibliographicItemDetached.detached(em, supersedes, agencyId, bibliographicRecordId);
+        }
+    }
+
+    /**
+     * Batched version of
+     * {@link #detachedWithSuperseded(jakarta.persistence.EntityManager, int, java.lang.String)}
+     * <p>
+     * This resolves supersedes, records, issues and items in a constant
+     * number of queries, regardless of the number of records requested.
+     *
+     * @param em                     entity manager
+     * @param agencyId               owner
+     * @param bibliographicRecordIds records to look up
+     * @return map of bibliographicRecordId to detached copy, records that
+     *         are superseded or has no holdings are omitted
+     */
+    public static Map<String, BibliographicItemDetached> detachedWithSuperseded(EntityManager em, int agencyId, Collection<String> bibliographicRecordIds) {
+        return detachedWithSuperseded(em, SupersedesResolver.of(em), agencyId, bibliographicRecordIds);
+    }
+
+    /**
+     * Batched version of
+     * {@link #detachedWithSuperseded(jakarta.persistence.EntityManager, dk.dbc.holdingsitems.SupersedesResolver, int, java.lang.String)}
+     *
+     * @param em                     entity manager
+     * @param supersedes             where supersedes relations are looked up
+     * @param agencyId               owner
+     * @param bibliographicRecordIds records to look up
+     * @return map of bibliographicRecordId to detached copy, records that
+     *         are superseded or has no holdings are omitted
+     */
+    public static Map<String, BibliographicItemDetached> detachedWithSuperseded(EntityManager em, SupersedesResolver supersedes, int agencyId, Collection<String> bibliographicRecordIds) {
+        HashMap<String, BibliographicItemDetached> detached = new HashMap<>();
+        if (bibliographicRecordIds.isEmpty())
+            return detached;
+        HashSet<String> requested = new HashSet<>(bibliographicRecordIds);
+        Map<String, Set<String>> extraIds = supersedes.supersedes(requested);
+        requested.removeAll(supersedes.supersededBy(requested).keySet());
+        if (requested.isEmpty())
+            return detached;
+
+        HashSet<String> wanted = new HashSet<>(requested);
+        extraIds.values().forEach(wanted::addAll);
+        HashMap<String, BibliographicItemEntity> entities = new HashMap<>();
+        em.createQuery("SELECT b FROM BibliographicItemEntity b" +
+                       " WHERE b.agencyId = :agencyId" +
+                       "  AND b.bibliographicRecordId IN :ids",
+                       BibliographicItemEntity.class)
+                .setParameter("agencyId", agencyId)
+                .setParameter("ids", wanted)
+                .setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN)
+                .setHint(QueryHints.BATCH, "b.issues")
+                .setHint(QueryHints.BATCH, "b.issues.items")
+                .getResultStream()
+                .forEach(entity -> {
+                    entity.em = em;
+                    entity.lockMode = LockModeType.NONE;
+                    entities.put(entity.getBibliographicRecordId(), entity);
+                });
+
+        VersionSort versionSort = new VersionSort();
+        for (String bibliographicRecordId : requested) {
+            List<BibliographicItemEntity> extraBibItems = extraIds.getOrDefault(bibliographicRecordId, Set.of())
+                    .stream()
+                    .sorted(versionSort.reversed())
+                    .map(entities::get)
+                    .filter(Objects::nonNull)
+                    .collect(toList());
+            BibliographicItemDetached entity = BibliographicItemDetached.detached(
+                    entities.get(bibliographicRecordId), agencyId, bibliographicRecordId, extraBibItems);
+            if (entity != null)
+                detached.put(bibliographicRecordId, entity);
         }
+        return detached;
     }
 
     private static BibliographicItemEntity from(EntityManager em, BibliographicItemKey key, Instant modified, LocalDate firstAccessionDate, LockModeType lock) {
@@ -140,7 +258,7 @@ public class BibliographicItemEntity implements Serializable {
             entity.setModified(modified);
         }
         entity.em = em;
-        entity.pessimisticForceIncrement = lock == LockModeType.PESSIMISTIC_FORCE_INCREMENT;
+        entity.lockMode = lock;
         return entity;
     }
 
@@ -201,10 +319,59 @@ public class BibliographicItemEntity implements Serializable {
         return issues.stream();
     }
 
+    /**
+     * Lock and load all issues and items of this record, using a fixed number
+     * of queries
+     * <p>
+     * After this, {@link #issue(String, Instant)} and
+     * {@link IssueEntity#item(String, Instant)} are served from memory, instead
+     * of locking and loading one row at the time. Rows are locked like the
+     * record, so when it is from {@link #forUpdate(EntityManager, int, String, Instant, LocalDate)}
+     * the version of an issue/item is only incremented, if it is changed.
+     *
+     * @return self
+     */
+    public BibliographicItemEntity prefetch() {
+        prefetchedIssues = new HashMap<>();
+        if (persist)
+            return this; // Nothing in the database yet
+        em.createQuery("SELECT h FROM IssueEntity h" +
+                       " WHERE h.agencyId = :agencyId" +
+                       "  AND h.bibliographicRecordId = :bibliographicRecordId",
+                       IssueEntity.class)
+                .setParameter("agencyId", agencyId)
+                .setParameter("bibliographicRecordId", bibliographicRecordId)
+                .setLockMode(lockMode)
+                .getResultStream()
+                .forEach(issue -> {
+                    issue.prefetchedItems = new HashMap<>();
+                    prefetchedIssues.put(issue.getIssueId(), issue);
+                });
+        em.createQuery("SELECT i FROM ItemEntity i" +
+                       " WHERE i.agencyId = :agencyId" +
+                       "  AND i.bibliographicRecordId = :bibliographicRecordId",
+                       ItemEntity.class)
+                .setParameter("agencyId", agencyId)
+                .setParameter("bibliographicRecordId", bibliographicRecordId)
+                .setLockMode(lockMode)
+                .getResultStream()
+                .forEach(item -> {
+                    IssueEntity issue = prefetchedIssues.get(item.getIssueId());
+                    if (issue != null)
+                        issue.prefetchedItems.put(item.getItemId(), item);
+                });
+        return this;
+    }
+
     public IssueEntity issue(String issueId, Instant modified) {
-        IssueKey key = new IssueKey(agencyId, bibliographicRecordId, issueId);
-        IssueEntity issue = em.find(IssueEntity.class, key,
-                                    pessimisticForceIncrement ? LockModeType.PESSIMISTIC_FORCE_INCREMENT : LockModeType.NONE);
+        IssueEntity issue;
+        if (prefetchedIssues != null) {
+            issue = prefetchedIssues.get(issueId); // Not prefetched means not in the database
+        } else {
+            IssueKey key = new IssueKey(agencyId, bibliographicRecordId, issueId);
+            issue = em.find(IssueEntity.class, key,
+                            lockMode);
+        }
         if (issue == null) {
             issue = new IssueEntity(this, issueId);
             issue.setComplete(modified);
@@ -212,11 +379,13 @@ public class BibliographicItemEntity implements Serializable {
             issue.setModified(modified);
             issue.setUpdated(modified);
             issue.setTrackingId(trackingId);
+            if (prefetchedIssues != null)
+                issue.prefetchedItems = new HashMap<>(); // Has no items in the database
         } else {
             issue.persist = false;
         }
         issues.add(issue);
-        issue.pessimisticForceIncrement = pessimisticForceIncrement;
+        issue.lockMode = lockMode;
         issue.em = em;
         issue.owner = this;
         return issue;
@@ -224,6 +393,8 @@ public class BibliographicItemEntity implements Serializable {
 
     public void removeIssue(IssueEntity issue) {
         issues.remove(issue);
+        if (prefetchedIssues != null)
+            prefetchedIssues.remove(issue.getIssueId(), issue);
     }
 
     public boolean isEmpty() {
@@ -0,0 +1,97 @@
+package dk.dbc.holdingsitems.jpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.eclipse.persistence.config.CacheIsolationType;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.invalidation.TimeToLiveCacheInvalidationPolicy;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Configure the shared (second level) cache of the entities
+ * <p>
+ * Every entity has its own time-to-live, given in seconds by an environment
+ * variable. If it is unset or 0 the entity isn't cached at all. When any
+ * entity is cached, hit/miss counting is enabled in {@link CacheStatistics}.
+ * <p>
+ * Other nodes are notified of changes using {@link CacheInvalidation}
+ */
+public class CacheCustomizer implements SessionCustomizer {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheCustomizer.class);
+
+    private static final Map<Class<?>, String> TTL_VARIABLES = makeTtlVariables();
+
+    private static volatile boolean enabled = false;
+
+    private final Function<String, String> env;
+
+    public CacheCustomizer() {
+        this(System::getenv);
+    }
+
+    /**
+     * Configure with time-to-live values from somewhere other than the
+     * environment (tests)
+     *
+     * @param env lookup of the variables
+     */
+    protected CacheCustomizer(Function<String, String> env) {
+        this.env = env;
+    }
+
+    /**
+     * Is any entity cached
+     *
+     * @return if the shared cache is in use
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void customize(Session session) throws Exception {
+        boolean anyCached = false;
+        for (Map.Entry<Class<?>, String> entry : TTL_VARIABLES.entrySet()) {
+            ClassDescriptor descriptor = session.getDescriptor(entry.getKey());
+            if (descriptor == null)
+                continue;
+            long ttl = ttlOf(entry.getValue());
+            if (ttl > 0) {
+                log.info("Caching {} for {}s", entry.getKey().getSimpleName(), ttl);
+                descriptor.getCachePolicy().setCacheIsolation(CacheIsolationType.SHARED);
+                descriptor.setCacheInvalidationPolicy(new TimeToLiveCacheInvalidationPolicy(ttl * 1000L));
+                anyCached = true;
+            } else {
+                descriptor.getCachePolicy().setCacheIsolation(CacheIsolationType.ISOLATED);
+            }
+        }
+        if (anyCached)
+            session.setProfiler(new CacheStatistics());
+        enabled = anyCached;
+    }
+
+    private long ttlOf(String variable) {
+        String value = env.apply(variable);
+        if (value == null || value.isBlank())
+            return 0;
+        try {
+            return Long.parseUnsignedLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number of seconds in " + variable + ": " + value, ex);
+        }
+    }
+
+    private static Map<Class<?>, String> makeTtlVariables() {
+        LinkedHashMap<Class<?>, String> map = new LinkedHashMap<>();
+        map.put(SupersedesEntity.class, "JPA_CACHE_TTL_SUPERSEDES");
+        map.put(BibliographicItemEntity.class, "JPA_CACHE_TTL_BIBLIOGRAPHICITEM");
+        map.put(IssueEntity.class, "JPA_CACHE_TTL_ISSUE");
+        map.put(ItemEntity.class, "JPA_CACHE_TTL_ITEM");
+        return map;
+    }
+}
@@ -0,0 +1,169 @@
+package dk.dbc.holdingsitems.jpa;
+
+import jakarta.persistence.Cache;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collection of entities, that has been changed by a transaction, and needs to
+ * be evicted from the shared cache of the other nodes
+ * <p>
+ * The collection can be serialized into text payloads (for PostgreSQL
+ * NOTIFY), one line per entity, tab separated fields.
+ */
+public class CacheInvalidation {
+
+    private static final String BIBLIOGRAPHIC_ITEM = "B";
+    private static final String ISSUE = "I";
+    private static final String ITEM = "T";
+    private static final String SUPERSEDES = "S";
+
+    private final Set<String> lines;
+
+    public CacheInvalidation() {
+        this.lines = new HashSet<>();
+    }
+
+    /**
+     * Register a record, its issues and its items
+     * <p>
+     * This should be called both before and after changing the record, to
+     * include issues and items that are removed or created
+     *
+     * @param entity the record
+     * @return self
+     */
+    public CacheInvalidation add(BibliographicItemEntity entity) {
+        lines.add(line(BIBLIOGRAPHIC_ITEM, String.valueOf(entity.getAgencyId()), entity.getBibliographicRecordId()));
+        entity.stream().forEach(issue -> {
+            lines.add(line(ISSUE, String.valueOf(issue.getAgencyId()), issue.getBibliographicRecordId(), issue.getIssueId()));
+            issue.stream().forEach(item -> lines.add(line(ITEM, String.valueOf(item.getAgencyId()), item.getBibliographicRecordId(), item.getIssueId(), item.getItemId())));
+        });
+        return this;
+    }
+
+    /**
+     * Register a record by key, for changes not made through the entities
+     *
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @return self
+     */
+    public CacheInvalidation addBibliographicItem(int agencyId, String bibliographicRecordId) {
+        lines.add(line(BIBLIOGRAPHIC_ITEM, String.valueOf(agencyId), bibliographicRecordId));
+        return this;
+    }
+
+    /**
+     * Register an issue by key, for changes not made through the entities
+     *
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @param issueId               issue id
+     * @return self
+     */
+    public CacheInvalidation addIssue(int agencyId, String bibliographicRecordId, String issueId) {
+        lines.add(line(ISSUE, String.valueOf(agencyId), bibliographicRecordId, issueId));
+        return this;
+    }
+
+    /**
+     * Register an item by key, for changes not made through the entities
+     *
+     * @param agencyId              owner
+     * @param bibliographicRecordId record id
+     * @param issueId               issue id
+     * @param itemId                item id
+     * @return self
+     */
+    public CacheInvalidation addItem(int agencyId, String bibliographicRecordId, String issueId, String itemId) {
+        lines.add(line(ITEM, String.valueOf(agencyId), bibliographicRecordId, issueId, itemId));
+        return this;
+    }
+
+    /**
+     * Register a supersedes relation
+     *
+     * @param superseded the id of the record that is superseded
+     * @return self
+     */
+    public CacheInvalidation addSupersedes(String superseded) {
+        lines.add(line(SUPERSEDES, superseded));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    /**
+     * Remove all registered entities from a cache
+     *
+     * @param cache the shared cache
+     */
+    public void evict(Cache cache) {
+        lines.forEach(line -> evict(cache, line));
+    }
+
+    /**
+     * Serialize the content as payloads no longer than a given size
+     *
+     * @param maxBytes max number of bytes in one payload
+     * @return list of payloads
+     */
+    public List<String> toPayloads(int maxBytes) {
+        ArrayList<String> payloads = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int bytes = 0;
+        for (String line : lines) {
+            int lineBytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (bytes + lineBytes > maxBytes && bytes > 0) {
+                payloads.add(sb.toString());
+                sb.setLength(0);
+                bytes = 0;
+            }
+            sb.append(line).append('\n');
+            bytes += lineBytes;
+        }
+        if (bytes > 0)
+            payloads.add(sb.toString());
+        return payloads;
+    }
+
+    /**
+     * Remove all entities mentioned in a payload from a cache
+     *
+     * @param cache   the shared cache
+     * @param payload text from {@link #toPayloads(int)}
+     */
+    public static void evict(Cache cache, String payload) {
+        for (String line : payload.split("\n")) {
+            String[] parts = line.split("\t", -1);
+            switch (parts[0]) {
+                case BIBLIOGRAPHIC_ITEM:
+                    cache.evict(BibliographicItemEntity.class, new BibliographicItemKey(Integer.parseInt(parts[1]), parts[2]));
+                    break;
+                case ISSUE:
+                    cache.evict(IssueEntity.class, new IssueKey(Integer.parseInt(parts[1]), parts[2], parts[3]));
+                    break;
+                case ITEM:
+                    cache.evict(ItemEntity.class, new ItemKey(Integer.parseInt(parts[1]), parts[2], parts[3], parts[4]));
+                    break;
+                case SUPERSEDES:
+                    cache.evict(SupersedesEntity.class, parts[1]);
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown cache invalidation type: " + parts[0]);
+            }
+        }
+    }
+
+    private static String line(String... parts) {
+        return String.join("\t", parts);
+    }
+}
@@ -0,0 +1,49 @@
+package dk.dbc.holdingsitems.jpa;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+
+/**
+ * Session profiler that only counts shared cache hits and misses
+ * <p>
+ * Installed by {@link CacheCustomizer} when caching is enabled
+ */
+public class CacheStatistics extends SessionProfilerAdapter {
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    @Override
+    public int getProfileWeight() {
+        return SessionProfiler.NORMAL;
+    }
+
+    @Override
+    public void occurred(String operationName, AbstractSession session) {
+        count(operationName);
+    }
+
+    @Override
+    public void occurred(String operationName, DatabaseQuery query, AbstractSession session) {
+        count(operationName);
+    }
+
+    private static void count(String operationName) {
+        if (SessionProfiler.CacheHits.equals(operationName)) {
+            HITS.increment();
+        } else if (SessionProfiler.CacheMisses.equals(operationName)) {
+            MISSES.increment();
+        }
+    }
+}
@@ -27,9 +27,11 @@ import java.time.LocalDate;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Stream;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.EmbeddedId;
@@ -54,6 +56,7 @@ import jakarta.persistence.Version;
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 @Entity
+@Cacheable
 @Table(name = "issue")
 @NamedQueries({
     @NamedQuery(name = "byAgencyBibliographic",
@@ -136,7 +139,10 @@ public class IssueEntity implements Serializable {
     transient EntityManager em;
 
     @Transient
-    transient boolean pessimisticForceIncrement; // If entities fetched by this entity should be pessimistic_force_increment locked
+    transient LockModeType lockMode = LockModeType.NONE; // How entities fetched by this entity should be locked
+
+    @Transient
+    transient Map<String, ItemEntity> prefetchedItems; // Items locked and loaded by BibliographicItemEntity.prefetch(), null if not prefetched
 
     public static List<IssueEntity> byAgencyBibliographic(EntityManager em, int agencyId, String bibliographicRecordId) {
         List<IssueEntity> list = em.createNamedQuery("byAgencyBibliographic", IssueEntity.class)
@@ -208,9 +214,14 @@ public class IssueEntity implements Serializable {
      *         it is newly created)
      */
     public ItemEntity item(String itemId, Instant modified) {
-        ItemKey key = new ItemKey(agencyId, bibliographicRecordId, issueId, itemId);
-        ItemEntity item = em.find(ItemEntity.class, key,
-                                  pessimisticForceIncrement ? LockModeType.PESSIMISTIC_FORCE_INCREMENT : LockModeType.NONE);
+        ItemEntity item;
+        if (prefetchedItems != null) {
+            item = prefetchedItems.get(itemId); // Not prefetched means not in the database
+        } else {
+            ItemKey key = new ItemKey(agencyId, bibliographicRecordId, issueId, itemId);
+            item = em.find(ItemEntity.class, key,
+                           lockMode);
+        }
         if (item == null) {
             item = new ItemEntity(this, itemId);
             item.setCreated(Instant.now());
@@ -229,6 +240,8 @@ public class IssueEntity implements Serializable {
         item.owner = null;
         if (!item.isNew()) {
             em.remove(item);
+            if (prefetchedItems != null)
+                prefetchedItems.remove(item.getItemId(), item);
         }
     }
 
@@ -26,6 +26,7 @@ import java.sql.Date;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.Objects;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Convert;
@@ -44,6 +45,7 @@ import jakarta.persistence.Version;
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 @Entity
+@Cacheable
 @Table(name = "item")
 @SuppressWarnings("PMD.UnusedPrivateField")
 @SuppressFBWarnings("EI_EXPOSE_REP")
@@ -1,9 +1,11 @@
 package dk.dbc.holdingsitems.jpa;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Stream;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.EntityManager;
@@ -18,15 +20,18 @@ import jakarta.persistence.Table;
  * @author Morten Bøgeskov (mb@dbc.dk)
  */
 @Entity
+@Cacheable
 @Table(name = "supersedes")
 @NamedQueries({
-    @NamedQuery(name = SupersedesEntity.BY_SUPERSEDING, query = "SELECT s FROM SupersedesEntity s WHERE s.superseding = :superseding")
+    @NamedQuery(name = SupersedesEntity.BY_SUPERSEDING, query = "SELECT s FROM SupersedesEntity s WHERE s.superseding = :superseding"),
+    @NamedQuery(name = SupersedesEntity.BY_RELATED, query = "SELECT s FROM SupersedesEntity s WHERE s.superseded IN :ids OR s.superseding IN :ids")
 })
 public class SupersedesEntity implements Serializable {
 
     private static final long serialVersionUID = 0x2B5BB72BD9F1ED0EL;
 
     public static final String BY_SUPERSEDING = "SupersedesEntity.bySuperseding";
+    public static final String BY_RELATED = "SupersedesEntity.byRelated";
 
     @Id
     @Column(name = "superseded", updatable = false)
@@ -49,6 +54,21 @@ public class SupersedesEntity implements Serializable {
                 .getResultStream();
     }
 
+    /**
+     * Find all supersedes relations where any of the given ids are either
+     * superseded or superseding
+     *
+     * @param em  entity manager
+     * @param ids bibliographic record ids
+     * @return list of relations (unlocked)
+     */
+    public static List<SupersedesEntity> byRelatedNoLock(EntityManager em, Collection<String> ids) {
+        return em.createNamedQuery(BY_RELATED, SupersedesEntity.class)
+                .setParameter("ids", ids)
+                .setLockMode(LockModeType.NONE)
+                .getResultList();
+    }
+
     public SupersedesEntity() {
     }
 
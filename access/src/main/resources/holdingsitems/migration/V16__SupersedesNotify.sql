@@ -0,0 +1,14 @@
+CREATE OR REPLACE FUNCTION supersedes_notify() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('holdingsitems_supersedes', OLD.superseded);
+    ELSE
+        PERFORM pg_notify('holdingsitems_supersedes', NEW.superseded);
+    END IF;
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER supersedes_notify
+    AFTER INSERT OR UPDATE OR DELETE ON supersedes
+    FOR EACH ROW EXECUTE PROCEDURE supersedes_notify();
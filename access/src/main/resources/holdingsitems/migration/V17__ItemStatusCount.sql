@@ -0,0 +1,60 @@
+CREATE TABLE item_status_count (
+    agencyId NUMERIC(6) NOT NULL,
+    status VARCHAR(64) NOT NULL,
+    count BIGINT NOT NULL,
+    CONSTRAINT item_status_count_pk PRIMARY KEY (agencyId, status)
+);
+
+-- Maintained once per statement, from the transition tables
+--
+-- The summed deltas are applied sorted by (agencyId, status), so transactions
+-- moving items between the same statuses lock the counter rows in the same
+-- order, and updates that change no agency/status touch no counter row.
+CREATE OR REPLACE FUNCTION item_status_count_apply() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO item_status_count (agencyId, status, count)
+            SELECT agencyId, status, COUNT(*) FROM new_rows
+                GROUP BY agencyId, status
+                ORDER BY agencyId, status
+            ON CONFLICT (agencyId, status) DO UPDATE SET count = item_status_count.count + EXCLUDED.count;
+    ELSIF TG_OP = 'DELETE' THEN
+        INSERT INTO item_status_count (agencyId, status, count)
+            SELECT agencyId, status, -COUNT(*) FROM old_rows
+                GROUP BY agencyId, status
+                ORDER BY agencyId, status
+            ON CONFLICT (agencyId, status) DO UPDATE SET count = item_status_count.count + EXCLUDED.count;
+    ELSE
+        INSERT INTO item_status_count (agencyId, status, count)
+            SELECT agencyId, status, SUM(delta) FROM (
+                    SELECT agencyId, status, -1 AS delta FROM old_rows
+                    UNION ALL
+                    SELECT agencyId, status, 1 AS delta FROM new_rows
+                ) AS deltas
+                GROUP BY agencyId, status
+                HAVING SUM(delta) <> 0
+                ORDER BY agencyId, status
+            ON CONFLICT (agencyId, status) DO UPDATE SET count = item_status_count.count + EXCLUDED.count;
+    END IF;
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+-- Creating the triggers blocks changes to item until the migration commits, so the initial count is exact
+CREATE TRIGGER item_status_count_insert
+    AFTER INSERT ON item
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE item_status_count_apply();
+
+CREATE TRIGGER item_status_count_delete
+    AFTER DELETE ON item
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE item_status_count_apply();
+
+CREATE TRIGGER item_status_count_update
+    AFTER UPDATE ON item
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE item_status_count_apply();
+
+INSERT INTO item_status_count (agencyId, status, count)
+    SELECT agencyId, status, COUNT(*) FROM item GROUP BY agencyId, status;
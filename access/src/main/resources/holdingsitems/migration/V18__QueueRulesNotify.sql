@@ -0,0 +1,10 @@
+CREATE OR REPLACE FUNCTION queue_rules_notify() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('holdingsitems_queue_rules', '');
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER queue_rules_notify
+    AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON queue_rules
+    FOR EACH STATEMENT EXECUTE PROCEDURE queue_rules_notify();
@@ -0,0 +1,6 @@
+-- Union of two tab separated lists of tracking ids, sorted and without duplicates (like QueueJob.mergeJob)
+CREATE OR REPLACE FUNCTION queue_merge_tracking_ids(_a TEXT, _b TEXT) RETURNS TEXT AS $$
+    SELECT COALESCE(string_agg(id, E'\t' ORDER BY id COLLATE "C"), '')
+        FROM (SELECT DISTINCT unnest(string_to_array(_a, E'\t') || string_to_array(_b, E'\t')) AS id) AS ids
+        WHERE id <> ''
+$$ LANGUAGE sql IMMUTABLE;
@@ -0,0 +1,33 @@
+-- Update requests accepted in async mode, applied in order per agency
+--
+-- Requests are claimed in a short transaction, by setting them RUNNING until
+-- the lease expires, instead of holding a row lock while applying them.
+-- A RUNNING row with an expired lease (the worker died) can be claimed again.
+CREATE TABLE update_staging (
+    id BIGSERIAL PRIMARY KEY,
+    agencyId NUMERIC(6) NOT NULL,
+    kind VARCHAR(16) NOT NULL,
+    trackingId TEXT NOT NULL,
+    request TEXT NOT NULL,
+    received TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT clock_timestamp(),
+    state VARCHAR(16) NOT NULL DEFAULT 'PENDING',
+    status VARCHAR(64),
+    message TEXT,
+    leased TIMESTAMP WITH TIME ZONE,
+    applied TIMESTAMP WITH TIME ZONE
+);
+
+CREATE INDEX update_staging_pending ON update_staging (agencyId, id) WHERE state IN ('PENDING', 'RUNNING');
+CREATE INDEX update_staging_agency_trackingId ON update_staging (agencyId, trackingId);
+CREATE INDEX update_staging_applied ON update_staging (applied) WHERE state IN ('DONE', 'FAILED');
+
+CREATE OR REPLACE FUNCTION update_staging_notify() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('holdingsitems_update_staging', '');
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER update_staging_notify
+    AFTER INSERT ON update_staging
+    FOR EACH STATEMENT EXECUTE PROCEDURE update_staging_notify();
@@ -18,11 +18,15 @@
  */
 package dk.dbc.holdingsitems;
 
+import dk.dbc.holdingsitems.content_dto.CompleteBibliographic;
 import dk.dbc.holdingsitems.jpa.BibliographicItemDetached;
 import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.CacheInvalidation;
+import dk.dbc.holdingsitems.jpa.CompleteBibliographicProjection;
 import dk.dbc.holdingsitems.jpa.IssueEntity;
 import dk.dbc.holdingsitems.jpa.ItemEntity;
 import dk.dbc.holdingsitems.jpa.ItemKey;
+import dk.dbc.holdingsitems.jpa.LoanRestriction;
 import dk.dbc.holdingsitems.jpa.Status;
 import dk.dbc.holdingsitems.jpa.SupersedesEntity;
 import org.hamcrest.BaseMatcher;
@@ -91,6 +95,117 @@ public class HoldingsItemsDAOIT extends JpaBase {
         }
     }
 
+    @Test(timeout = 2_000L)
+    public void testBufferedEnqueue() throws Exception {
+        System.out.println("testBufferedEnqueue");
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "FOO");
+            try (EnqueueService enqueueService = dao.bufferedEnqueueService()) {
+                enqueueService.enqueue("supa", 888888, "12345678", "{}");
+                enqueueService.enqueue("supb", 888888, "87654321", "{\"a\":\"b\"}");
+                enqueueService.enqueue("unknown", 888888, "11111111", "{}");
+                assertThat(em.createNativeQuery("SELECT COUNT(*) FROM queue").getSingleResult(), is(0L));
+            }
+        });
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT consumer, bibliographicRecordId, agencyId, stateChange, trackingId FROM queue")) {
+            HashSet<String> results = new HashSet<>();
+            while (resultSet.next()) {
+                int i = 0;
+                String consumer = resultSet.getString(++i);
+                String biblId = resultSet.getString(++i);
+                int agencyId = resultSet.getInt(++i);
+                String stateChange = resultSet.getString(++i);
+                String tracking = resultSet.getString(++i);
+                results.add(consumer + "|" + biblId + "|" + agencyId + "|" + stateChange + "|" + tracking);
+            }
+            System.out.println("results = " + results);
+            assertThat(results, containsInAnyOrder("consa|12345678|888888|{}|FOO",
+                                                   "consb|87654321|888888|{\"a\":\"b\"}|FOO"));
+        }
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBufferedEnqueueIsBounded() throws Exception {
+        System.out.println("testBufferedEnqueueIsBounded");
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "FOO");
+            try (EnqueueService enqueueService = dao.bufferedEnqueueService()) {
+                for (int i = 0 ; i < EnqueueService.MAX_PENDING ; i++) {
+                    enqueueService.enqueue("supa", 888888, String.valueOf(10000000 + i), "{}");
+                }
+                assertThat(em.createNativeQuery("SELECT COUNT(*) FROM queue").getSingleResult(), is((long) EnqueueService.MAX_PENDING));
+                enqueueService.enqueue("supa", 888888, "1", "{}");
+                assertThat(em.createNativeQuery("SELECT COUNT(*) FROM queue").getSingleResult(), is((long) EnqueueService.MAX_PENDING));
+            }
+            assertThat(em.createNativeQuery("SELECT COUNT(*) FROM queue").getSingleResult(), is((long) EnqueueService.MAX_PENDING + 1));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testEnsureBibliographicItems() throws Exception {
+        System.out.println("testEnsureBibliographicItems");
+        jpa(em -> {
+            BibliographicItemEntity b = BibliographicItemEntity.from(em, 870970, "12345678", Instant.now(), LocalDate.now());
+            fill(b);
+            b.setNote("keep");
+            b.save();
+        });
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "FOO");
+            int created = dao.ensureBibliographicItems(870970, List.of("87654321", "12345678", "87654321"), LocalDate.now());
+            assertThat(created, is(1));
+        });
+        jpa(em -> {
+            BibliographicItemEntity existing = BibliographicItemEntity.fromUnLocked(em, 870970, "12345678");
+            assertThat(existing.getNote(), is("keep"));
+            BibliographicItemEntity b = BibliographicItemEntity.fromUnLocked(em, 870970, "87654321");
+            assertThat(b, notNullValue());
+            assertThat(b.getNote(), is(""));
+            assertThat(b.getModified(), is(Instant.EPOCH));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testCoalescingEnqueue() throws Exception {
+        System.out.println("testCoalescingEnqueue");
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "FOO");
+            try (EnqueueService enqueueService = dao.bufferedEnqueueService(null, true)) {
+                enqueueService.enqueue("supa", 888888, "12345678", "{\"a\":\"b\"}");
+                enqueueService.enqueue("supb", 888888, "87654321", "{}");
+            }
+        });
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "BAR");
+            try (EnqueueService enqueueService = dao.bufferedEnqueueService(null, true)) {
+                enqueueService.enqueue("supa", 888888, "12345678", "{}");
+                enqueueService.enqueue("supb", 888888, "87654321", "{\"c\":\"d\"}");
+                enqueueService.enqueue("supb", 888888, "87654321", "{}");
+                enqueueService.enqueue("supb", 888888, "11111111", "{}");
+            }
+        });
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT consumer, bibliographicRecordId, agencyId, stateChange, trackingId FROM queue")) {
+            HashSet<String> results = new HashSet<>();
+            while (resultSet.next()) {
+                int i = 0;
+                String consumer = resultSet.getString(++i);
+                String biblId = resultSet.getString(++i);
+                int agencyId = resultSet.getInt(++i);
+                String stateChange = resultSet.getString(++i);
+                String tracking = resultSet.getString(++i);
+                results.add(consumer + "|" + biblId + "|" + agencyId + "|" + stateChange + "|" + tracking);
+            }
+            System.out.println("results = " + results);
+            assertThat(results, containsInAnyOrder("consa|12345678|888888|{\"a\":\"b\"}|BAR\tFOO",
+                                                   "consb|87654321|888888|{\"c\":\"d\"}|BAR\tFOO",
+                                                   "consb|11111111|888888|{}|BAR"));
+        }
+    }
+
     @Test(timeout = 2_000L)
     public void allLiveBibliographicIdsForAgency() throws Exception {
         System.out.println("allLiveBibliographicIdsForAgency");
@@ -306,6 +421,7 @@ public class HoldingsItemsDAOIT extends JpaBase {
             BibliographicItemDetached entity = BibliographicItemEntity.detachedWithSuperseded(em, agencyId, bibId1);
             assertThat(entity, notNullValue());
         });
+        assertProjection(agencyId, bibId1);
 
         jpa(em -> {
             System.out.println(" `- record 1 superseded by record 2");
@@ -318,6 +434,7 @@ public class HoldingsItemsDAOIT extends JpaBase {
             BibliographicItemDetached entity = BibliographicItemEntity.detachedWithSuperseded(em, agencyId, bibId1);
             assertThat(entity, nullValue());
         });
+        assertProjection(agencyId, bibId1);
 
         jpa(em -> {
             System.out.println(" `- test record 2 with record 1 content");
@@ -343,6 +460,7 @@ public class HoldingsItemsDAOIT extends JpaBase {
                                     allOf(method("getItemId", is("6"))))))
                ));
         });
+        assertProjection(agencyId, bibId2);
 
         jpa(em -> {
             System.out.println(" `- load record 2");
@@ -381,6 +499,7 @@ public class HoldingsItemsDAOIT extends JpaBase {
                                     allOf(method("getItemId", is("6")))
                             )))));
         });
+        assertProjection(agencyId, bibId2);
 
         jpa(em -> {
             System.out.println(" `- clear record 1");
@@ -405,7 +524,125 @@ public class HoldingsItemsDAOIT extends JpaBase {
                                     allOf(method("getItemId", is("4")))
                             )))));
         });
+        assertProjection(agencyId, bibId2);
     }
+
+    @Test(timeout = 2_000L)
+    public void testItemsFromAgencyAndBibliographicRecordIds() throws Exception {
+        System.out.println("testItemsFromAgencyAndBibliographicRecordIds");
+
+        int agencyId = 100000;
+
+        jpa(em -> {
+            for (String bibId : List.of("rec1", "rec2", "rec3")) {
+                BibliographicItemEntity bibliographicItemEntity = BibliographicItemEntity.from(em, agencyId, bibId, Instant.now(), LocalDate.now());
+                bibliographicItemEntity.setTrackingId("track");
+                IssueEntity issueEntity = bibliographicItemEntity.issue("issue", Instant.now());
+                issueEntity.setTrackingId("track");
+                itemEntity(issueEntity, bibId + "-1", Status.ON_SHELF);
+                itemEntity(issueEntity, bibId + "-2", Status.ON_LOAN);
+                bibliographicItemEntity.save();
+            }
+            em.persist(new SupersedesEntity("rec3", "rec2"));
+        });
+
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em);
+            Map<String, Set<ItemEntity>> items = dao.getItemsFromAgencyAndBibliographicRecordIds(agencyId, List.of("rec1", "rec2", "rec3", "rec4"));
+            assertThat(items.keySet(), containsInAnyOrder("rec1", "rec2", "rec3", "rec4"));
+            for (String bibId : items.keySet()) {
+                assertThat(bibId, items.get(bibId), is(dao.getItemsFromAgencyAndBibliographicRecordId(agencyId, bibId)));
+            }
+            assertThat(items.get("rec2").size(), is(4));
+            assertThat(items.get("rec3").isEmpty(), is(true));
+            assertThat(items.get("rec4").isEmpty(), is(true));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testStatusCounters() throws Exception {
+        System.out.println("testStatusCounters");
+
+        int agencyId = 100000;
+
+        jpa(em -> {
+            BibliographicItemEntity bibliographicItemEntity = BibliographicItemEntity.from(em, agencyId, "rec1", Instant.now(), LocalDate.now());
+            bibliographicItemEntity.setTrackingId("track");
+            IssueEntity issueEntity = bibliographicItemEntity.issue("issue", Instant.now());
+            issueEntity.setTrackingId("track");
+            itemEntity(issueEntity, "1", Status.ON_SHELF);
+            itemEntity(issueEntity, "2", Status.ON_SHELF);
+            itemEntity(issueEntity, "3", Status.ON_LOAN);
+            bibliographicItemEntity.save();
+        });
+        assertStatusCounts(agencyId, Map.of(Status.ON_SHELF, 2L, Status.ON_LOAN, 1L));
+
+        jpa(em -> {
+            BibliographicItemEntity bibliographicItemEntity = BibliographicItemEntity.from(em, agencyId, "rec1", Instant.now(), LocalDate.now());
+            IssueEntity issueEntity = bibliographicItemEntity.issue("issue", Instant.now());
+            issueEntity.item("1", Instant.now()).setStatus(Status.ON_LOAN);
+            issueEntity.item("3", Instant.now()).setStatus(Status.ON_LOAN); // Unchanged
+            issueEntity.removeItem(issueEntity.item("2", Instant.now()));
+            bibliographicItemEntity.save();
+        });
+        assertStatusCounts(agencyId, Map.of(Status.ON_LOAN, 2L));
+
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("UPDATE item_status_count SET count = 7");
+        }
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em);
+            assertThat(dao.getStatusCountsByAgency(agencyId, "").getStatusCounts(), is(Map.of(Status.ON_LOAN, 7L, Status.ON_SHELF, 7L)));
+            assertThat(dao.rebuildStatusCountsByAgency(agencyId, "").getStatusCounts(), is(Map.of(Status.ON_LOAN, 2L)));
+        });
+        assertStatusCounts(agencyId, Map.of(Status.ON_LOAN, 2L));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBulkComplete() throws Exception {
+        System.out.println("testBulkComplete");
+        jpa(em -> {
+            BibliographicItemEntity b1 = BibliographicItemEntity.from(em, 870970, "12345678", Instant.MIN, LocalDate.now());
+            fill(b1);
+            IssueEntity c1 = fill(b1.issue("i1", Instant.MIN));
+            fill(c1.item("a", Instant.MIN));
+            fill(c1.item("b", Instant.MIN));
+            b1.save();
+        });
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, "BULK");
+            try (BulkComplete bulk = dao.bulkComplete(870970)) {
+                bulk.record("87654321", "", Instant.now().minusSeconds(60)); // Older duplicate
+                bulk.record("12345678", "Something", Instant.now());
+                bulk.issue("i1", "", null, 0);
+                bulk.item("i1", "a", Status.ON_LOAN, "mybr", "123456", "dep", "fiction", "thriller", "",
+                          LocalDate.now().minusDays(1), null, LoanRestriction.EMPTY);
+                bulk.record("87654321", "", Instant.now());
+                bulk.issue("x", "", null, 0);
+                bulk.item("x", "c", Status.ON_SHELF, "mybr", "123456", "dep", "fiction", "thriller", "",
+                          LocalDate.now().minusDays(1), null, LoanRestriction.EMPTY);
+                int changed = bulk.apply("supa", "supb", new CacheInvalidation());
+                assertThat(changed, is(2));
+                assertThat(bulk.getRecordCount(), is(2L));
+            }
+        });
+        jpa(em -> {
+            assertThat(em.find(ItemEntity.class, new ItemKey(870970, "12345678", "i1", "a")).getStatus(), is(Status.ON_LOAN));
+            assertThat(em.find(ItemEntity.class, new ItemKey(870970, "12345678", "i1", "b")), nullValue());
+            assertThat(em.find(ItemEntity.class, new ItemKey(870970, "87654321", "x", "c")).getTrackingId(), is("BULK"));
+        });
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT consumer, bibliographicRecordId FROM queue")) {
+            HashSet<String> results = new HashSet<>();
+            while (resultSet.next()) {
+                results.add(resultSet.getString(1) + ":" + resultSet.getString(2));
+            }
+            assertThat(results, containsInAnyOrder("consa:12345678", "consa:87654321", "consb:12345678", "consb:87654321"));
+        }
+    }
+
 //  _   _      _                   _____                 _   _
 // | | | | ___| |_ __   ___ _ __  |  ___|   _ _ __   ___| |_(_) ___  _ __  ___
 // | |_| |/ _ \ | '_ \ / _ \ '__| | |_ | | | | '_ \ / __| __| |/ _ \| '_ \/ __|
@@ -452,6 +689,60 @@ public class HoldingsItemsDAOIT extends JpaBase {
         em.persist(new SupersedesEntity("abc", "def"));
     }
 
+    @Test(timeout = 2_000L)
+    public void testAgenciesThatHasHoldingsForIncludingSuperseded() throws Exception {
+        System.out.println("testAgenciesThatHasHoldingsForIncludingSuperseded");
+
+        jpa(em -> {
+            for (int agencyId : List.of(100001, 100002, 100003)) {
+                String bibId = agencyId == 100001 ? "rec1" : "rec2";
+                BibliographicItemEntity bibliographicItemEntity = BibliographicItemEntity.from(em, agencyId, bibId, Instant.now(), LocalDate.now());
+                bibliographicItemEntity.setTrackingId("track");
+                IssueEntity issueEntity = bibliographicItemEntity.issue("issue", Instant.now());
+                issueEntity.setTrackingId("track");
+                itemEntity(issueEntity, "1", agencyId == 100003 ? Status.DISCARDED : Status.ON_SHELF);
+                bibliographicItemEntity.save();
+            }
+            em.persist(new SupersedesEntity("rec2", "rec1"));
+        });
+
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em);
+            assertThat(dao.getAgenciesThatHasHoldingsForIncludingSuperseded("rec1", Status.DISCARDED),
+                       containsInAnyOrder(100001, 100002));
+            assertThat(dao.getAgenciesThatHasHoldingsForIncludingSuperseded("rec2", Status.DISCARDED),
+                       containsInAnyOrder(100002));
+            Map<String, Set<Integer>> agencies = dao.getAgenciesThatHasHoldingsForIncludingSuperseded(List.of("rec1", "rec2", "rec3"), Status.DISCARDED, Status.LOST);
+            assertThat(agencies.get("rec1"), containsInAnyOrder(100001, 100002));
+            assertThat(agencies.get("rec2"), containsInAnyOrder(100002));
+            assertThat(agencies.get("rec3").isEmpty(), is(true));
+        });
+    }
+
+    private void assertProjection(int agencyId, String bibliographicRecordId) throws Exception {
+        jpa(em -> {
+            BibliographicItemDetached entity = BibliographicItemEntity.detachedWithSuperseded(em, agencyId, bibliographicRecordId);
+            try (Connection connection = PG.createConnection()) {
+                CompleteBibliographic projection = CompleteBibliographicProjection.complete(connection, agencyId, bibliographicRecordId);
+                if (entity == null) {
+                    assertThat(projection, nullValue());
+                } else {
+                    CompleteBibliographic expected = entity.toCompleteBibliographic();
+                    assertThat(String.valueOf(projection), is(String.valueOf(expected)));
+                    assertThat(projection.trackingId, is(expected.trackingId));
+                }
+            }
+        });
+    }
+
+    private void assertStatusCounts(int agencyId, Map<Status, Long> expected) throws Exception {
+        jpa(em -> {
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em);
+            assertThat(dao.getStatusCountsByAgency(agencyId, "").getStatusCounts(), is(expected));
+            assertThat(dao.countStatusesByAgency(agencyId, "").getStatusCounts(), is(expected));
+        });
+    }
+
     private ItemEntity itemEntity(IssueEntity issueEntity, String itemId, Status status) {
         ItemEntity itemEntity = issueEntity.item(itemId, Instant.now());
         itemEntity.setAccessionDate(LocalDateTime.ofInstant(Instant.now(), ZoneOffset.UTC).toLocalDate());
@@ -0,0 +1,41 @@
+package dk.dbc.holdingsitems;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import org.junit.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class QueueRulesIT extends JpaBase {
+
+    @Test(timeout = 5_000L)
+    public void testLoadAndNotify() throws Exception {
+        System.out.println("testLoadAndNotify");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("LISTEN holdingsitems_queue_rules");
+
+            QueueRules rules = QueueRules.load(connection);
+            assertThat(rules.consumers("supa"), hasToString("[consa]"));
+            assertThat(rules.consumers("unknown"), empty());
+
+            stmt.executeUpdate("INSERT INTO queue_rules(supplier, consumer, postpone) VALUES('supa', 'consc', 1000)");
+            PGNotification[] notifications = null;
+            while (notifications == null || notifications.length == 0) {
+                notifications = connection.unwrap(PGConnection.class).getNotifications(1_000);
+            }
+            assertThat(notifications[0].getName(), is("holdingsitems_queue_rules"));
+
+            assertThat(rules.consumers("supa"), hasToString("[consa]")); // Snapshot is immutable
+            QueueRules reloaded = QueueRules.load(connection);
+            assertThat(reloaded, notNullValue());
+            assertThat(reloaded.consumers("supa").size(), is(2));
+        }
+    }
+}
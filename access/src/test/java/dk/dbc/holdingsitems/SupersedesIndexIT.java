@@ -0,0 +1,81 @@
+package dk.dbc.holdingsitems;
+
+import dk.dbc.holdingsitems.jpa.SupersedesEntity;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SupersedesIndexIT extends JpaBase {
+
+    @Test(timeout = 5_000L)
+    public void testReloadAndRefresh() throws Exception {
+        System.out.println("testReloadAndRefresh");
+        jpa(em -> {
+            em.persist(new SupersedesEntity("a", "x"));
+            em.persist(new SupersedesEntity("b", "x"));
+            em.persist(new SupersedesEntity("c", "y"));
+        });
+        SupersedesIndex index = new SupersedesIndex();
+        try (Connection connection = PG.createConnection()) {
+            index.reload(connection);
+            assertThat(index.size(), is(3));
+            assertThat(index.supersededBy("a"), is("x"));
+            assertThat(index.supersededBy("x"), nullValue());
+            assertThat(index.supersedes("x"), containsInAnyOrder("a", "b"));
+            assertThat(index.supersedes("a"), empty());
+            Map<String, String> supersededBy = index.supersededBy(List.of("a", "c", "x"));
+            assertThat(supersededBy, is(Map.of("a", "x", "c", "y")));
+
+            jpa(em -> {
+                em.find(SupersedesEntity.class, "b").setSuperseding("y");
+                em.remove(em.find(SupersedesEntity.class, "c"));
+            });
+            index.refresh(connection, List.of("b", "c"));
+            assertThat(index.size(), is(2));
+            assertThat(index.supersededBy("b"), is("y"));
+            assertThat(index.supersededBy("c"), nullValue());
+            assertThat(index.supersedes("x"), containsInAnyOrder("a"));
+            assertThat(index.supersedes("y"), containsInAnyOrder("b"));
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void testChangesAreNotified() throws Exception {
+        System.out.println("testChangesAreNotified");
+        try (Connection connection = PG.createConnection() ;
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("LISTEN holdingsitems_supersedes");
+            jpa(em -> {
+                em.persist(new SupersedesEntity("a", "x"));
+            });
+            jpa(em -> {
+                em.find(SupersedesEntity.class, "a").setSuperseding("y");
+            });
+            jpa(em -> {
+                em.remove(em.find(SupersedesEntity.class, "a"));
+            });
+            PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            ArrayList<String> notified = new ArrayList<>();
+            while (notified.size() < 3) {
+                PGNotification[] notifications = pgConnection.getNotifications(1_000);
+                if (notifications == null)
+                    continue; // Timed out
+                for (PGNotification notification : notifications) {
+                    notified.add(notification.getParameter());
+                }
+            }
+            assertThat(notified, is(List.of("a", "a", "a")));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package dk.dbc.holdingsitems.jpa;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CacheInvalidationTest {
+
+    @Test
+    public void testPayloadSplit() {
+        CacheInvalidation invalidation = new CacheInvalidation();
+        assertThat(invalidation.isEmpty(), is(true));
+        assertThat(invalidation.toPayloads(20), empty());
+
+        invalidation.addSupersedes("12345678")
+                .addSupersedes("23456789")
+                .addSupersedes("34567890");
+        assertThat(invalidation.isEmpty(), is(false));
+        List<String> payloads = invalidation.toPayloads(20); // One line is 11 bytes
+        assertThat(payloads.size(), is(3));
+        assertThat(payloads, everyItem(endsWith("\n")));
+        assertThat(String.join("", invalidation.toPayloads(8000)).split("\n"),
+                   arrayContainingInAnyOrder("S\t12345678", "S\t23456789", "S\t34567890"));
+    }
+}
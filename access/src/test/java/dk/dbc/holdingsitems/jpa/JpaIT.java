@@ -113,4 +113,35 @@ public class JpaIT extends JpaBase {
             assertThat(all.size(), is(2)); // timestamps are truncated (greater precision in newer java)
         });
     }
+
+    @Test(timeout = 2_000L)
+    public void testPrefetch() throws Exception {
+        System.out.println("testPrefetch");
+
+        jpa(em -> {
+            BibliographicItemEntity b1 = BibliographicItemEntity.from(em, 870970, "25912233", Instant.MIN, LocalDate.now())
+                    .prefetch();
+            fill(b1);
+            IssueEntity c1 = b1.issue("i1", Instant.MIN);
+            fill(c1);
+            fill(c1.item("a", Instant.MIN));
+            fill(c1.item("b", Instant.MIN));
+            b1.save();
+        });
+
+        jpa(em -> {
+            BibliographicItemEntity b1 = BibliographicItemEntity.from(em, 870970, "25912233", Instant.MIN, LocalDate.now())
+                    .prefetch();
+            IssueEntity c1 = b1.issue("i1", Instant.MIN);
+            assertThat(c1.isNew(), is(false));
+            assertThat(c1.item("a", Instant.MIN).isNew(), is(false));
+            c1.removeItem(c1.item("b", Instant.MIN));
+            assertThat(c1.item("b", Instant.MIN).isNew(), is(true)); // Removed from the prefetched items
+            IssueEntity c2 = b1.issue("i2", Instant.MIN);
+            assertThat(c2.isNew(), is(true));
+            assertThat(c2.item("c", Instant.MIN).isNew(), is(true));
+            b1.removeIssue(c1);
+            assertThat(b1.issue("i1", Instant.MIN).isNew(), is(true)); // Removed from the prefetched issues
+        });
+    }
 }
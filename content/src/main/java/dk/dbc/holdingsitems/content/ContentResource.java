@@ -11,6 +11,7 @@ import dk.dbc.holdingsitems.HoldingsItemsDAO;
 import dk.dbc.holdingsitems.HoldingsItemsException;
 import dk.dbc.holdingsitems.content.response.AgenciesWithHoldingsResponse;
 import dk.dbc.holdingsitems.content.response.StatusCountResponse;
+import dk.dbc.holdingsitems.content.response.StatusCountVerifyResponse;
 import dk.dbc.holdingsitems.content_dto.CompleteBibliographic;
 import dk.dbc.holdingsitems.content.response.CompleteItemFull;
 import dk.dbc.holdingsitems.content.response.ContentServiceBranchResponse;
@@ -21,30 +22,38 @@ import dk.dbc.holdingsitems.content.response.IndexHtml;
 import dk.dbc.holdingsitems.content.response.LaesekompasHoldingsEntity;
 
 import dk.dbc.holdingsitems.TotalStatusCountsForAgency;
-import dk.dbc.holdingsitems.jpa.BibliographicItemDetached;
-import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.CompleteBibliographicProjection;
 import dk.dbc.holdingsitems.jpa.Status;
-import dk.dbc.holdingsitems.jpa.SupersedesEntity;
 import dk.dbc.log.LogWith;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.annotation.Resource;
 import jakarta.ejb.Stateless;
 import jakarta.inject.Inject;
 import jakarta.persistence.EntityManager;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
-import java.io.PrintStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -52,6 +61,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import javax.sql.DataSource;
 
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toList;
@@ -69,6 +80,15 @@ public class ContentResource {
 
     @Inject
     public IndexHtml indexHtml;
+
+    @Inject
+    SupersedesCache supersedesCache;
+
+    @Resource(lookup = "jdbc/holdings-items")
+    DataSource dataSource;
+
+    private static final int FETCH_SIZE = 10_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
     private static final ObjectMapper O = JsonMapper.builder()
             .enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS)
             .build()
@@ -84,15 +104,9 @@ public class ContentResource {
         try (LogWith l = LogWith.track(trackingId)) {
             l.bibliographicRecordId(bibliographicRecordId);
 
-            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
             try {
-                Set<Integer> agencies = new HashSet<>();
-                agencies.addAll(dao.getAgenciesThatHasHoldingsFor(bibliographicRecordId, Status.DISCARDED));
-                for (String superseded : SupersedesEntity.bySupersedingNoLock(em, bibliographicRecordId)
-                        .map(SupersedesEntity::getSuperseded)
-                        .collect(toList())) {
-                    agencies.addAll(dao.getAgenciesThatHasHoldingsFor(superseded, Status.DISCARDED));
-                }
+                Set<Integer> agencies = dao.getAgenciesThatHasHoldingsForIncludingSuperseded(bibliographicRecordId, Status.DISCARDED);
                 AgenciesWithHoldingsResponse resp = new AgenciesWithHoldingsResponse(agencies, trackingId);
                 return Response.ok(resp).build();
             } catch (HoldingsItemsException e) {
@@ -118,7 +132,7 @@ public class ContentResource {
         try (LogWith l = LogWith.track(trackingId)) {
             l.agencyId(agencyId);
 
-            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
             try {
                 TotalStatusCountsForAgency resp = dao.getStatusCountsByAgency(agencyId, trackingId);
                 return Response.ok(
@@ -132,21 +146,128 @@ public class ContentResource {
         }
     }
 
+    @GET
+    @Path("holdings-per-status/{agencyId}/verify")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response verifyHoldingsPerStatusByAgency(@PathParam("agencyId") Integer agencyId,
+                                                    @QueryParam("trackingId") @LogAs("trackingId") @GenerateTrackingId String trackingId) {
+        log.info("verifyHoldingsPerStatusByAgency({})", agencyId);
+        if (agencyId == null || agencyId < 0) {
+            log.error("holdings-per-status/verify called with no agency");
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        try (LogWith l = LogWith.track(trackingId)) {
+            l.agencyId(agencyId);
+
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+            try {
+                TotalStatusCountsForAgency stored = dao.getStatusCountsByAgency(agencyId, trackingId);
+                TotalStatusCountsForAgency counted = dao.countStatusesByAgency(agencyId, trackingId);
+                StatusCountVerifyResponse resp = new StatusCountVerifyResponse(agencyId, stored.getStatusCounts(), counted.getStatusCounts(), trackingId);
+                if (!resp.ok)
+                    log.warn("Status counters for agencyId: {} are out of sync: {}", agencyId, resp);
+                return Response.ok(resp).build();
+            } catch (HoldingsItemsException e) {
+                log.error("Exception verifying for agencyId: {}: {}", agencyId, e.getMessage());
+                log.debug("Exception verifying for agencyId: {}: ", agencyId, e);
+                return Response.serverError().build();
+            }
+        }
+    }
+
+    @POST
+    @Path("holdings-per-status/{agencyId}/rebuild")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Timed
+    public Response rebuildHoldingsPerStatusByAgency(@PathParam("agencyId") Integer agencyId,
+                                                     @QueryParam("trackingId") @LogAs("trackingId") @GenerateTrackingId String trackingId) {
+        log.info("rebuildHoldingsPerStatusByAgency({})", agencyId);
+        if (agencyId == null || agencyId < 0) {
+            log.error("holdings-per-status/rebuild called with no agency");
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        try (LogWith l = LogWith.track(trackingId)) {
+            l.agencyId(agencyId);
+
+            HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+            try {
+                TotalStatusCountsForAgency resp = dao.rebuildStatusCountsByAgency(agencyId, trackingId);
+                return Response.ok(
+                        new StatusCountResponse(resp.getAgencyId(), resp.getStatusCounts(), resp.getTrackingId()))
+                        .build();
+            } catch (HoldingsItemsException e) {
+                log.error("Exception rebuilding for agencyId: {}: {}", agencyId, e.getMessage());
+                log.debug("Exception rebuilding for agencyId: {}: ", agencyId, e);
+                return Response.serverError().build();
+            }
+        }
+    }
+
     @GET
     @Path("holdings-by-agency-id/{agencyId}")
     @Produces(MediaType.TEXT_PLAIN)
     public Response getHoldingsItems(@PathParam("agencyId") int agencyId,
+                                     @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
                                      @QueryParam("trackingId") @LogAs("trackingId") @GenerateTrackingId String trackingId) {
         log.info("getHoldingsItems({})", agencyId);
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
-        Collection<String> holdingItems = dao.getHoldingItems(agencyId);
+        boolean gzip = acceptsGzip(acceptEncoding);
         StreamingOutput streamingOutput = outputStream -> {
-            PrintStream stream = new PrintStream(outputStream, false, StandardCharsets.UTF_8);
-            for (String holdingItem : holdingItems) {
-                stream.println(holdingItem);
+            try (LogWith l = LogWith.track(trackingId)) {
+                l.agencyId(agencyId);
+                OutputStream out = gzip ? new GZIPOutputStream(outputStream, BUFFER_SIZE) : outputStream;
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+                try (Connection connection = dataSource.getConnection()) {
+                    HoldingsItemsDAO.streamHoldingItems(connection, agencyId, FETCH_SIZE, holdingItem -> {
+                        try {
+                            writer.write(holdingItem);
+                            writer.write('\n');
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                } catch (SQLException ex) {
+                    log.error("Error streaming holdings for agency: {}: {}", agencyId, ex.getMessage());
+                    log.debug("Error streaming holdings for agency: {}: ", agencyId, ex);
+                    throw new IOException("Error streaming holdings", ex);
+                }
+                writer.flush();
+                if (gzip)
+                    ( (GZIPOutputStream) out ).finish();
             }
         };
-        return Response.ok(streamingOutput).build();
+        Response.ResponseBuilder response = Response.ok(streamingOutput)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip)
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return response.build();
+    }
+
+    /**
+     * Check if an Accept-Encoding header allows gzip
+     *
+     * @param acceptEncoding header value (nullable)
+     * @return if gzip is accepted
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i = 1 ; i < parts.length ; i++) {
+                    String parameter = parts[i].trim().replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?"))
+                        return false;
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
     @GET
@@ -168,7 +289,7 @@ public class ContentResource {
             }
         }
         log.debug("holdings-by-item-id called with agency: {}, itemId: {}, trackingId: {}", agencyId, itemId, trackingId);
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
         List<CompleteItemFull> itemEntities = dao.getItemsFromAgencyIdAndItemId(agencyId, itemId)
                 .stream()
                 .map(CompleteItemFull::from)
@@ -200,7 +321,7 @@ public class ContentResource {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
         log.debug("holdings-by-branch called with branch {},  pids: {}, trackingId: {}", branchId, pids, trackingId);
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
         Set<String> bibliographicIds = pids.stream().map(s -> s.replaceFirst("^\\d+-[a-z0-9]+:", "")).collect(toSet());
 
         try {
@@ -243,14 +364,14 @@ public class ContentResource {
             }
         }
         log.debug("holdings-by-pid called with agency {}, pids: {}, trackingId: {}", agencyId, pids, trackingId);
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
         Map<String, String> pidToBibl = pids.stream()
                 .distinct()
                 .collect(Collectors.toMap(identity(), p -> p.split(":", 2)[1]));
 
-        Map<String, List<CompleteItemFull>> biblToItems = pidToBibl.values().stream()
-                .distinct()
-                .collect(Collectors.toMap(identity(), b -> dao.getItemsFromAgencyAndBibliographicRecordId(agencyId, (String) b)
+        Map<String, List<CompleteItemFull>> biblToItems = dao.getItemsFromAgencyAndBibliographicRecordIds(agencyId, new HashSet<>(pidToBibl.values()))
+                .entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue()
                                           .stream()
                                           .map(CompleteItemFull::from)
                                           .collect(toList())));
@@ -280,7 +401,7 @@ public class ContentResource {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
         log.debug("holdings-by-bibliographicrecordids called with trackingId {} and bibRecordId-list of length {}", trackingId, bibRecordIdList.size());
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
         Map<String, Iterable<LaesekompasHoldingsEntity>> res = new HashMap<>();
         for (String bibliographicRecordId : bibRecordIdList) {
             List<Object[]> laesekompasObjects = dao.getAgencyBranchStringsForBibliographicRecordId(bibliographicRecordId);
@@ -305,15 +426,24 @@ public class ContentResource {
         try (LogWith l = LogWith.track(trackingId)) {
             l.agencyId(agencyId).bibliographicRecordId(bibliographicRecordId);
 
-            BibliographicItemDetached detached = BibliographicItemEntity.detachedWithSuperseded(em, agencyId, bibliographicRecordId);
+            CompleteBibliographic resp;
+            try {
+                // The connection of the current transaction, so pending changes are seen
+                em.flush();
+                Connection connection = em.unwrap(Connection.class);
+                resp = CompleteBibliographicProjection.complete(connection, agencyId, bibliographicRecordId);
+            } catch (SQLException ex) {
+                log.error("Exception requesting complete {}:{}: {}", agencyId, bibliographicRecordId, ex.getMessage());
+                log.debug("Exception requesting complete {}:{}: ", agencyId, bibliographicRecordId, ex);
+                return Response.serverError().build();
+            }
 
-            if (detached == null) {
+            if (resp == null) {
                 log.info("Requested complete {}:{} Not found", agencyId, bibliographicRecordId);
                 return Response.status(Response.Status.NOT_FOUND).header("X-DBC-Status", "200 OK").build();
             }
 
             log.info("Requested complete {}:{}", agencyId, bibliographicRecordId);
-            CompleteBibliographic resp = detached.toCompleteBibliographic();
             resp.trackingId = trackingId;
             return Response.ok(resp).build();
         }
@@ -0,0 +1,172 @@
+package dk.dbc.holdingsitems.content;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.enterprise.concurrent.ManagedExecutorService;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One database connection, that LISTENs for PostgreSQL notifications on behalf
+ * of a number of in memory caches
+ * <p>
+ * All handler methods are called from the same thread, with the listening
+ * connection, so handlers needn't synchronize with each other.
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DatabaseListener {
+
+    private static final Logger log = LoggerFactory.getLogger(DatabaseListener.class);
+
+    private static final int POLL_MS = 1_000;
+    private static final int RECONNECT_MS = 5_000;
+
+    @Resource(lookup = ContentServiceConfiguration.DATABASE)
+    DataSource dataSource;
+
+    @Resource(type = ManagedExecutorService.class)
+    ExecutorService executor;
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running;
+
+    /**
+     * Callbacks for a channel
+     */
+    public interface Handler {
+
+        /**
+         * Called when the channel is being listened to, the cache should be
+         * (re)loaded, since notifications could have been lost
+         *
+         * @param connection the listening connection
+         * @throws SQLException if the database communication fails
+         */
+        void connected(Connection connection) throws SQLException;
+
+        /**
+         * Called with the payloads of notifications received
+         *
+         * @param connection the listening connection
+         * @param payloads   the payloads in the order they were sent
+         * @throws SQLException if the database communication fails
+         */
+        void notified(Connection connection, List<String> payloads) throws SQLException;
+
+        /**
+         * Called about every second, for periodic maintenance
+         *
+         * @param connection the listening connection
+         * @throws SQLException if the database communication fails
+         */
+        default void idle(Connection connection) throws SQLException {
+        }
+
+        /**
+         * Called when the connection is lost, notifications will not arrive
+         * until {@link #connected(java.sql.Connection)} is called
+         */
+        void disconnected();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+    }
+
+    /**
+     * Start listening on a channel
+     *
+     * @param channel name of the channel (should be a valid SQL identifier)
+     * @param handler the callbacks
+     */
+    public void register(String channel, Handler handler) {
+        if (handlers.putIfAbsent(channel, handler) != null)
+            throw new IllegalStateException("Channel " + channel + " already has a handler");
+        if (started.compareAndSet(false, true)) {
+            running = true;
+            executor.execute(this::listen);
+        }
+    }
+
+    private void listen() {
+        while (running) {
+            HashSet<String> listening = new HashSet<>();
+            try (Connection connection = dataSource.getConnection() ;
+                 Statement stmt = connection.createStatement()) {
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    listenToNew(connection, stmt, listening);
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_MS);
+                    if (notifications != null && notifications.length != 0)
+                        dispatch(connection, notifications);
+                    for (String channel : listening) {
+                        handlers.get(channel).idle(connection);
+                    }
+                }
+            } catch (SQLException | RuntimeException ex) {
+                log.error("Error listening for database notifications: {}", ex.getMessage());
+                log.debug("Error listening for database notifications: ", ex);
+                sleep();
+            } finally {
+                for (String channel : listening) {
+                    handlers.get(channel).disconnected();
+                }
+            }
+        }
+    }
+
+    private void listenToNew(Connection connection, Statement stmt, Set<String> listening) throws SQLException {
+        for (Map.Entry<String, Handler> entry : handlers.entrySet()) {
+            String channel = entry.getKey();
+            if (listening.contains(channel))
+                continue;
+            stmt.execute("LISTEN " + channel);
+            listening.add(channel);
+            log.info("Listening on {}", channel);
+            entry.getValue().connected(connection);
+        }
+    }
+
+    private void dispatch(Connection connection, PGNotification[] notifications) throws SQLException {
+        HashMap<String, List<String>> payloads = new HashMap<>();
+        for (PGNotification notification : notifications) {
+            payloads.computeIfAbsent(notification.getName(), c -> new ArrayList<>())
+                    .add(notification.getParameter());
+        }
+        for (Map.Entry<String, List<String>> entry : payloads.entrySet()) {
+            Handler handler = handlers.get(entry.getKey());
+            if (handler != null)
+                handler.notified(connection, entry.getValue());
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(RECONNECT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -22,6 +22,16 @@ public class JacksonObjectMapperProvider implements ContextResolver<ObjectMapper
             .registerModule(new JavaTimeModule())
             .setSerializationInclusion(JsonInclude.Include.NON_NULL);
 
+    /**
+     * The mapper used by the REST api, for (de)serializing outside of JAX-RS
+     *
+     * @return shared object mapper
+     */
+    @SuppressFBWarnings("MS_EXPOSE_REP")
+    public static ObjectMapper mapper() {
+        return O;
+    }
+
     @Override
     @SuppressFBWarnings("EI_EXPOSE_REP")
     public ObjectMapper getContext(Class<?> type) {
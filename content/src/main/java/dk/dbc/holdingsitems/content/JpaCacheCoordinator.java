@@ -0,0 +1,99 @@
+package dk.dbc.holdingsitems.content;
+
+import dk.dbc.holdingsitems.jpa.CacheCustomizer;
+import dk.dbc.holdingsitems.jpa.CacheInvalidation;
+import dk.dbc.holdingsitems.jpa.CacheStatistics;
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceUnit;
+import java.sql.Connection;
+import java.util.List;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the shared JPA cache coherent across nodes
+ * <p>
+ * Changes are published using PostgreSQL NOTIFY, in the transaction that makes
+ * the change, so they're only delivered when the transaction commits. Every
+ * node (including the one making the change) LISTENs and evicts the changed
+ * entities from its cache (using {@link DatabaseListener}). If the listener
+ * loses its connection, the entire cache is evicted, since notifications
+ * could have been lost.
+ * <p>
+ * This does nothing unless {@link CacheCustomizer} has enabled caching of an
+ * entity.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class JpaCacheCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(JpaCacheCoordinator.class);
+
+    private static final String CHANNEL = "holdingsitems_jpa_cache";
+    private static final int MAX_PAYLOAD_BYTES = 7000; // PostgreSQL limit is 8000
+
+    @PersistenceUnit(unitName = "holdingsItems_PU")
+    EntityManagerFactory emf;
+
+    @Inject
+    DatabaseListener listener;
+
+    @Inject
+    MetricRegistry metrics;
+
+    @PostConstruct
+    public void init() {
+        emf.getMetamodel(); // Ensure the persistence unit has been deployed, and CacheCustomizer has been run
+        if (!CacheCustomizer.isEnabled()) {
+            log.info("JPA shared cache is disabled");
+            return;
+        }
+        metrics.gauge("jpa_cache_hits", CacheStatistics::hits);
+        metrics.gauge("jpa_cache_misses", CacheStatistics::misses);
+        listener.register(CHANNEL, new DatabaseListener.Handler() {
+            @Override
+            public void connected(Connection connection) {
+                emf.getCache().evictAll(); // Invalidations could have been lost while not listening
+            }
+
+            @Override
+            public void notified(Connection connection, List<String> payloads) {
+                for (String payload : payloads) {
+                    CacheInvalidation.evict(emf.getCache(), payload);
+                }
+            }
+
+            @Override
+            public void disconnected() {
+                emf.getCache().evictAll();
+            }
+        });
+    }
+
+    /**
+     * Publish cache invalidation to all nodes, when the current transaction
+     * commits
+     *
+     * @param em           entity manager participating in the transaction
+     * @param invalidation the entities that has been changed
+     */
+    public void publish(EntityManager em, CacheInvalidation invalidation) {
+        if (!CacheCustomizer.isEnabled() || invalidation.isEmpty())
+            return;
+        for (String payload : invalidation.toPayloads(MAX_PAYLOAD_BYTES)) {
+            em.createNativeQuery("SELECT pg_notify(?, ?)")
+                    .setParameter(1, CHANNEL)
+                    .setParameter(2, payload)
+                    .getSingleResult();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package dk.dbc.holdingsitems.content;
+
+import dk.dbc.holdingsitems.HoldingsItemsException;
+import dk.dbc.holdingsitems.QueueRules;
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide snapshot of the queue_rules table
+ * <p>
+ * The table is reloaded when PostgreSQL NOTIFYs about a change (trigger on
+ * the queue_rules table), and periodically as a safety net.
+ * <p>
+ * If the snapshot isn't up to date (not listening, or no successful reload
+ * within twice the max age) {@link #rules()} returns null, meaning the rules
+ * should be read from the database.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class QueueRulesCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueRulesCache.class);
+
+    private static final String CHANNEL = "holdingsitems_queue_rules";
+
+    @Inject
+    DatabaseListener listener;
+
+    @Inject
+    MetricRegistry metrics;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_RULES_MAX_AGE", defaultValue = "300")
+    long maxAge;
+
+    private volatile QueueRules rules;
+    private volatile boolean listening;
+
+    @PostConstruct
+    public void init() {
+        if (maxAge <= 0) {
+            log.info("Queue rules cache is disabled");
+            return;
+        }
+        metrics.gauge("queue_rules_age_ms", () -> {
+            QueueRules current = rules;
+            return current == null ? -1L : System.currentTimeMillis() - current.getLoadedAt();
+        });
+        listener.register(CHANNEL, new DatabaseListener.Handler() {
+            @Override
+            public void connected(Connection connection) throws SQLException {
+                reload(connection);
+                listening = true;
+            }
+
+            @Override
+            public void notified(Connection connection, List<String> payloads) throws SQLException {
+                reload(connection);
+            }
+
+            @Override
+            public void idle(Connection connection) throws SQLException {
+                QueueRules current = rules;
+                if (current == null || System.currentTimeMillis() - current.getLoadedAt() >= maxAge * 1_000L)
+                    reload(connection);
+            }
+
+            @Override
+            public void disconnected() {
+                listening = false;
+            }
+        });
+    }
+
+    /**
+     * The queue rules, if they're up to date
+     *
+     * @return snapshot or null if the rules should be read from the database
+     */
+    public QueueRules rules() {
+        QueueRules current = rules;
+        if (listening && current != null && System.currentTimeMillis() - current.getLoadedAt() < maxAge * 2_000L)
+            return current;
+        return null;
+    }
+
+    private void reload(Connection connection) throws SQLException {
+        try {
+            rules = QueueRules.load(connection);
+            log.debug("Reloaded queue rules: {}", rules);
+        } catch (HoldingsItemsException ex) {
+            throw new SQLException("Cannot load queue rules", ex);
+        }
+    }
+}
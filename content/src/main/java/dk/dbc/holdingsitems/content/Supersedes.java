@@ -7,6 +7,7 @@ import dk.dbc.holdingsitems.HoldingsItemsDAO;
 import dk.dbc.holdingsitems.HoldingsItemsException;
 import dk.dbc.holdingsitems.content.request.SupersedesRequest;
 import dk.dbc.holdingsitems.content.response.StatusResponse;
+import dk.dbc.holdingsitems.jpa.CacheInvalidation;
 import dk.dbc.holdingsitems.jpa.SupersedesEntity;
 import java.util.HashSet;
 import java.util.List;
@@ -42,10 +43,20 @@ public class Supersedes {
     @Inject
     EntityManager em;
 
+    @Inject
+    JpaCacheCoordinator cacheCoordinator;
+
+    @Inject
+    QueueRulesCache queueRulesCache;
+
     @ConfigProperty(name = "SUPERSEDES_SUPPLIER", defaultValue = "SUPERSEDES")
     @Inject
     String supplier;
 
+    @ConfigProperty(name = "ENQUEUE_COALESCE", defaultValue = "false")
+    @Inject
+    boolean enqueueCoalesce;
+
     @GET
     @Path("{faust}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -69,6 +80,9 @@ public class Supersedes {
         log.info("delete({})", faust);
         List<SupersedesEntity> owned = SupersedesEntity.bySuperseding(em, faust);
         owned.forEach(em::remove);
+        CacheInvalidation cacheInvalidation = new CacheInvalidation();
+        owned.forEach(e -> cacheInvalidation.addSupersedes(e.getSuperseded()));
+        cacheCoordinator.publish(em, cacheInvalidation);
         try {
             HashSet<String> fausts = new HashSet<>();
             fausts.add(faust);
@@ -94,7 +108,9 @@ public class Supersedes {
 
         boolean isOvertaken = em.find(SupersedesEntity.class, faust) != null; // Someone has overtaken this
         if (!isOvertaken) {
+            CacheInvalidation cacheInvalidation = new CacheInvalidation();
             request.supersedes.forEach(overtaken -> {
+                cacheInvalidation.addSupersedes(overtaken);
                 SupersedesEntity entity = em.find(SupersedesEntity.class, overtaken);
                 if (entity != null) {
                     entity.setSuperseding(faust);
@@ -104,6 +120,7 @@ public class Supersedes {
                     em.persist(entity);
                 }
             });
+            cacheCoordinator.publish(em, cacheInvalidation);
 
             try {
                 HashSet<String> fausts = new HashSet<>();
@@ -131,7 +148,7 @@ public class Supersedes {
         for (String faust : fausts) {
             agencies.addAll(dao.getAgenciesThatHasHoldingsFor(faust));
         }
-        try (EnqueueService enqueueService = dao.enqueueService()) {
+        try (EnqueueService enqueueService = dao.bufferedEnqueueService(queueRulesCache.rules(), enqueueCoalesce)) {
             for (String faust : fausts) {
                 for (int agency : agencies) {
                     enqueueService.enqueue(supplier, agency, faust);
@@ -0,0 +1,106 @@
+package dk.dbc.holdingsitems.content;
+
+import dk.dbc.holdingsitems.SupersedesIndex;
+import dk.dbc.holdingsitems.SupersedesResolver;
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an in memory copy of the supersedes table
+ * <p>
+ * The table is loaded at startup, and every row changed is re-read when
+ * PostgreSQL NOTIFYs about it (trigger on the supersedes table). As a safety
+ * net the entire table is reloaded periodically.
+ * <p>
+ * If the index isn't up to date (not listening, or no successful reload
+ * within twice the max age) {@link #resolver()} returns null, meaning the
+ * database should be used.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class SupersedesCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SupersedesCache.class);
+
+    private static final String CHANNEL = "holdingsitems_supersedes";
+
+    @Inject
+    DatabaseListener listener;
+
+    @Inject
+    MetricRegistry metrics;
+
+    @Inject
+    @ConfigProperty(name = "SUPERSEDES_INDEX_MAX_AGE", defaultValue = "300")
+    long maxAge;
+
+    private final SupersedesIndex index = new SupersedesIndex();
+    private volatile boolean listening;
+    private volatile long reloadedAt;
+
+    @PostConstruct
+    public void init() {
+        if (maxAge <= 0) {
+            log.info("Supersedes index is disabled");
+            return;
+        }
+        metrics.gauge("supersedes_index_size", index::size);
+        metrics.gauge("supersedes_index_age_ms", () -> System.currentTimeMillis() - reloadedAt);
+        listener.register(CHANNEL, new DatabaseListener.Handler() {
+            @Override
+            public void connected(Connection connection) throws SQLException {
+                reload(connection); // Changes could have been lost while not listening
+                listening = true;
+            }
+
+            @Override
+            public void notified(Connection connection, List<String> payloads) throws SQLException {
+                index.refresh(connection, payloads);
+            }
+
+            @Override
+            public void idle(Connection connection) throws SQLException {
+                if (System.currentTimeMillis() - reloadedAt >= maxAge * 1_000L)
+                    reload(connection);
+            }
+
+            @Override
+            public void disconnected() {
+                listening = false;
+            }
+        });
+    }
+
+    /**
+     * The in memory supersedes lookup, if it is up to date
+     * <p>
+     * This should not be used in transactions that change the supersedes
+     * table, since changes are only seen when they're committed
+     *
+     * @return resolver or null if the database should be used
+     */
+    public SupersedesResolver resolver() {
+        if (listening && System.currentTimeMillis() - reloadedAt < maxAge * 2_000L)
+            return index;
+        return null;
+    }
+
+    private void reload(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        index.reload(connection);
+        reloadedAt = now;
+        log.debug("Reloaded supersedes index with {} rows", index.size());
+    }
+}
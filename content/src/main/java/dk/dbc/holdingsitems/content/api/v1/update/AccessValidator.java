@@ -28,10 +28,13 @@ import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.ejb.EJBException;
 import jakarta.ejb.Stateless;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
@@ -66,6 +69,17 @@ public class AccessValidator {
     @ConfigProperty(name = "IDP_RIGHTS")
     String idpRights;
 
+    @Inject
+    @ConfigProperty(name = "IDP_CONNECT_TIMEOUT_MS", defaultValue = "2500")
+    long idpConnectTimeout;
+
+    @Inject
+    @ConfigProperty(name = "IDP_READ_TIMEOUT_MS", defaultValue = "10000")
+    long idpReadTimeout;
+
+    @Inject
+    AuthenticationCache cache;
+
     private Client client;
 
     private URI uri;
@@ -74,7 +88,10 @@ public class AccessValidator {
 
     @PostConstruct
     public void setup() {
-        client = ClientBuilder.newClient();
+        client = ClientBuilder.newBuilder()
+                .connectTimeout(idpConnectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(idpReadTimeout, TimeUnit.MILLISECONDS)
+                .build();
 
         uri = UriBuilder.fromUri(idpUrl).path("authorize").build();
 
@@ -85,6 +102,11 @@ public class AccessValidator {
         name = idpRule[1];
     }
 
+    @PreDestroy
+    public void destroy() {
+        client.close();
+    }
+
     /**
      * Check a user against access system
      *
@@ -100,11 +122,33 @@ public class AccessValidator {
             throw new UpdateException(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR, "Missing required authentication");
         }
 
+        String key = cache.key(auth);
+        Boolean allowed = cache.lookup(key);
+        if (allowed == null) {
+            allowed = authorize(auth);
+            cache.store(key, allowed);
+        }
+        if (!allowed)
+            throw new UpdateException(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR, "Invalid authentication - update not allowed");
+        int actualAgencyId = Integer.parseInt(auth.getGroupIdAut());
+        if (actualAgencyId != expectedAgencyId)
+            throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_INVALID_AGENCY, "Authenticated agencyId mismatched updated agencyId");
+    }
+
+    /**
+     * Ask the IDP if a user has the required right
+     *
+     * @param auth Authentication class from soap request
+     * @return if the user is authenticated and has the right
+     * @throws UpdateException If the IDP cannot be asked
+     */
+    private boolean authorize(Authentication auth) throws UpdateException {
         AuthenticationRequest req = new AuthenticationRequest();
         req.withUserIdAut(auth.getUserIdAut());
         req.withAgencyId(auth.getGroupIdAut());
         req.withPasswordAut(auth.getPasswordAut());
         log.debug("req = {}", req);
+        long start = System.nanoTime();
         try {
             String payload = O.writeValueAsString(req);
             try (InputStream is = client.target(uri)
@@ -114,18 +158,12 @@ public class AccessValidator {
                     .invoke(InputStream.class)) {
                 AuthenticationResponse response = O.readValue(is, AuthenticationResponse.class);
                 log.debug("response = {}", response);
-                if (response.isAuthenticated() &&
-                    response.getRights() != null &&
-                    response.getRights().stream()
-                            .anyMatch(r -> r.getProductName().equalsIgnoreCase(productName) &&
-                                             r.getName().equalsIgnoreCase(name))) {
-                    int actualAgencyId = Integer.parseInt(auth.getGroupIdAut());
-                    if (actualAgencyId != expectedAgencyId)
-                        throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_INVALID_AGENCY, "Authenticated agencyId mismatched updated agencyId");
-                } else {
-                    throw new UpdateException(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR, "Invalid authentication - update not allowed");
-                }
-            } catch (IOException | WebApplicationException ex) {
+                return response.isAuthenticated() &&
+                       response.getRights() != null &&
+                       response.getRights().stream()
+                               .anyMatch(r -> r.getProductName().equalsIgnoreCase(productName) &&
+                                              r.getName().equalsIgnoreCase(name));
+            } catch (IOException | WebApplicationException | ProcessingException ex) {
                 log.error("Error fetching data from IDP: {}", ex.getMessage());
                 log.debug("Error fetching data from IDP: ", ex);
                 throw new UpdateException(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR, "Invalid authentication");
@@ -134,6 +172,8 @@ public class AccessValidator {
             log.error("Error parsing json: {}", ex.getMessage());
             log.debug("Error parsing json: ", ex);
             throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "Cannot process authorization response");
+        } finally {
+            cache.idpRequest(System.nanoTime() - start);
         }
     }
 }
@@ -0,0 +1,200 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.holdingsitems.content.DatabaseListener;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedExecutorService;
+import jakarta.inject.Inject;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threads applying staged (async) update requests
+ * <p>
+ * Workers are woken when PostgreSQL NOTIFYs about new staged requests
+ * (trigger on the update_staging table), and poll every second as a safety
+ * net. Every worker uses 1 database connection while applying a request.
+ * <p>
+ * The listening connection is used for counting pending requests, and for
+ * purging applied requests, that are older than the configured retention.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class AsyncUpdateWorkers {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncUpdateWorkers.class);
+
+    private static final String CHANNEL = "holdingsitems_update_staging";
+    private static final long WAIT_MS = 1_000L;
+    private static final long PURGE_INTERVAL_MS = 60_000L;
+
+    @Inject
+    DatabaseListener listener;
+
+    @Inject
+    MetricRegistry metrics;
+
+    @Inject
+    UpdateStaging staging;
+
+    @Resource(type = ManagedExecutorService.class)
+    ExecutorService executor;
+
+    @Inject
+    @ConfigProperty(name = "ASYNC_UPDATE_THREADS", defaultValue = "0")
+    int threads;
+
+    @Inject
+    @ConfigProperty(name = "ASYNC_UPDATE_KEEP_HOURS", defaultValue = "24")
+    int keepHours;
+
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Object wakeup = new Object();
+    private long generation; // guarded by wakeup
+    private volatile boolean running;
+    private volatile long pending = -1;
+    private long purgedAt; // only used from the listener thread
+
+    @PostConstruct
+    public void init() {
+        if (threads <= 0) {
+            log.info("Async update is disabled");
+            return;
+        }
+        running = true;
+        metrics.gauge("async_update_applied", applied::sum);
+        metrics.gauge("async_update_failed", failed::sum);
+        metrics.gauge("async_update_pending", () -> pending);
+        listener.register(CHANNEL, new DatabaseListener.Handler() {
+            @Override
+            public void connected(Connection connection) throws SQLException {
+                wake(); // Notifications could have been lost while not listening
+            }
+
+            @Override
+            public void notified(Connection connection, List<String> payloads) throws SQLException {
+                wake();
+            }
+
+            @Override
+            public void idle(Connection connection) throws SQLException {
+                pending = countPending(connection);
+                purge(connection);
+            }
+
+            @Override
+            public void disconnected() {
+                pending = -1;
+            }
+        });
+        for (int i = 0 ; i < threads ; i++) {
+            executor.execute(this::work);
+        }
+        log.info("Started {} async update workers", threads);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        wake();
+    }
+
+    /**
+     * Are staged requests being applied by this instance
+     *
+     * @return if async requests should be accepted
+     */
+    public boolean isEnabled() {
+        return running;
+    }
+
+    private void work() {
+        while (running) {
+            long seen = generation();
+            try {
+                List<HoldingsItemsUpdateStatusEnum> statuses = staging.applyNext();
+                if (statuses.isEmpty())
+                    awaitWakeup(seen);
+                for (HoldingsItemsUpdateStatusEnum status : statuses) {
+                    if (status == HoldingsItemsUpdateStatusEnum.OK) {
+                        applied.increment();
+                    } else {
+                        failed.increment();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                log.error("Error applying staged updates: {}", ex.getMessage());
+                log.debug("Error applying staged updates: ", ex);
+                awaitWakeup(Long.MIN_VALUE); // Don't spin on database errors
+            }
+        }
+    }
+
+    private void wake() {
+        synchronized (wakeup) {
+            generation++;
+            wakeup.notifyAll();
+        }
+    }
+
+    private long generation() {
+        synchronized (wakeup) {
+            return generation;
+        }
+    }
+
+    private void awaitWakeup(long seen) {
+        long until = System.currentTimeMillis() + WAIT_MS;
+        synchronized (wakeup) {
+            try {
+                while (running && ( generation == seen || seen == Long.MIN_VALUE )) {
+                    long left = until - System.currentTimeMillis();
+                    if (left <= 0)
+                        break;
+                    wakeup.wait(left);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+
+    private static long countPending(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement() ;
+             ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM update_staging WHERE state IN ('PENDING', 'RUNNING')")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0L;
+        }
+    }
+
+    private void purge(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - purgedAt < PURGE_INTERVAL_MS)
+            return;
+        purgedAt = now;
+        try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM update_staging WHERE state IN ('DONE', 'FAILED') AND applied < clock_timestamp() - make_interval(hours => ?)")) {
+            stmt.setInt(1, keepHours);
+            int purged = stmt.executeUpdate();
+            if (purged > 0)
+                log.info("Purged {} applied async updates", purged);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.Authentication;
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.EJBException;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide cache of IDP authorization results
+ * <p>
+ * Entries are keyed by a SHA-256 hash of user, group and password, so no
+ * credentials are kept in memory. Successful authorizations are kept for
+ * IDP_CACHE_TTL seconds, rejections for IDP_CACHE_NEGATIVE_TTL seconds.
+ * Errors talking to the IDP are never cached.
+ * <p>
+ * When the cache is full, expired entries are purged, if that isn't enough
+ * the oldest entries are evicted, until it is 90% full.
+ * <p>
+ * Metrics are only registered when the bean is initialized (not in tests).
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class AuthenticationCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthenticationCache.class);
+
+    @Inject
+    MetricRegistry metrics;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_TTL", defaultValue = "60")
+    long ttl;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_NEGATIVE_TTL", defaultValue = "10")
+    long negativeTtl;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_MAX_SIZE", defaultValue = "10000")
+    int maxSize;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private Counter hits;
+    private Counter negativeHits;
+    private Counter misses;
+    private Counter evictions;
+    private Timer idpRequests;
+
+    @PostConstruct
+    public void init() {
+        if (ttl <= 0 && negativeTtl <= 0)
+            log.info("Authentication cache is disabled");
+        hits = metrics.counter("idp_cache_hit");
+        negativeHits = metrics.counter("idp_cache_negative_hit");
+        misses = metrics.counter("idp_cache_miss");
+        evictions = metrics.counter("idp_cache_eviction");
+        metrics.gauge("idp_cache_size", entries::size);
+        idpRequests = metrics.timer("idp_request_time");
+    }
+
+    /**
+     * Make a cache key from credentials
+     *
+     * @param auth the credentials from the request
+     * @return hex encoded hash
+     */
+    public String key(Authentication auth) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, auth.getUserIdAut());
+            update(digest, auth.getGroupIdAut());
+            update(digest, auth.getPasswordAut());
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new EJBException("Cannot hash credentials", ex);
+        }
+    }
+
+    /**
+     * Look up a previous authorization result
+     *
+     * @param key from {@link #key(Authentication)}
+     * @return if access was granted, or null if unknown/expired
+     */
+    public Boolean lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            count(misses, 1);
+            return null;
+        }
+        count(entry.allowed ? hits : negativeHits, 1);
+        return entry.allowed;
+    }
+
+    /**
+     * Remember an authorization result from the IDP
+     *
+     * @param key     from {@link #key(Authentication)}
+     * @param allowed if access was granted
+     */
+    public void store(String key, boolean allowed) {
+        long seconds = allowed ? ttl : negativeTtl;
+        if (seconds <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        if (entries.size() >= maxSize)
+            evict(now);
+        entries.put(key, new Entry(allowed, now + seconds * 1_000L, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Register the duration of a call to the IDP
+     *
+     * @param nanos how long the call took
+     */
+    public void idpRequest(long nanos) {
+        if (idpRequests != null)
+            idpRequests.update(Duration.ofNanos(nanos));
+    }
+
+    /**
+     * Make room in a full cache
+     *
+     * @param now current time in milliseconds
+     */
+    private void evict(long now) {
+        int size = entries.size();
+        entries.values().removeIf(e -> e.expires < now);
+        int excess = entries.size() - maxSize * 9 / 10;
+        if (excess > 0) {
+            log.info("Authentication cache is full ({} entries), evicting the {} oldest", maxSize, excess);
+            List<String> oldest = entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().sequence))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+            oldest.forEach(entries::remove);
+        }
+        count(evictions, Math.max(0, size - entries.size()));
+    }
+
+    private static void count(Counter counter, long n) {
+        if (counter != null)
+            counter.inc(n);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null)
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static final class Entry {
+
+        private final boolean allowed;
+        private final long expires;
+        private final long sequence;
+
+        private Entry(boolean allowed, long expires, long sequence) {
+            this.allowed = allowed;
+            this.expires = expires;
+            this.sequence = sequence;
+        }
+    }
+}
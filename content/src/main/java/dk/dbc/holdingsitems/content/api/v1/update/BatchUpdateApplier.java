@@ -0,0 +1,88 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.holdingsitems.HoldingsItemsException;
+import dk.dbc.log.LogWith;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import jakarta.annotation.Resource;
+import jakarta.ejb.SessionContext;
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a batch of holdingsItemsUpdate requests in one transaction
+ * <p>
+ * Every request is applied with its own trackingId. If one of them fails, the
+ * transaction is rolled back, and the caller should apply the rest again
+ * without it (see {@link UpdateV1#batchHoldingsItemsUpdate(List)}).
+ */
+@Stateless
+public class BatchUpdateApplier {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchUpdateApplier.class);
+
+    @Inject
+    UpdateV1Logic updateLogic;
+
+    @Inject
+    UpdateMetrics updateMetrics;
+
+    @Resource
+    SessionContext context;
+
+    /**
+     * Apply requests in one transaction
+     *
+     * @param requests the requests (validated, authentication removed)
+     * @return null if all were applied, otherwise the request that failed,
+     *         and nothing has been applied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Failure applyAll(List<HoldingsItemsUpdateRequest> requests) {
+        ArrayList<UpdateTrace> traces = new ArrayList<>(requests.size());
+        for (int i = 0 ; i < requests.size() ; i++) {
+            HoldingsItemsUpdateRequest request = requests.get(i);
+            UpdateTrace trace = new UpdateTrace("update", request.getTrackingId());
+            try (LogWith l = LogWith.track(request.getTrackingId())) {
+                updateLogic.update(request, trace);
+                traces.add(trace);
+            } catch (UpdateException ex) {
+                return failed(requests, i, trace, ex.getStatus(), ex.getMessage());
+            } catch (HoldingsItemsException | RuntimeException ex) {
+                return failed(requests, i, trace, HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+            }
+        }
+        traces.forEach(updateMetrics::record); // Commit isn't included, it happens later
+        return null;
+    }
+
+    private Failure failed(List<HoldingsItemsUpdateRequest> requests, int index, UpdateTrace trace, HoldingsItemsUpdateStatusEnum status, String message) {
+        try (LogWith l = LogWith.track(requests.get(index).getTrackingId())) {
+            log.error("Batch of {} updates failed at {}: {}", requests.size(), index, message);
+        }
+        updateMetrics.record(trace.failed(status));
+        context.setRollbackOnly();
+        return new Failure(index, StagedUpdateApplier.result(status, message));
+    }
+
+    /**
+     * The request, that made a batch fail
+     */
+    public static final class Failure {
+
+        final int index;
+        final HoldingsItemsUpdateResult result;
+
+        Failure(int index, HoldingsItemsUpdateResult result) {
+            this.index = index;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.IssueEntity;
+import dk.dbc.holdingsitems.jpa.ItemEntity;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Items of a record by item id (across issues)
+ * <p>
+ * Built once per record, and kept up to date as items are created or
+ * removed, so looking up an item id doesn't require scanning the record.
+ */
+class ItemIndex {
+
+    private final HashMap<String, List<ItemEntity>> items;
+
+    ItemIndex(BibliographicItemEntity root) {
+        this.items = new HashMap<>();
+        root.stream()
+                .flatMap(IssueEntity::stream)
+                .forEach(this::add);
+    }
+
+    /**
+     * Register an item (if not already known)
+     *
+     * @param item the item
+     */
+    void add(ItemEntity item) {
+        List<ItemEntity> list = items.computeIfAbsent(item.getItemId(), id -> new ArrayList<>(1));
+        for (ItemEntity known : list) {
+            if (known == item)
+                return;
+        }
+        list.add(item);
+    }
+
+    /**
+     * Forget an item
+     *
+     * @param item the item
+     */
+    void remove(ItemEntity item) {
+        List<ItemEntity> list = items.get(item.getItemId());
+        if (list != null) {
+            list.removeIf(known -> known == item);
+            if (list.isEmpty())
+                items.remove(item.getItemId());
+        }
+    }
+
+    /**
+     * All items with a given id
+     *
+     * @param itemId the item id
+     * @return a copy of the list of items, that can be changed while the
+     *         index is updated
+     */
+    List<ItemEntity> get(String itemId) {
+        List<ItemEntity> list = items.get(itemId);
+        if (list == null)
+            return new ArrayList<>();
+        return new ArrayList<>(list);
+    }
+}
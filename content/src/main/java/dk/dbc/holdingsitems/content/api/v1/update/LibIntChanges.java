@@ -1,82 +1,114 @@
 package dk.dbc.holdingsitems.content.api.v1.update;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
 import dk.dbc.holdingsitems.jpa.IssueEntity;
 import dk.dbc.holdingsitems.jpa.ItemEntity;
 import dk.dbc.holdingsitems.jpa.Status;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Status changes of the items of a record, for the queue jobs
+ * <p>
+ * The status of every item id is taken when created, and compared to the
+ * current status of the record when reporting. If an item id exists in
+ * multiple issues, the one modified first is used (the last one seen, if
+ * they are modified at the same time).
+ */
 public class LibIntChanges {
 
     private static final Logger log = LoggerFactory.getLogger(LibIntChanges.class);
-    private static final ObjectMapper O = JsonMapper.builder().build();
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final int MAX_REUSED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<StringWriter> BUFFER = ThreadLocal.withInitial(StringWriter::new);
 
     private final BibliographicItemEntity entity;
-    private final Map<String, Status> oldStatus;
+    private final Map<String, ItemState> oldState;
 
     public LibIntChanges(BibliographicItemEntity entity) {
         this.entity = entity;
-        Map<String, ItemEntity> allItems = entity.stream()
-                .flatMap(IssueEntity::stream)
-                .collect(Collectors.toMap(ItemEntity::getItemId, i -> i, (l, r) -> l.getModified().isBefore(r.getModified()) ? l : r));
-        this.oldStatus = allItems.values().stream()
-                .collect(Collectors.toMap(ItemEntity::getItemId, ItemEntity::getStatus));
+        this.oldState = snapshot(entity);
     }
 
     public String report(boolean complete) {
-
-        Map<String, ItemEntity> allItems = entity.stream()
-                .flatMap(IssueEntity::stream)
-                .collect(Collectors.toMap(ItemEntity::getItemId, i -> i, (l, r) -> l.getModified().isBefore(r.getModified()) ? l : r));
-        Map<String, Status> newStatus = allItems.values().stream()
-                .collect(Collectors.toMap(ItemEntity::getItemId, ItemEntity::getStatus));
-        Map<String, Instant> modified = allItems.values().stream()
-                .collect(Collectors.toMap(ItemEntity::getItemId, ItemEntity::getModified));
-
-        ObjectNode json = O.createObjectNode()
-                .put("agencyId", entity.getAgencyId())
-                .put("bibliographicRecordId", entity.getBibliographicRecordId())
-                .put("trackingId", entity.getTrackingId())
-                .put("complete", complete);
-        ObjectNode items = json.putObject("items");
-
-        newStatus.forEach((itemId, status) -> {
-            Status was = oldStatus.get(itemId);
-            if (was == null) {
-                items.putObject(itemId)
-                        .put("newStatus", status.toString())
-                        .put("when", modified.get(itemId).toString());
-            } else if (was != status) {
-                items.putObject(itemId)
-                        .put("newStatus", status.toString())
-                        .put("oldStatus", was.toString())
-                        .put("when", modified.get(itemId).toString());
+        Map<String, ItemState> newState = snapshot(entity);
+        StringWriter buffer = BUFFER.get();
+        buffer.getBuffer().setLength(0);
+        try (JsonGenerator json = JSON.createGenerator(buffer)) {
+            json.writeStartObject();
+            json.writeNumberField("agencyId", entity.getAgencyId());
+            json.writeStringField("bibliographicRecordId", entity.getBibliographicRecordId());
+            json.writeStringField("trackingId", entity.getTrackingId());
+            json.writeBooleanField("complete", complete);
+            json.writeObjectFieldStart("items");
+            for (Map.Entry<String, ItemState> entry : newState.entrySet()) {
+                ItemState is = entry.getValue();
+                ItemState was = oldState.get(entry.getKey());
+                if (was == null) {
+                    writeItem(json, entry.getKey(), is.status, null, is.modified);
+                } else if (was.status != is.status) {
+                    writeItem(json, entry.getKey(), is.status, was.status, is.modified);
+                }
             }
-        });
-        oldStatus.forEach((itemId, status) -> {
-            if (!newStatus.containsKey(itemId)) {
-                items.putObject(itemId)
-                        .put("newStatus", Status.DECOMMISSIONED.toString())
-                        .put("oldStatus", status.toString())
-                        .put("when", entity.getModified().toString());
+            for (Map.Entry<String, ItemState> entry : oldState.entrySet()) {
+                if (!newState.containsKey(entry.getKey())) {
+                    writeItem(json, entry.getKey(), Status.DECOMMISSIONED, entry.getValue().status, entity.getModified());
+                }
             }
-        });
-        try {
-            String value = O.writeValueAsString(json);
-            log.debug("json report: {}", value);
-            return value;
-        } catch (JsonProcessingException ex) {
+            json.writeEndObject();
+            json.writeEndObject();
+        } catch (IOException ex) {
             log.error("This is really bad - cannot write JSON: {}", ex.getMessage());
             log.debug("This is really bad - cannot write JSON: ", ex);
             return "{}";
         }
+        String value = buffer.toString();
+        if (buffer.getBuffer().capacity() > MAX_REUSED_BUFFER)
+            BUFFER.remove(); // Don't keep a huge buffer around
+        log.debug("json report: {}", value);
+        return value;
+    }
+
+    private static void writeItem(JsonGenerator json, String itemId, Status newStatus, Status oldStatus, Instant when) throws IOException {
+        json.writeObjectFieldStart(itemId);
+        json.writeStringField("newStatus", newStatus.toString());
+        if (oldStatus != null)
+            json.writeStringField("oldStatus", oldStatus.toString());
+        json.writeStringField("when", when.toString());
+        json.writeEndObject();
+    }
+
+    private static Map<String, ItemState> snapshot(BibliographicItemEntity entity) {
+        HashMap<String, ItemState> state = new HashMap<>();
+        for (Iterator<IssueEntity> issues = entity.stream().iterator() ; issues.hasNext() ;) {
+            for (Iterator<ItemEntity> items = issues.next().iterator() ; items.hasNext() ;) {
+                ItemEntity item = items.next();
+                Instant modified = item.getModified();
+                ItemState known = state.get(item.getItemId());
+                if (known == null || !known.modified.isBefore(modified)) // On equal modified the last one wins
+                    state.put(item.getItemId(), new ItemState(item.getStatus(), modified));
+            }
+        }
+        return state;
+    }
+
+    private static final class ItemState {
+
+        private final Status status;
+        private final Instant modified;
+
+        private ItemState(Status status, Instant modified) {
+            this.status = status;
+            this.modified = modified;
+        }
     }
 }
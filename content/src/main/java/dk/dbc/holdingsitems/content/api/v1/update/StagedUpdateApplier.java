@@ -0,0 +1,213 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dbc.holdingsitems.HoldingsItemsException;
+import dk.dbc.holdingsitems.content.JacksonObjectMapperProvider;
+import dk.dbc.log.LogWith;
+import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdateRequest;
+import jakarta.annotation.Resource;
+import jakarta.ejb.SessionContext;
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Claims, applies and records staged requests, each in a transaction of their
+ * own
+ * <p>
+ * Unlike the synchronous endpoints, a failed request doesn't leave partial
+ * changes behind, the transaction is rolled back.
+ * <p>
+ * Requests are claimed by setting them RUNNING with a lease, so no row lock
+ * (and database connection) is held while they're applied. Rows of an agency
+ * are only claimed when no earlier row of the same agency is pending or
+ * running, and a running row, whose lease has expired, is claimed again.
+ */
+@Stateless
+public class StagedUpdateApplier {
+
+    private static final Logger log = LoggerFactory.getLogger(StagedUpdateApplier.class);
+
+    private static final ObjectMapper O = JacksonObjectMapperProvider.mapper();
+
+    private static final String CLAIMABLE =
+            "( state = 'PENDING' OR state = 'RUNNING' AND leased < clock_timestamp() )";
+
+    private static final String CLAIM =
+            "SELECT s.id, s.agencyId" +
+            " FROM update_staging s" +
+            " WHERE " + CLAIMABLE +
+            " AND NOT EXISTS (SELECT 1 FROM update_staging p WHERE p.agencyId = s.agencyId AND p.state IN ('PENDING', 'RUNNING') AND p.id < s.id)" +
+            " ORDER BY s.id" +
+            " LIMIT 1" +
+            " FOR UPDATE SKIP LOCKED";
+
+    private static final String CLAIM_GROUP =
+            "SELECT id, kind, trackingId, request" +
+            " FROM update_staging" +
+            " WHERE agencyId = ? AND " + CLAIMABLE + " AND id >= ?" +
+            " ORDER BY id" +
+            " LIMIT ?" +
+            " FOR UPDATE";
+
+    private static final String LEASE =
+            "UPDATE update_staging SET state = 'RUNNING', leased = clock_timestamp() + make_interval(secs => ?)" +
+            " WHERE agencyId = ? AND " + CLAIMABLE + " AND id BETWEEN ? AND ?";
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    UpdateV1Logic updateLogic;
+
+    @Inject
+    UpdateMetrics updateMetrics;
+
+    @Resource
+    SessionContext context;
+
+    /**
+     * Claim the first staged request, that is ready, and the following
+     * pending requests of the same agency
+     *
+     * @param groupSize    max number of requests to claim
+     * @param leaseSeconds how long the requests are reserved for the caller
+     * @return the claimed requests in the order they were accepted, empty if
+     *         nothing was ready
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<UpdateStaging.Staged> claim(int groupSize, int leaseSeconds) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery(CLAIM).getResultList();
+        if (rows.isEmpty())
+            return Collections.emptyList();
+        long firstId = ( (Number) rows.get(0)[0] ).longValue();
+        int agencyId = ( (Number) rows.get(0)[1] ).intValue();
+        // Later rows of the agency cannot be claimed by others, while the first is pending
+        @SuppressWarnings("unchecked")
+        List<Object[]> group = em.createNativeQuery(CLAIM_GROUP)
+                .setParameter(1, agencyId)
+                .setParameter(2, firstId)
+                .setParameter(3, Math.max(1, groupSize))
+                .getResultList();
+        ArrayList<UpdateStaging.Staged> requests = new ArrayList<>(group.size());
+        for (Object[] row : group) {
+            requests.add(new UpdateStaging.Staged(( (Number) row[0] ).longValue(), UpdateStaging.Kind.valueOf((String) row[1]), (String) row[2], (String) row[3]));
+        }
+        em.createNativeQuery(LEASE)
+                .setParameter(1, leaseSeconds)
+                .setParameter(2, agencyId)
+                .setParameter(3, firstId)
+                .setParameter(4, requests.get(requests.size() - 1).id)
+                .executeUpdate();
+        return requests;
+    }
+
+    /**
+     * Store the outcome of claimed requests
+     *
+     * @param requests the requests
+     * @param result   the outcome of applying them
+     * @return the status of the outcome
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public HoldingsItemsUpdateStatusEnum record(List<UpdateStaging.Staged> requests, HoldingsItemsUpdateResult result) {
+        HoldingsItemsUpdateStatusEnum status = result.getHoldingsItemsUpdateStatus();
+        for (UpdateStaging.Staged request : requests) {
+            em.createNativeQuery("UPDATE update_staging SET state = ?, status = ?, message = ?, leased = NULL, applied = clock_timestamp() WHERE id = ?")
+                    .setParameter(1, status == HoldingsItemsUpdateStatusEnum.OK ? "DONE" : "FAILED")
+                    .setParameter(2, status.value())
+                    .setParameter(3, Objects.toString(result.getHoldingsItemsUpdateStatusMessage(), ""))
+                    .setParameter(4, request.id)
+                    .executeUpdate();
+        }
+        return status;
+    }
+
+    /**
+     * Apply a number of requests in one transaction (group commit)
+     * <p>
+     * If any of the requests fails, nothing is applied, and the requests
+     * should be applied one by one, to find the failing one(s).
+     *
+     * @param requests the staged requests in the order they were accepted
+     * @return if all requests were applied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public boolean applyAll(List<UpdateStaging.Staged> requests) {
+        for (UpdateStaging.Staged request : requests) {
+            try (LogWith l = LogWith.track(request.trackingId)) {
+                apply(request.kind, request.request, trace(request.kind, request.trackingId));
+            } catch (UpdateException | HoldingsItemsException | IOException ex) {
+                log.info("Group of {} staged updates failed at {} ({}): {} - applying them one by one",
+                         requests.size(), request.id, request.trackingId, ex.getMessage());
+                context.setRollbackOnly();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public HoldingsItemsUpdateResult apply(UpdateStaging.Kind kind, String trackingId, String request) {
+        UpdateTrace trace = trace(kind, trackingId);
+        try (LogWith l = LogWith.track(trackingId)) {
+            apply(kind, request, trace);
+            return result(HoldingsItemsUpdateStatusEnum.OK, "ok");
+        } catch (UpdateException ex) {
+            log.error("Error applying staged update: {}", ex.getMessage());
+            log.debug("Error applying staged update: ", ex);
+            context.setRollbackOnly();
+            updateMetrics.record(trace.failed(ex.getStatus()));
+            return result(ex.getStatus(), ex.getMessage());
+        } catch (HoldingsItemsException | IOException ex) {
+            log.error("Error applying staged update: {}", ex.getMessage());
+            log.debug("Error applying staged update: ", ex);
+            context.setRollbackOnly();
+            updateMetrics.record(trace.failed(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR));
+            return result(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+        }
+    }
+
+    private static UpdateTrace trace(UpdateStaging.Kind kind, String trackingId) {
+        return new UpdateTrace(kind.name().toLowerCase(Locale.ROOT), trackingId);
+    }
+
+    private void apply(UpdateStaging.Kind kind, String request, UpdateTrace trace) throws UpdateException, HoldingsItemsException, IOException {
+        switch (kind) {
+            case COMPLETE:
+                updateLogic.complete(O.readValue(request, CompleteHoldingsItemsUpdateRequest.class), trace);
+                break;
+            case UPDATE:
+                updateLogic.update(O.readValue(request, HoldingsItemsUpdateRequest.class), trace);
+                break;
+            case ONLINE:
+                updateLogic.online(O.readValue(request, OnlineHoldingsItemsUpdateRequest.class), trace);
+                break;
+            default:
+                throw new IllegalStateException("Unknown kind of update: " + kind);
+        }
+        updateMetrics.record(trace); // Commit isn't included, it happens later
+    }
+
+    static HoldingsItemsUpdateResult result(HoldingsItemsUpdateStatusEnum status, String message) {
+        HoldingsItemsUpdateResult res = new HoldingsItemsUpdateResult();
+        res.setHoldingsItemsUpdateStatus(status);
+        res.setHoldingsItemsUpdateStatusMessage(message);
+        return res;
+    }
+}
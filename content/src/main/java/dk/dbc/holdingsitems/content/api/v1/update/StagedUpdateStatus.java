@@ -0,0 +1,66 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.Authentication;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Response (and request) of the async status endpoint
+ */
+@SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+public class StagedUpdateStatus {
+
+    public String trackingId;
+    public List<Update> updates;
+
+    public StagedUpdateStatus() {
+    }
+
+    public StagedUpdateStatus(String trackingId, List<Update> updates) {
+        this.trackingId = trackingId;
+        this.updates = updates;
+    }
+
+    @SuppressFBWarnings("UWF_UNWRITTEN_PUBLIC_OR_PROTECTED_FIELD")
+    public static class Request {
+
+        public int agencyId;
+        public Authentication authentication;
+        public String trackingId;
+
+        @Override
+        public String toString() {
+            return "Request{" + "agencyId=" + agencyId + ", trackingId=" + trackingId + '}';
+        }
+    }
+
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    public static class Update {
+
+        public long id;
+        public int agencyId;
+        public String kind;
+        /**
+         * PENDING, RUNNING, DONE or FAILED
+         */
+        public String state;
+        /**
+         * holdingsItemsUpdateStatus of the update, when applied
+         */
+        public String status;
+        public String message;
+        public Instant received;
+        public Instant applied;
+
+        @Override
+        public String toString() {
+            return "Update{" + "id=" + id + ", agencyId=" + agencyId + ", kind=" + kind + ", state=" + state + ", status=" + status + '}';
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StagedUpdateStatus{" + "trackingId=" + trackingId + ", updates=" + updates + '}';
+    }
+}
@@ -0,0 +1,120 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.IssueEntity;
+import dk.dbc.holdingsitems.jpa.ItemEntity;
+import jakarta.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows of a record, whose values are unchanged by a newer request, and only
+ * should have their timestamps moved forward
+ * <p>
+ * Setting modified on an entity gives the row a new version, like any other
+ * change. Instead the rows are updated with SQL, after the record has been
+ * saved, leaving the version alone (like the bulk complete does). The
+ * entities themselves keep the old timestamps until they are read again with
+ * a lock, which refreshes them.
+ */
+class Touched {
+
+    private final Instant modified;
+    private BibliographicItemEntity root;
+    private final List<IssueEntity> issues;
+    private final List<IssueEntity> completeIssues;
+    private final List<ItemEntity> items;
+
+    Touched(Instant modified) {
+        this.modified = modified;
+        this.issues = new ArrayList<>();
+        this.completeIssues = new ArrayList<>();
+        this.items = new ArrayList<>();
+    }
+
+    void add(BibliographicItemEntity root) {
+        this.root = root;
+    }
+
+    void add(IssueEntity issue) {
+        issues.add(issue);
+    }
+
+    /**
+     * Register an issue, that should have complete set to the timestamp
+     *
+     * @param issue the issue
+     */
+    void complete(IssueEntity issue) {
+        completeIssues.add(issue);
+    }
+
+    void add(ItemEntity item) {
+        items.add(item);
+    }
+
+    /**
+     * If an item only has its timestamp moved forward
+     * <p>
+     * Such an item is not abandoned by a complete update, even though
+     * {@link ItemEntity#getModified()} is older than the request.
+     *
+     * @param item the item
+     * @return if it has been registered
+     */
+    boolean contains(ItemEntity item) {
+        for (ItemEntity known : items) {
+            if (known == item)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Update the timestamps of the registered rows
+     * <p>
+     * Rows, that have been removed, are ignored.
+     *
+     * @param em entity manager, that has been flushed
+     */
+    void apply(EntityManager em) {
+        Timestamp timestamp = Timestamp.from(modified);
+        if (root != null) {
+            em.createNativeQuery("UPDATE bibliographicItem SET modified = ? WHERE agencyId = ? AND bibliographicRecordId = ? AND modified < ?")
+                    .setParameter(1, timestamp)
+                    .setParameter(2, root.getAgencyId())
+                    .setParameter(3, root.getBibliographicRecordId())
+                    .setParameter(4, timestamp)
+                    .executeUpdate();
+        }
+        for (IssueEntity issue : issues) {
+            em.createNativeQuery("UPDATE issue SET modified = ? WHERE agencyId = ? AND bibliographicRecordId = ? AND issueId = ? AND modified < ?")
+                    .setParameter(1, timestamp)
+                    .setParameter(2, issue.getAgencyId())
+                    .setParameter(3, issue.getBibliographicRecordId())
+                    .setParameter(4, issue.getIssueId())
+                    .setParameter(5, timestamp)
+                    .executeUpdate();
+        }
+        for (IssueEntity issue : completeIssues) {
+            em.createNativeQuery("UPDATE issue SET complete = ? WHERE agencyId = ? AND bibliographicRecordId = ? AND issueId = ?")
+                    .setParameter(1, timestamp)
+                    .setParameter(2, issue.getAgencyId())
+                    .setParameter(3, issue.getBibliographicRecordId())
+                    .setParameter(4, issue.getIssueId())
+                    .executeUpdate();
+        }
+        for (ItemEntity item : items) {
+            em.createNativeQuery("UPDATE item SET modified = ? WHERE agencyId = ? AND bibliographicRecordId = ? AND issueId = ? AND itemId = ? AND modified < ?")
+                    .setParameter(1, timestamp)
+                    .setParameter(2, item.getAgencyId())
+                    .setParameter(3, item.getBibliographicRecordId())
+                    .setParameter(4, item.getIssueId())
+                    .setParameter(5, item.getItemId())
+                    .setParameter(6, timestamp)
+                    .executeUpdate();
+        }
+    }
+}
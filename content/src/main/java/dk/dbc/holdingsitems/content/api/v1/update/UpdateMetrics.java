@@ -0,0 +1,120 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.ejb.Lock;
+import jakarta.ejb.LockType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Histogram;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of the update logic
+ * <p>
+ * The counters are plain {@link LongAdder}s exposed as gauges, so the bean
+ * works without a metric registry (in tests).
+ * <p>
+ * Phase timings of update requests ({@link UpdateTrace}) are histograms (ms)
+ * tagged by operation, phase and size (number of items in the request), they
+ * are only registered when the bean is initialized. The total time is also
+ * tagged by outcome ("ok" or the status of the failure), failed requests only
+ * have their total time recorded. Traces slower than UPDATE_SLOW_TRACE_MS are
+ * logged with their tracking id.
+ */
+@Singleton
+@Startup
+@Lock(LockType.READ)
+public class UpdateMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(UpdateMetrics.class);
+
+    private final LongAdder suppressed = new LongAdder();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile boolean registered;
+
+    @Inject
+    MetricRegistry metrics;
+
+    @Inject
+    @ConfigProperty(name = "UPDATE_SLOW_TRACE_MS", defaultValue = "1000")
+    long slowTraceMs;
+
+    @PostConstruct
+    public void init() {
+        metrics.gauge("update_suppressed", suppressed::sum);
+        registered = true;
+    }
+
+    /**
+     * Register the phase timings of an update request
+     *
+     * @param trace the timings
+     */
+    public void record(UpdateTrace trace) {
+        long totalMs = trace.getTotalNanos() / 1_000_000L;
+        if (isSlow(totalMs))
+            log.warn("Slow update ({}): {}", trace.getTrackingId(), trace);
+        if (!registered)
+            return;
+        Tag operation = new Tag("operation", trace.getOperation());
+        Tag size = new Tag("size", sizeBucket(trace.getItems()));
+        histogram("update_total_ms", operation, new Tag("outcome", trace.getOutcome()), size).update(totalMs);
+        if (!"ok".equals(trace.getOutcome()))
+            return;
+        histogram("update_lock_wait_ms", operation).update(trace.getNanos(UpdateTrace.Phase.LOCK_WAIT) / 1_000_000L);
+        for (UpdateTrace.Phase phase : UpdateTrace.Phase.values()) {
+            histogram("update_phase_ms", operation, new Tag("phase", phase.tag()), size).update(trace.getNanos(phase) / 1_000_000L);
+        }
+    }
+
+    /**
+     * Count a record, that wasn't enqueued since nothing changed
+     */
+    public void suppressed() {
+        suppressed.increment();
+    }
+
+    /**
+     * Count records, that weren't enqueued since nothing changed
+     *
+     * @param count number of records
+     */
+    public void suppressed(long count) {
+        suppressed.add(count);
+    }
+
+    private Histogram histogram(String name, Tag... tags) {
+        StringBuilder key = new StringBuilder(name);
+        for (Tag tag : tags) {
+            key.append('/').append(tag.getTagName()).append('=').append(tag.getTagValue());
+        }
+        return histograms.computeIfAbsent(key.toString(), k -> metrics.histogram(name, tags));
+    }
+
+    /**
+     * If a trace should be logged
+     *
+     * @param totalMs total time of the request
+     * @return if it took at least UPDATE_SLOW_TRACE_MS (and that is set)
+     */
+    boolean isSlow(long totalMs) {
+        return slowTraceMs > 0 && totalMs >= slowTraceMs;
+    }
+
+    static String sizeBucket(int items) {
+        if (items <= 1)
+            return "1";
+        if (items <= 10)
+            return "10";
+        if (items <= 100)
+            return "100";
+        return "many";
+    }
+}
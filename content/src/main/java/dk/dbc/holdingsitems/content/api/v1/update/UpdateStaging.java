@@ -0,0 +1,177 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dbc.holdingsitems.content.JacksonObjectMapperProvider;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import jakarta.ejb.Stateless;
+import jakarta.ejb.TransactionAttribute;
+import jakarta.ejb.TransactionAttributeType;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The update_staging table, where async update requests wait to be applied
+ * <p>
+ * Requests of an agency are applied in the order they were accepted, while
+ * different agencies are applied in parallel (see
+ * {@link StagedUpdateApplier#claim(int, int)}).
+ * <p>
+ * When more requests of the claimed agency are pending, up to
+ * ASYNC_UPDATE_GROUP_SIZE of them are applied in one transaction (group
+ * commit), if one of them fails, they're applied one by one instead.
+ */
+@Stateless
+public class UpdateStaging {
+
+    private static final Logger log = LoggerFactory.getLogger(UpdateStaging.class);
+
+    private static final ObjectMapper O = JacksonObjectMapperProvider.mapper();
+
+    public enum Kind {
+        COMPLETE, UPDATE, ONLINE
+    }
+
+    @Inject
+    EntityManager em;
+
+    @Inject
+    StagedUpdateApplier applier;
+
+    @Inject
+    @ConfigProperty(name = "ASYNC_UPDATE_GROUP_SIZE", defaultValue = "25")
+    int groupSize;
+
+    @Inject
+    @ConfigProperty(name = "ASYNC_UPDATE_LEASE_SECONDS", defaultValue = "900")
+    int leaseSeconds;
+
+    /**
+     * Store a request for later application
+     *
+     * @param kind       which update method to apply it with
+     * @param agencyId   the agency of the request
+     * @param trackingId the tracking id of the request
+     * @param request    the request (authentication removed)
+     * @throws UpdateException if the request cannot be serialized
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public void stage(Kind kind, int agencyId, String trackingId, Object request) throws UpdateException {
+        String json;
+        try {
+            json = O.writeValueAsString(request);
+        } catch (JsonProcessingException ex) {
+            throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "Cannot stage request: " + ex.getMessage());
+        }
+        em.createNativeQuery("INSERT INTO update_staging (agencyId, kind, trackingId, request) VALUES(?, ?, ?, ?)")
+                .setParameter(1, agencyId)
+                .setParameter(2, kind.name())
+                .setParameter(3, trackingId)
+                .setParameter(4, json)
+                .executeUpdate();
+    }
+
+    /**
+     * Apply the first staged request, that is ready, and the following
+     * pending requests of the same agency
+     * <p>
+     * Claiming, applying and recording the requests are transactions of
+     * their own, so only one database connection is in use at any time, failures
+     * are recorded, and doesn't block later requests of the agency.
+     *
+     * @return the results of the updates, empty if nothing was ready
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public List<HoldingsItemsUpdateStatusEnum> applyNext() {
+        List<Staged> requests = applier.claim(groupSize, leaseSeconds);
+        if (requests.isEmpty())
+            return Collections.emptyList();
+        if (requests.size() > 1 && applyAll(requests)) {
+            log.debug("Applied {} staged updates in one transaction", requests.size());
+            HoldingsItemsUpdateStatusEnum status = applier.record(requests, StagedUpdateApplier.result(HoldingsItemsUpdateStatusEnum.OK, "ok"));
+            return Collections.nCopies(requests.size(), status);
+        }
+        ArrayList<HoldingsItemsUpdateStatusEnum> statuses = new ArrayList<>(requests.size());
+        for (Staged request : requests) {
+            statuses.add(applier.record(List.of(request), apply(request)));
+        }
+        return statuses;
+    }
+
+    /**
+     * Look up staged requests
+     *
+     * @param agencyId   the agency the requests were staged for
+     * @param trackingId the tracking id the request were staged with
+     * @return all staged requests of the agency with the tracking id, in the
+     *         order they were accepted
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public List<StagedUpdateStatus.Update> status(int agencyId, String trackingId) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = em.createNativeQuery("SELECT id, agencyId, kind, state, status, message, received, applied FROM update_staging WHERE agencyId = ? AND trackingId = ? ORDER BY id")
+                .setParameter(1, agencyId)
+                .setParameter(2, trackingId)
+                .getResultList();
+        ArrayList<StagedUpdateStatus.Update> updates = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            StagedUpdateStatus.Update update = new StagedUpdateStatus.Update();
+            update.id = ( (Number) row[0] ).longValue();
+            update.agencyId = ( (Number) row[1] ).intValue();
+            update.kind = (String) row[2];
+            update.state = (String) row[3];
+            update.status = (String) row[4];
+            update.message = (String) row[5];
+            update.received = row[6] == null ? null : ( (Timestamp) row[6] ).toInstant();
+            update.applied = row[7] == null ? null : ( (Timestamp) row[7] ).toInstant();
+            updates.add(update);
+        }
+        return updates;
+    }
+
+    private boolean applyAll(List<Staged> requests) {
+        try {
+            return applier.applyAll(requests);
+        } catch (RuntimeException ex) {
+            log.info("Group of {} staged updates failed: {} - applying them one by one", requests.size(), ex.getMessage());
+            log.debug("Group of {} staged updates failed: ", requests.size(), ex);
+            return false;
+        }
+    }
+
+    private HoldingsItemsUpdateResult apply(Staged request) {
+        try {
+            return applier.apply(request.kind, request.trackingId, request.request);
+        } catch (RuntimeException ex) {
+            log.error("Error applying staged update {} ({}): {}", request.id, request.trackingId, ex.getMessage());
+            log.debug("Error applying staged update {} ({}): ", request.id, request.trackingId, ex);
+            return StagedUpdateApplier.result(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, String.valueOf(ex.getMessage()));
+        }
+    }
+
+    /**
+     * A claimed staged request
+     */
+    public static final class Staged {
+
+        final long id;
+        final Kind kind;
+        final String trackingId;
+        final String request;
+
+        Staged(long id, Kind kind, String trackingId, String request) {
+            this.id = id;
+            this.kind = kind;
+            this.trackingId = trackingId;
+            this.request = request;
+        }
+    }
+}
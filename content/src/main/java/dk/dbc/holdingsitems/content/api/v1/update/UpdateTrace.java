@@ -0,0 +1,152 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import java.util.Locale;
+
+/**
+ * Time spent in the phases of one update request
+ * <p>
+ * The time since the previous lap (or creation) is added to the phase given
+ * to {@link #lap(Phase)}, so a phase can be visited many times (once per
+ * record in the request). Not thread safe, a trace belongs to one request.
+ * <p>
+ * The outcome is "ok", unless the request is marked as {@link #failed(HoldingsItemsUpdateStatusEnum) failed}.
+ */
+public class UpdateTrace {
+
+    public enum Phase {
+        /**
+         * Authentication (IDP)
+         */
+        VALIDATE,
+        /**
+         * Creating missing records (dao.ensureBibliographicItems)
+         */
+        ENSURE_ROOT,
+        /**
+         * Waiting for the row lock of the record (PESSIMISTIC_WRITE)
+         */
+        LOCK_WAIT,
+        /**
+         * Loading issues and items of the record
+         */
+        LOAD,
+        /**
+         * Applying the request to the entities
+         */
+        MERGE,
+        /**
+         * Flushing the record (root.save())
+         */
+        SAVE,
+        /**
+         * Making the queue state change (LibIntChanges)
+         */
+        REPORT,
+        /**
+         * Writing to the queue
+         */
+        ENQUEUE,
+        /**
+         * Committing the transaction
+         */
+        COMMIT;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+
+        public String tag() {
+            return tag;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String operation;
+    private final String trackingId;
+    private final long[] nanos;
+    private final long started;
+    private long mark;
+    private long ended;
+    private int items;
+    private String outcome;
+
+    public UpdateTrace(String operation, String trackingId) {
+        this.operation = operation;
+        this.trackingId = trackingId;
+        this.nanos = new long[PHASES.length];
+        this.started = System.nanoTime();
+        this.mark = started;
+        this.outcome = "ok";
+    }
+
+    /**
+     * Add the time since last lap to a phase
+     *
+     * @param phase the phase that just ended
+     */
+    public void lap(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Count items in the request, for size bucketing
+     *
+     * @param count number of items
+     */
+    public void items(int count) {
+        items += count;
+    }
+
+    /**
+     * Mark the request as failed
+     * <p>
+     * The time spent in the phase that failed, is included in the total.
+     *
+     * @param status the status of the response
+     * @return self
+     */
+    public UpdateTrace failed(HoldingsItemsUpdateStatusEnum status) {
+        this.ended = System.nanoTime();
+        this.outcome = status.value();
+        return this;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return Math.max(mark, ended) - started;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append(operation)
+                .append(" ").append(outcome)
+                .append(" ").append(getTotalNanos() / 1_000_000L).append("ms")
+                .append(" items=").append(items);
+        for (Phase phase : PHASES) {
+            sb.append(" ").append(phase.tag()).append("=").append(nanos[phase.ordinal()] / 1_000_000L);
+        }
+        return sb.toString();
+    }
+}
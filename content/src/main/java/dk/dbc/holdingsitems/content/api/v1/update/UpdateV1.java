@@ -1,17 +1,20 @@
 package dk.dbc.holdingsitems.content.api.v1.update;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.dbc.holdingsitems.HoldingsItemsException;
+import dk.dbc.holdingsitems.content.JacksonObjectMapperProvider;
+import dk.dbc.holdingsitems.content.response.StatusResponse;
 import dk.dbc.log.LogWith;
 import dk.dbc.oss.ns.holdingsitemsupdate.Authentication;
-import dk.dbc.oss.ns.holdingsitemsupdate.BibliographicItem;
+import dk.dbc.oss.ns.holdingsitemsupdate.CompleteBibliographicItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResponse;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
-import dk.dbc.oss.ns.holdingsitemsupdate.OnlineBibliographicItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdateRequest;
-import jakarta.ejb.EJBException;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
@@ -19,8 +22,13 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
-import java.util.stream.Stream;
+import java.util.stream.Collectors;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,12 +40,27 @@ public class UpdateV1 {
 
     private static final Logger log = LoggerFactory.getLogger(UpdateV1.class);
 
+    private static final String NDJSON = "application/x-ndjson";
+    private static final ObjectMapper O = JacksonObjectMapperProvider.mapper();
+
     @Inject
     UpdateV1Logic updateLogic;
 
     @Inject
     AccessValidator accessValidator;
 
+    @Inject
+    UpdateMetrics updateMetrics;
+
+    @Inject
+    BatchUpdateApplier batchApplier;
+
+    @Inject
+    UpdateStaging updateStaging;
+
+    @Inject
+    AsyncUpdateWorkers asyncUpdateWorkers;
+
     @POST
     @Path("completeHoldingsItemsUpdate")
     @Timed
@@ -50,18 +73,23 @@ public class UpdateV1 {
             trackingId = UUID.randomUUID().toString();
             req.setTrackingId(trackingId);
         }
+        UpdateTrace trace = new UpdateTrace("complete", trackingId);
         try (LogWith l = LogWith.track(trackingId)) {
             accessValidator.validate(authentication, req.getAgencyId());
-            ensureRoot(req.getAgencyId(), Stream.of(req.getCompleteBibliographicItem().getBibliographicRecordId()));
-            updateLogic.complete(req);
+            trace.lap(UpdateTrace.Phase.VALIDATE);
+            updateLogic.complete(req, trace);
+            trace.lap(UpdateTrace.Phase.COMMIT);
+            updateMetrics.record(trace);
             return updateResponse(HoldingsItemsUpdateStatusEnum.OK, "ok");
         } catch (UpdateException ex) {
             log.error("Error validating user: {}", ex.getMessage());
             log.debug("Error validating user: ", ex);
+            updateMetrics.record(trace.failed(ex.getStatus()));
             return updateResponse(ex);
         } catch (RuntimeException | HoldingsItemsException ex) {
             log.error("Error processing request: {}", ex.getMessage());
             log.debug("Error processing request: ", ex);
+            updateMetrics.record(trace.failed(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR));
             return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
         }
     }
@@ -78,18 +106,23 @@ public class UpdateV1 {
             trackingId = UUID.randomUUID().toString();
             req.setTrackingId(trackingId);
         }
+        UpdateTrace trace = new UpdateTrace("update", trackingId);
         try (LogWith l = LogWith.track(trackingId)) {
             accessValidator.validate(authentication, req.getAgencyId());
-            ensureRoot(req.getAgencyId(), req.getBibliographicItem().stream().map(BibliographicItem::getBibliographicRecordId));
-            updateLogic.update(req);
+            trace.lap(UpdateTrace.Phase.VALIDATE);
+            updateLogic.update(req, trace);
+            trace.lap(UpdateTrace.Phase.COMMIT);
+            updateMetrics.record(trace);
             return updateResponse(HoldingsItemsUpdateStatusEnum.OK, "ok");
         } catch (UpdateException ex) {
             log.error("Error validating user: {}", ex.getMessage());
             log.debug("Error validating user: ", ex);
+            updateMetrics.record(trace.failed(ex.getStatus()));
             return updateResponse(ex);
         } catch (RuntimeException | HoldingsItemsException ex) {
             log.error("Error processing request: {}", ex.getMessage());
             log.debug("Error processing request: ", ex);
+            updateMetrics.record(trace.failed(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR));
             return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
         }
     }
@@ -106,18 +139,237 @@ public class UpdateV1 {
             trackingId = UUID.randomUUID().toString();
             req.setTrackingId(trackingId);
         }
+        UpdateTrace trace = new UpdateTrace("online", trackingId);
         try (LogWith l = LogWith.track(trackingId)) {
             accessValidator.validate(authentication, req.getAgencyId());
-            ensureRoot(req.getAgencyId(), req.getOnlineBibliographicItem().stream().map(OnlineBibliographicItem::getBibliographicRecordId));
-            updateLogic.online(req);
+            trace.lap(UpdateTrace.Phase.VALIDATE);
+            updateLogic.online(req, trace);
+            trace.lap(UpdateTrace.Phase.COMMIT);
+            updateMetrics.record(trace);
             return updateResponse(HoldingsItemsUpdateStatusEnum.OK, "ok");
         } catch (UpdateException ex) {
             log.error("Error validating user: {}", ex.getMessage());
             log.debug("Error validating user: ", ex);
+            updateMetrics.record(trace.failed(ex.getStatus()));
             return updateResponse(ex);
         } catch (RuntimeException | HoldingsItemsException ex) {
             log.error("Error processing request: {}", ex.getMessage());
             log.debug("Error processing request: ", ex);
+            updateMetrics.record(trace.failed(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR));
+            return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+        }
+    }
+
+    /**
+     * Many holdingsItemsUpdate requests in one transaction
+     * <p>
+     * The body is a list of requests, each with its own authentication and
+     * trackingId. The response is a list of responses, one for each request,
+     * in the same order. If a request fails, the transaction is rolled back,
+     * and the other requests are applied again without it, so a failed
+     * request leaves no partial changes, and doesn't keep the others from
+     * being applied.
+     *
+     * @param reqs the requests
+     * @return a response for each request
+     */
+    @POST
+    @Path("batch/holdingsItemsUpdate")
+    @Timed
+    public Response batchHoldingsItemsUpdate(List<HoldingsItemsUpdateRequest> reqs) {
+        log.info("Batch of {} updates", reqs.size());
+        HoldingsItemsUpdateResult[] results = new HoldingsItemsUpdateResult[reqs.size()];
+        ArrayList<Integer> valid = new ArrayList<>(reqs.size());
+        for (int i = 0 ; i < reqs.size() ; i++) {
+            HoldingsItemsUpdateRequest req = reqs.get(i);
+            Authentication authentication = req.getAuthentication();
+            req.setAuthentication(null);
+            if (req.getTrackingId() == null)
+                req.setTrackingId(UUID.randomUUID().toString());
+            try (LogWith l = LogWith.track(req.getTrackingId())) {
+                log.info("Update: {}", req);
+                accessValidator.validate(authentication, req.getAgencyId());
+                valid.add(i);
+            } catch (UpdateException ex) {
+                log.error("Error validating user: {}", ex.getMessage());
+                log.debug("Error validating user: ", ex);
+                results[i] = StagedUpdateApplier.result(ex.getStatus(), ex.getMessage());
+            } catch (RuntimeException ex) {
+                log.error("Error processing request: {}", ex.getMessage());
+                log.debug("Error processing request: ", ex);
+                results[i] = StagedUpdateApplier.result(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+            }
+        }
+        applyBatch(reqs, valid, results);
+        return Response.ok(Arrays.stream(results)
+                .map(res -> {
+                    HoldingsItemsUpdateResponse resp = new HoldingsItemsUpdateResponse();
+                    resp.setHoldingsItemsUpdateResult(res);
+                    return resp;
+                })
+                .collect(Collectors.toList()))
+                .build();
+    }
+
+    /**
+     * Apply requests in one transaction, leaving out those that fail
+     *
+     * @param reqs    all the requests of the batch
+     * @param indexes which of the requests to apply
+     * @param results where the result of each request is stored
+     */
+    private void applyBatch(List<HoldingsItemsUpdateRequest> reqs, List<Integer> indexes, HoldingsItemsUpdateResult[] results) {
+        ArrayList<Integer> left = new ArrayList<>(indexes);
+        while (!left.isEmpty()) {
+            BatchUpdateApplier.Failure failure;
+            try {
+                failure = batchApplier.applyAll(left.stream().map(reqs::get).collect(Collectors.toList()));
+            } catch (RuntimeException ex) {
+                log.error("Error committing batch of {} updates: {}", left.size(), ex.getMessage());
+                log.debug("Error committing batch of {} updates: ", left.size(), ex);
+                if (left.size() == 1) {
+                    results[left.get(0)] = StagedUpdateApplier.result(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+                } else {
+                    // It cannot be told which request caused it
+                    left.forEach(i -> applyBatch(reqs, List.of(i), results));
+                }
+                return;
+            }
+            if (failure == null) {
+                left.forEach(i -> results[i] = StagedUpdateApplier.result(HoldingsItemsUpdateStatusEnum.OK, "ok"));
+                return;
+            }
+            results[left.remove(failure.index)] = failure.result;
+        }
+    }
+
+    /**
+     * Complete update of many records of an agency
+     * <p>
+     * The body is newline delimited JSON. The first line is a complete
+     * request without the completeBibliographicItem (agencyId, authentication
+     * and trackingId), every following line is a completeBibliographicItem.
+     *
+     * @param is the body
+     * @return update response, with the number of changed records as message
+     */
+    @POST
+    @Path("bulk/completeHoldingsItemsUpdate")
+    @Consumes(NDJSON)
+    @Timed
+    public Response bulkCompleteHoldingsItemsUpdate(InputStream is) {
+        try (JsonParser parser = O.getFactory().createParser(is)) {
+            CompleteHoldingsItemsUpdateRequest req = O.readValue(parser, CompleteHoldingsItemsUpdateRequest.class);
+            if (req == null || req.getCompleteBibliographicItem() != null)
+                return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "First line should be a request without completeBibliographicItem");
+            Authentication authentication = req.getAuthentication();
+            req.setAuthentication(null);
+            log.info("Bulk complete {}", req);
+            String trackingId = req.getTrackingId();
+            if (trackingId == null)
+                trackingId = UUID.randomUUID().toString();
+            try (LogWith l = LogWith.track(trackingId)) {
+                accessValidator.validate(authentication, req.getAgencyId());
+                MappingIterator<CompleteBibliographicItem> records = O.readerFor(CompleteBibliographicItem.class).readValues(parser);
+                int changed = updateLogic.bulkComplete(req.getAgencyId(), trackingId, records);
+                return updateResponse(HoldingsItemsUpdateStatusEnum.OK, "ok, " + changed + " changed");
+            }
+        } catch (UpdateException ex) {
+            log.error("Error validating user: {}", ex.getMessage());
+            log.debug("Error validating user: ", ex);
+            return updateResponse(ex);
+        } catch (IOException | RuntimeException | HoldingsItemsException ex) {
+            log.error("Error processing request: {}", ex.getMessage());
+            log.debug("Error processing request: ", ex);
+            return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
+        }
+    }
+
+    @POST
+    @Path("async/completeHoldingsItemsUpdate")
+    @Timed
+    public Response asyncCompleteHoldingsItemsUpdate(CompleteHoldingsItemsUpdateRequest req) {
+        Authentication authentication = req.getAuthentication();
+        req.setAuthentication(null);
+        log.info("Async complete {}", req);
+        String trackingId = req.getTrackingId();
+        if (trackingId == null) {
+            trackingId = UUID.randomUUID().toString();
+            req.setTrackingId(trackingId);
+        }
+        return stage(UpdateStaging.Kind.COMPLETE, authentication, req.getAgencyId(), trackingId, req);
+    }
+
+    @POST
+    @Path("async/holdingsItemsUpdate")
+    @Timed
+    public Response asyncHoldingsItemsUpdate(HoldingsItemsUpdateRequest req) {
+        Authentication authentication = req.getAuthentication();
+        req.setAuthentication(null);
+        log.info("Async update: {}", req);
+        String trackingId = req.getTrackingId();
+        if (trackingId == null) {
+            trackingId = UUID.randomUUID().toString();
+            req.setTrackingId(trackingId);
+        }
+        return stage(UpdateStaging.Kind.UPDATE, authentication, req.getAgencyId(), trackingId, req);
+    }
+
+    @POST
+    @Path("async/onlineHoldingsItemsUpdate")
+    @Timed
+    public Response asyncOnlineHoldingsItemsUpdate(OnlineHoldingsItemsUpdateRequest req) {
+        Authentication authentication = req.getAuthentication();
+        req.setAuthentication(null);
+        log.info("Async online: {}", req);
+        String trackingId = req.getTrackingId();
+        if (trackingId == null) {
+            trackingId = UUID.randomUUID().toString();
+            req.setTrackingId(trackingId);
+        }
+        return stage(UpdateStaging.Kind.ONLINE, authentication, req.getAgencyId(), trackingId, req);
+    }
+
+    /**
+     * Look up the state of async requests of an agency
+     *
+     * @param req agencyId, authentication and trackingId of the requests
+     * @return the staged requests with the trackingId
+     */
+    @POST
+    @Path("async/status")
+    @Timed
+    public Response asyncStatus(StagedUpdateStatus.Request req) {
+        String trackingId = req.trackingId;
+        if (trackingId == null || trackingId.isEmpty())
+            return StatusResponse.error(trackingId, Response.Status.BAD_REQUEST, "trackingId is required");
+        try (LogWith l = LogWith.track(trackingId)) {
+            accessValidator.validate(req.authentication, req.agencyId);
+            List<StagedUpdateStatus.Update> updates = updateStaging.status(req.agencyId, trackingId);
+            if (updates.isEmpty())
+                return StatusResponse.notFound(trackingId, "No staged updates of the agency with that trackingId");
+            return Response.ok(new StagedUpdateStatus(trackingId, updates)).build();
+        } catch (UpdateException ex) {
+            log.error("Error validating user: {}", ex.getMessage());
+            log.debug("Error validating user: ", ex);
+            return StatusResponse.error(trackingId, Response.Status.FORBIDDEN, ex.getMessage());
+        }
+    }
+
+    private Response stage(UpdateStaging.Kind kind, Authentication authentication, int agencyId, String trackingId, Object req) {
+        try (LogWith l = LogWith.track(trackingId)) {
+            if (!asyncUpdateWorkers.isEnabled())
+                return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "Async update is not enabled");
+            accessValidator.validate(authentication, agencyId);
+            updateStaging.stage(kind, agencyId, trackingId, req);
+            return updateResponse(HoldingsItemsUpdateStatusEnum.OK, "accepted, trackingId: " + trackingId);
+        } catch (UpdateException ex) {
+            log.error("Error staging request: {}", ex.getMessage());
+            log.debug("Error staging request: ", ex);
+            return updateResponse(ex);
+        } catch (RuntimeException ex) {
+            log.error("Error staging request: {}", ex.getMessage());
+            log.debug("Error staging request: ", ex);
             return updateResponse(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, ex.getMessage());
         }
     }
@@ -134,13 +386,4 @@ public class UpdateV1 {
         res.setHoldingsItemsUpdateStatusMessage(message);
         return Response.ok(resp).build();
     }
-
-    private void ensureRoot(int agencyId, Stream<String> bibliographicRecordIds) {
-        try {
-            updateLogic.ensureRoot(agencyId, bibliographicRecordIds);
-        } catch (EJBException ex) {
-            log.warn("Error ensuring root: {}", ex.getMessage());
-            log.debug("Error ensuring root: ", ex);
-        }
-    }
 }
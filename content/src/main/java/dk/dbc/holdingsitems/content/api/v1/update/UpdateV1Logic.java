@@ -1,9 +1,14 @@
 package dk.dbc.holdingsitems.content.api.v1.update;
 
+import dk.dbc.holdingsitems.BulkComplete;
 import dk.dbc.holdingsitems.EnqueueService;
 import dk.dbc.holdingsitems.HoldingsItemsDAO;
 import dk.dbc.holdingsitems.HoldingsItemsException;
+import dk.dbc.holdingsitems.content.JpaCacheCoordinator;
+import dk.dbc.holdingsitems.content.QueueRulesCache;
+import dk.dbc.holdingsitems.content.SupersedesCache;
 import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.CacheInvalidation;
 import dk.dbc.holdingsitems.jpa.IssueEntity;
 import dk.dbc.holdingsitems.jpa.ItemEntity;
 import dk.dbc.holdingsitems.jpa.LoanRestriction;
@@ -27,12 +32,13 @@ import jakarta.persistence.EntityManager;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,6 +59,18 @@ public class UpdateV1Logic {
     @Inject
     EntityManager em;
 
+    @Inject
+    JpaCacheCoordinator cacheCoordinator;
+
+    @Inject
+    SupersedesCache supersedesCache;
+
+    @Inject
+    QueueRulesCache queueRulesCache;
+
+    @Inject
+    UpdateMetrics updateMetrics;
+
     @Inject
     @ConfigProperty(name = "COMPLETE_SUPPLIER", defaultValue = "COMPLETE")
     String completeSupplier;
@@ -77,48 +95,46 @@ public class UpdateV1Logic {
     @ConfigProperty(name = "UPDATE_ORIGINAL_SUPPLIER", defaultValue = "UPDATE_ORIGINAL")
     String updateOriginalSupplier;
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    public void ensureRoot(int agencyId, Stream<String> bibliographicRecordIds) {
-        bibliographicRecordIds
-                .unordered()
-                .distinct()
-                .sorted()
-                .forEach(bibliographicRecordId -> {
-                    BibliographicItemEntity entity = BibliographicItemEntity.from(em, agencyId, bibliographicRecordId,
-                                                                                  Instant.EPOCH, LocalDate.now());
-                    if (entity.isNew()) {
-                        entity.setTrackingId("");
-                        entity.save();
-                    }
-                });
-    }
+    @Inject
+    @ConfigProperty(name = "ENQUEUE_COALESCE", defaultValue = "false")
+    boolean enqueueCoalesce;
 
     @TransactionAttribute(TransactionAttributeType.REQUIRED)
-    public void complete(CompleteHoldingsItemsUpdateRequest req) throws HoldingsItemsException, UpdateException {
+    public void complete(CompleteHoldingsItemsUpdateRequest req, UpdateTrace trace) throws HoldingsItemsException, UpdateException {
         String trackingId = req.getTrackingId();
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
-        try (EnqueueService queue = dao.enqueueService()) {
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
+        CacheInvalidation cacheInvalidation = new CacheInvalidation();
+        dao.ensureBibliographicItems(req.getAgencyId(), List.of(req.getCompleteBibliographicItem().getBibliographicRecordId()), LocalDate.now());
+        trace.lap(UpdateTrace.Phase.ENSURE_ROOT);
+        try (EnqueueService queue = dao.bufferedEnqueueService(queueRulesCache.rules(), enqueueCoalesce)) {
             CompleteBibliographicItem bibliographic = req.getCompleteBibliographicItem();
             log.debug("complete {}/{}", req.getAgencyId(), bibliographic.getBibliographicRecordId());
             Instant modified = modified(bibliographic.getModificationTimeStamp());
             Predicate<Instant> canChange = makeCanChange(modified);
-            BibliographicItemEntity root = BibliographicItemEntity.from(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
-                                                                        Instant.EPOCH, LocalDate.now());
+            BibliographicItemEntity root = BibliographicItemEntity.forUpdate(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
+                                                                             Instant.EPOCH, LocalDate.now());
+            trace.lap(UpdateTrace.Phase.LOCK_WAIT);
+            root.prefetch();
+            trace.lap(UpdateTrace.Phase.LOAD);
             if (root.isNew()) {
-                log.warn("Didn't find a root - ensureRoot failed?");
+                log.warn("Didn't find a root - ensureBibliographicItems failed?");
             }
+            cacheInvalidation.add(root);
             LibIntChanges libIntChanges = new LibIntChanges(root);
-            if (canChange.test(root.getModified()) || root.isNew()) {
-                root.setModified(modified);
-                root.setNote(bibliographic.getNote() == null ? "" : bibliographic.getNote());
-                root.setTrackingId(trackingId);
-            }
+            trace.lap(UpdateTrace.Phase.REPORT);
+            boolean changed = false;
+            Touched touched = new Touched(modified);
 
             for (Holding holding : bibliographic.getHolding()) {
-
+                trace.items(holding.getHoldingsItem().size());
                 IssueEntity issue = root.issue(holding.getIssueId(), modified);
-                if (updateIssue(holding, issue, modified, trackingId)) {
-                    issue.setComplete(modified);
+                boolean stampComplete = ( canChange.test(issue.getModified()) || issue.isNew() ) && !modified.equals(issue.getComplete());
+                if (updateIssue(holding, issue, modified, trackingId, touched)) {
+                    changed = true;
+                    if (stampComplete)
+                        issue.setComplete(modified);
+                } else if (stampComplete) {
+                    touched.complete(issue);
                 }
                 for (HoldingsItem holdingsItem : holding.getHoldingsItem()) {
                     ItemEntity item = issue.item(holdingsItem.getItemId(), modified);
@@ -126,78 +142,161 @@ public class UpdateV1Logic {
                         case ONLINE:
                             throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "You cannot set ONLINE status with update, use online endpoint");
                         case DECOMMISSIONED:
+                            changed |= !item.isNew();
                             issue.removeItem(item);
                             break;
                         default:
-                            updateItem(holdingsItem, item, modified, trackingId);
+                            changed |= updateItem(holdingsItem, item, modified, trackingId, touched);
                             break;
                     }
                 }
             }
 
             log.trace("Cleaning up abandoned items");
-            List<IssueEntity> removeIssues = root.stream()
-                    .map(issue -> {
-                        List<ItemEntity> removeItems = issue.stream()
-                                .filter(item -> item.getModified().isBefore(modified))
-                                .filter(item -> item.getStatus() != Status.ONLINE) // Complete does not change Online
-                                .collect(Collectors.toList());
-                        log.trace("removeItems = {}", removeItems);
-                        removeItems.forEach(issue::removeItem);
-                        return issue;
-                    })
-                    .filter(IssueEntity::isEmpty)
-                    .collect(Collectors.toList());
+            List<IssueEntity> removeIssues = new ArrayList<>();
+            for (IssueEntity issue : root.stream().collect(Collectors.toList())) {
+                List<ItemEntity> removeItems = issue.stream()
+                        .filter(item -> item.getModified().isBefore(modified))
+                        .filter(item -> !touched.contains(item)) // Unchanged by this request
+                        .filter(item -> item.getStatus() != Status.ONLINE) // Complete does not change Online
+                        .collect(Collectors.toList());
+                log.trace("removeItems = {}", removeItems);
+                removeItems.forEach(issue::removeItem);
+                changed |= !removeItems.isEmpty();
+                if (issue.isEmpty())
+                    removeIssues.add(issue);
+            }
             log.trace("removeIssues = {}", removeIssues);
             removeIssues.forEach(root::removeIssue);
 
+            changed |= updateRoot(bibliographic.getNote(), root, changed, modified, trackingId, touched);
+            trace.lap(UpdateTrace.Phase.MERGE);
             root.save();
-            String jsonReport = libIntChanges.report(true);
-            queue.enqueue(completeOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
-            queue.enqueue(completeSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+            touched.apply(em);
+            trace.lap(UpdateTrace.Phase.SAVE);
+            if (changed) {
+                cacheInvalidation.add(root);
+                String jsonReport = libIntChanges.report(true);
+                trace.lap(UpdateTrace.Phase.REPORT);
+                queue.enqueue(completeOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
+                queue.enqueue(completeSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+                trace.lap(UpdateTrace.Phase.ENQUEUE);
+            } else {
+                log.debug("No changes to {}/{}, not enqueued", req.getAgencyId(), bibliographic.getBibliographicRecordId());
+                updateMetrics.suppressed();
+            }
+            queue.flush();
+            trace.lap(UpdateTrace.Phase.ENQUEUE);
+        }
+        cacheCoordinator.publish(em, cacheInvalidation);
+    }
+
+    /**
+     * Complete update of many records of an agency, using set based SQL
+     * <p>
+     * The rules are the same as for {@link #complete(CompleteHoldingsItemsUpdateRequest)},
+     * but the records are only held in memory while being copied to the
+     * database.
+     *
+     * @param agencyId      owner of the records
+     * @param trackingId    tracking id of the load
+     * @param bibliographic the records
+     * @return number of changed records
+     * @throws HoldingsItemsException in case of a database error
+     * @throws UpdateException        if a record cannot be applied
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    public int bulkComplete(int agencyId, String trackingId, Iterator<CompleteBibliographicItem> bibliographic) throws HoldingsItemsException, UpdateException {
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
+        CacheInvalidation cacheInvalidation = new CacheInvalidation();
+        int changed;
+        try (BulkComplete bulk = dao.bulkComplete(agencyId)) {
+            while (bibliographic.hasNext()) {
+                CompleteBibliographicItem record = bibliographic.next();
+                bulk.record(record.getBibliographicRecordId(), record.getNote() == null ? "" : record.getNote(),
+                            modified(record.getModificationTimeStamp()));
+                for (Holding holding : record.getHolding()) {
+                    bulk.issue(holding.getIssueId(), holding.getIssueText(), toLocalDate(holding.getExpectedDeliveryDate()),
+                               (int) (long) holding.getReadyForLoan());
+                    for (HoldingsItem holdingsItem : holding.getHoldingsItem()) {
+                        switch (holdingsItem.getStatus()) {
+                            case ONLINE:
+                                throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "You cannot set ONLINE status with update, use online endpoint");
+                            case DECOMMISSIONED:
+                                bulk.decommission(holding.getIssueId(), holdingsItem.getItemId());
+                                break;
+                            default:
+                                bulk.item(holding.getIssueId(), holdingsItem.getItemId(), convert(holdingsItem.getStatus()),
+                                          holdingsItem.getBranch(), holdingsItem.getBranchId(), holdingsItem.getDepartment(),
+                                          holdingsItem.getLocation(), holdingsItem.getSubLocation(), holdingsItem.getCirculationRule(),
+                                          toLocalDate(holdingsItem.getAccessionDate()), toLocalDate(holdingsItem.getLastLoanDate()),
+                                          LoanRestriction.parse(holdingsItem.getLoanRestriction()));
+                                break;
+                        }
+                    }
+                }
+            }
+            changed = bulk.apply(completeOriginalSupplier, completeSupplier, cacheInvalidation);
+            updateMetrics.suppressed(bulk.getRecordCount() - changed);
         }
+        cacheCoordinator.publish(em, cacheInvalidation);
+        return changed;
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRED)
-    public void update(HoldingsItemsUpdateRequest req) throws HoldingsItemsException, UpdateException {
+    public void update(HoldingsItemsUpdateRequest req, UpdateTrace trace) throws HoldingsItemsException, UpdateException {
         String trackingId = req.getTrackingId();
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
-        try (EnqueueService queue = dao.enqueueService()) {
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
+        CacheInvalidation cacheInvalidation = new CacheInvalidation();
+        try (EnqueueService queue = dao.bufferedEnqueueService(queueRulesCache.rules(), enqueueCoalesce)) {
             List<BibliographicItem> bibliographicItems = req.getBibliographicItem().stream()
                     .sorted(BIBLIOGRAPHICITEM_SORT_COMPARE)
                     .collect(Collectors.toList());
+            dao.ensureBibliographicItems(req.getAgencyId(), bibliographicItems.stream()
+                                         .map(BibliographicItem::getBibliographicRecordId)
+                                         .collect(Collectors.toList()), LocalDate.now());
+            trace.lap(UpdateTrace.Phase.ENSURE_ROOT);
 
             for (BibliographicItem bibliographic : bibliographicItems) {
                 log.debug("update {}/{}", req.getAgencyId(), bibliographic.getBibliographicRecordId());
                 Instant modified = modified(bibliographic.getModificationTimeStamp());
                 Predicate<Instant> canChange = makeCanChange(modified);
-                BibliographicItemEntity root = BibliographicItemEntity.from(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
-                                                                            Instant.EPOCH, LocalDate.now());
+                BibliographicItemEntity root = BibliographicItemEntity.forUpdate(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
+                                                                                 Instant.EPOCH, LocalDate.now());
+                trace.lap(UpdateTrace.Phase.LOCK_WAIT);
+                root.prefetch();
+                trace.lap(UpdateTrace.Phase.LOAD);
                 if (root.isNew()) {
-                    log.warn("Didn't find a root - ensureRoot failed?");
+                    log.warn("Didn't find a root - ensureBibliographicItems failed?");
                 }
+                cacheInvalidation.add(root);
                 LibIntChanges libIntChanges = new LibIntChanges(root);
-                if (canChange.test(root.getModified()) || root.isNew()) {
-                    root.setModified(modified);
-                    root.setNote(bibliographic.getNote() == null ? "" : bibliographic.getNote());
-                    root.setTrackingId(trackingId);
-                }
+                trace.lap(UpdateTrace.Phase.REPORT);
+                boolean changed = false;
+                Touched touched = new Touched(modified);
 
+                ItemIndex itemIndex = new ItemIndex(root);
                 for (Holding holding : bibliographic.getHolding()) {
+                    trace.items(holding.getHoldingsItem().size());
                     IssueEntity issue = root.issue(holding.getIssueId(), modified);
-                    updateIssue(holding, issue, modified, trackingId);
+                    changed |= updateIssue(holding, issue, modified, trackingId, touched);
                     for (HoldingsItem holdingsItem : holding.getHoldingsItem()) {
-                        if (hasNewerItem(root, holding.getIssueId(), holdingsItem.getItemId(), modified))
+                        HasNewerItem newer = hasNewerItem(root, itemIndex, holding.getIssueId(), holdingsItem.getItemId(), modified);
+                        changed |= newer.removed;
+                        if (newer.hasNewer)
                             continue;
                         ItemEntity item = issue.item(holdingsItem.getItemId(), modified);
                         switch (holdingsItem.getStatus()) {
                             case ONLINE:
                                 throw new UpdateException(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, "You cannot set ONLINE status with update, use online endpoint");
                             case DECOMMISSIONED:
+                                changed |= !item.isNew();
                                 issue.removeItem(item);
+                                itemIndex.remove(item);
                                 break;
                             default:
-                                updateItem(holdingsItem, item, modified, trackingId);
+                                changed |= updateItem(holdingsItem, item, modified, trackingId, touched);
+                                itemIndex.add(item);
                                 break;
                         }
                     }
@@ -205,40 +304,65 @@ public class UpdateV1Logic {
                         root.removeIssue(issue);
                     }
                 }
+                changed |= updateRoot(bibliographic.getNote(), root, changed, modified, trackingId, touched);
+                trace.lap(UpdateTrace.Phase.MERGE);
                 root.save();
-                String jsonReport = libIntChanges.report(false);
-                queue.enqueue(updateOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
-                queue.enqueue(updateSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+                touched.apply(em);
+                trace.lap(UpdateTrace.Phase.SAVE);
+                if (changed) {
+                    cacheInvalidation.add(root);
+                    String jsonReport = libIntChanges.report(false);
+                    trace.lap(UpdateTrace.Phase.REPORT);
+                    queue.enqueue(updateOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
+                    queue.enqueue(updateSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+                    trace.lap(UpdateTrace.Phase.ENQUEUE);
+                } else {
+                    log.debug("No changes to {}/{}, not enqueued", req.getAgencyId(), bibliographic.getBibliographicRecordId());
+                    updateMetrics.suppressed();
+                }
             }
+            queue.flush();
+            trace.lap(UpdateTrace.Phase.ENQUEUE);
         }
+        cacheCoordinator.publish(em, cacheInvalidation);
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRED)
-    public void online(OnlineHoldingsItemsUpdateRequest req) throws HoldingsItemsException {
+    public void online(OnlineHoldingsItemsUpdateRequest req, UpdateTrace trace) throws HoldingsItemsException {
         String trackingId = req.getTrackingId();
-        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId);
-        try (EnqueueService queue = dao.enqueueService()) {
+        HoldingsItemsDAO dao = HoldingsItemsDAO.newInstance(em, trackingId, supersedesCache.resolver());
+        CacheInvalidation cacheInvalidation = new CacheInvalidation();
+        try (EnqueueService queue = dao.bufferedEnqueueService(queueRulesCache.rules(), enqueueCoalesce)) {
             List<OnlineBibliographicItem> bibliographicItems = req.getOnlineBibliographicItem().stream()
                     .sorted(ONLINE_BIBLIOGRAPHICITEM_SORT_COMPARE)
                     .collect(Collectors.toList());
+            dao.ensureBibliographicItems(req.getAgencyId(), bibliographicItems.stream()
+                                         .map(OnlineBibliographicItem::getBibliographicRecordId)
+                                         .collect(Collectors.toList()), LocalDate.now());
+            trace.lap(UpdateTrace.Phase.ENSURE_ROOT);
             for (OnlineBibliographicItem bibliographic : bibliographicItems) {
                 log.debug("online {}/{}", req.getAgencyId(), bibliographic.getBibliographicRecordId());
                 Instant modified = modified(bibliographic.getModificationTimeStamp());
                 Predicate<Instant> canChange = makeCanChange(modified);
-                BibliographicItemEntity root = BibliographicItemEntity.from(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
-                                                                            Instant.EPOCH, LocalDate.now());
+                BibliographicItemEntity root = BibliographicItemEntity.forUpdate(em, req.getAgencyId(), bibliographic.getBibliographicRecordId(),
+                                                                                 Instant.EPOCH, LocalDate.now());
+                trace.lap(UpdateTrace.Phase.LOCK_WAIT);
+                root.prefetch();
+                trace.lap(UpdateTrace.Phase.LOAD);
                 if (root.isNew()) {
-                    log.warn("Didn't find a root - ensureRoot failed?");
+                    log.warn("Didn't find a root - ensureBibliographicItems failed?");
                 }
+                cacheInvalidation.add(root);
                 LibIntChanges libIntChanges = new LibIntChanges(root);
+                trace.lap(UpdateTrace.Phase.REPORT);
                 IssueEntity issue = root.issue("", modified);
+                boolean changed = false;
+                Touched touched = new Touched(modified);
 
                 if (bibliographic.isHasOnlineHolding()) {
                     if (canChange.test(issue.getModified()) || issue.isNew()) {
-                        issue.setIssueText("ONLINE");
-                        issue.setModified(modified);
                         ItemEntity item = issue.item("", modified);
-                        if (canChange.test(item.getModified()) || item.isNew()) {
+                        if (item.isNew() || canChange.test(item.getModified()) && differsFromOnline(item)) {
                             item.setStatus(Status.ONLINE);
                             item.setModified(modified);
                             item.setBranch("");
@@ -250,35 +374,128 @@ public class UpdateV1Logic {
                             item.setAccessionDate(LocalDate.now());
                             item.setLastLoanDate(null);
                             item.setTrackingId(trackingId);
+                            changed = true;
+                        } else if (modified.isAfter(item.getModified())) {
+                            touched.add(item);
+                        }
+                        if (changed || issue.isNew() || !"ONLINE".equals(issue.getIssueText())) {
+                            issue.setIssueText("ONLINE");
+                            issue.setModified(modified);
+                            changed = true;
+                        } else if (modified.isAfter(issue.getModified())) {
+                            touched.add(issue);
                         }
                     }
                 } else if (canChange.test(issue.getModified())) {
+                    changed = !issue.isNew();
                     root.removeIssue(issue);
                 }
+                trace.items(1);
+                trace.lap(UpdateTrace.Phase.MERGE);
                 root.save();
-                String jsonReport = libIntChanges.report(false);
-                queue.enqueue(onlineOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
-                queue.enqueue(onlineSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+                touched.apply(em);
+                trace.lap(UpdateTrace.Phase.SAVE);
+                if (changed) {
+                    cacheInvalidation.add(root);
+                    String jsonReport = libIntChanges.report(false);
+                    trace.lap(UpdateTrace.Phase.REPORT);
+                    queue.enqueue(onlineOriginalSupplier, req.getAgencyId(), bibliographic.getBibliographicRecordId(), jsonReport);
+                    queue.enqueue(onlineSupplier, req.getAgencyId(), dao.getActualBibliographicRecordId(bibliographic.getBibliographicRecordId()), jsonReport);
+                    trace.lap(UpdateTrace.Phase.ENQUEUE);
+                } else {
+                    log.debug("No changes to {}/{}, not enqueued", req.getAgencyId(), bibliographic.getBibliographicRecordId());
+                    updateMetrics.suppressed();
+                }
             }
+            queue.flush();
+            trace.lap(UpdateTrace.Phase.ENQUEUE);
         }
+        cacheCoordinator.publish(em, cacheInvalidation);
     }
 
-    private boolean updateIssue(Holding holding, IssueEntity issue, Instant modified, String trackingId) {
+    /**
+     * Set the note of a record, and stamp it as modified if anything in it has
+     * changed
+     * <p>
+     * If nothing has changed, but the request is newer, only modified is
+     * advanced (by touched), so an older request cannot overwrite the values
+     * later.
+     *
+     * @param note          note from the request
+     * @param root          the record
+     * @param recordChanged if issues or items has changed
+     * @param modified      timestamp of the request
+     * @param trackingId    tracking id of the request
+     * @param touched       where unchanged, but newer, rows are registered
+     * @return if the note has changed
+     */
+    private boolean updateRoot(String note, BibliographicItemEntity root, boolean recordChanged, Instant modified, String trackingId, Touched touched) {
         Predicate<Instant> canChange = makeCanChange(modified);
-        boolean changed = canChange.test(issue.getModified()) || issue.isNew();
+        if (!canChange.test(root.getModified()) && !root.isNew())
+            return false;
+        String newNote = note == null ? "" : note;
+        boolean changed = !newNote.equals(root.getNote());
+        if (changed || recordChanged || root.isNew()) {
+            root.setModified(modified);
+            root.setNote(newNote);
+            root.setTrackingId(trackingId);
+        } else if (modified.isAfter(root.getModified())) {
+            touched.add(root);
+        }
+        return changed;
+    }
+
+    /**
+     * Update an issue, if the request is newer and any value differs
+     * <p>
+     * If no value differs, but the request is newer, only modified is
+     * advanced (by touched), so an older request cannot overwrite the values
+     * later.
+     *
+     * @param holding    issue from the request
+     * @param issue      the issue
+     * @param modified   timestamp of the request
+     * @param trackingId tracking id of the request
+     * @param touched    where unchanged, but newer, rows are registered
+     * @return if the issue has been changed
+     */
+    private boolean updateIssue(Holding holding, IssueEntity issue, Instant modified, String trackingId, Touched touched) {
+        Predicate<Instant> canChange = makeCanChange(modified);
+        boolean changed = issue.isNew() ||
+                          canChange.test(issue.getModified()) &&
+                          ( !Objects.equals(issue.getExpectedDelivery(), toLocalDate(holding.getExpectedDeliveryDate())) ||
+                            !Objects.equals(issue.getIssueText(), holding.getIssueText()) ||
+                            issue.getReadyForLoan() != (int) (long) holding.getReadyForLoan() );
         if (changed) {
             issue.setModified(modified);
             issue.setExpectedDelivery(toLocalDate(holding.getExpectedDeliveryDate()));
             issue.setIssueText(holding.getIssueText());
             issue.setReadyForLoan((int) (long) holding.getReadyForLoan());
             issue.setTrackingId(trackingId);
+        } else if (modified.isAfter(issue.getModified())) {
+            touched.add(issue);
         }
         return changed;
     }
 
-    private boolean updateItem(HoldingsItem holdingsitem, ItemEntity item, Instant modified, String trackingId) {
+    /**
+     * Update an item, if the request is newer and any value differs
+     * <p>
+     * If no value differs, but the request is newer, only modified is
+     * advanced (by touched), so an older request cannot overwrite the values
+     * later, and complete doesn't see the item as abandoned.
+     *
+     * @param holdingsitem item from the request
+     * @param item         the item
+     * @param modified     timestamp of the request
+     * @param trackingId   tracking id of the request
+     * @param touched      where unchanged, but newer, rows are registered
+     * @return if the item has been changed
+     */
+    private boolean updateItem(HoldingsItem holdingsitem, ItemEntity item, Instant modified, String trackingId, Touched touched) {
         Predicate<Instant> canChange = makeCanChange(modified);
-        boolean changed = canChange.test(item.getModified()) || item.isNew();
+        boolean changed = item.isNew() ||
+                          canChange.test(item.getModified()) && differs(holdingsitem, item);
         if (changed) {
             LocalDate accessionDate = toLocalDate(holdingsitem.getAccessionDate());
             item.setAccessionDate(accessionDate);
@@ -293,48 +510,95 @@ public class UpdateV1Logic {
             item.setStatus(convert(holdingsitem.getStatus()));
             item.setSubLocation(holdingsitem.getSubLocation());
             item.setTrackingId(trackingId);
+        } else if (modified.isAfter(item.getModified())) {
+            touched.add(item);
         }
         return changed;
     }
 
-    private boolean hasNewerItem(BibliographicItemEntity root, String issueId, String itemId, Instant modified) {
-        Iterator<ItemEntity> iterator = root.stream()
-                .flatMap(IssueEntity::stream)
+    private HasNewerItem hasNewerItem(BibliographicItemEntity root, ItemIndex itemIndex, String issueId, String itemId, Instant modified) {
+        Iterator<ItemEntity> iterator = itemIndex.get(itemId).stream()
                 .filter(i -> i.getStatus() != Status.ONLINE)
-                .filter(i -> itemId.equals(i.getItemId()))
                 .sorted(Comparator.comparing(ItemEntity::getModified).reversed())
                 .iterator();
         // has no items with that id
         if (!iterator.hasNext())
-            return false;
+            return new HasNewerItem(false, false);
         ItemEntity first = iterator.next();
         boolean firstIsOlder = first.getModified().isBefore(modified);
+        boolean removed = false;
 
         // remove all extra (db cleanup)
         while (iterator.hasNext()) {
             ItemEntity removableItem = iterator.next();
             if (firstIsOlder && removableItem.getIssueId().equals(issueId)) // Keep this to be modified
                 continue;
-            IssueEntity removableIssue = root.issue(removableItem.getIssueId(), modified);
-            removableIssue.removeItem(removableItem);
-            if (removableIssue.isEmpty()) {
-                root.removeIssue(removableIssue);
-            }
+            removeItem(root, itemIndex, removableItem, modified);
+            removed = true;
         }
 
         if (!firstIsOlder)
-            return true;
+            return new HasNewerItem(true, removed);
 
         // remove if it is old and not the one we want to modify
         if (!first.getIssueId().equals(issueId)) {
-            IssueEntity removableIssue = root.issue(first.getIssueId(), modified);
-            removableIssue.removeItem(first);
-            if (removableIssue.isEmpty()) {
-                root.removeIssue(removableIssue);
-            }
+            removeItem(root, itemIndex, first, modified);
+            removed = true;
         }
 
-        return false;
+        return new HasNewerItem(false, removed);
+    }
+
+    private void removeItem(BibliographicItemEntity root, ItemIndex itemIndex, ItemEntity item, Instant modified) {
+        IssueEntity removableIssue = root.issue(item.getIssueId(), modified);
+        removableIssue.removeItem(item);
+        itemIndex.remove(item);
+        if (removableIssue.isEmpty()) {
+            root.removeIssue(removableIssue);
+        }
+    }
+
+    private static boolean differs(HoldingsItem holdingsitem, ItemEntity item) {
+        return !Objects.equals(item.getAccessionDate(), toLocalDate(holdingsitem.getAccessionDate())) ||
+               !Objects.equals(item.getBranch(), holdingsitem.getBranch()) ||
+               !Objects.equals(item.getBranchId(), holdingsitem.getBranchId()) ||
+               !Objects.equals(item.getCirculationRule(), holdingsitem.getCirculationRule()) ||
+               !Objects.equals(item.getDepartment(), holdingsitem.getDepartment()) ||
+               !Objects.equals(item.getLastLoanDate(), toLocalDate(holdingsitem.getLastLoanDate())) ||
+               item.getLoanRestriction() != LoanRestriction.parse(holdingsitem.getLoanRestriction()) ||
+               !Objects.equals(item.getLocation(), holdingsitem.getLocation()) ||
+               item.getStatus() != convert(holdingsitem.getStatus()) ||
+               !Objects.equals(item.getSubLocation(), holdingsitem.getSubLocation());
+    }
+
+    /**
+     * If an item isn't the way an online request leaves it
+     * <p>
+     * The accession date isn't compared, it is set when the item is written.
+     *
+     * @param item the item
+     * @return if it should be written
+     */
+    private static boolean differsFromOnline(ItemEntity item) {
+        return item.getStatus() != Status.ONLINE ||
+               !"".equals(item.getBranch()) ||
+               !"".equals(item.getBranchId()) ||
+               !"".equals(item.getDepartment()) ||
+               !"".equals(item.getLocation()) ||
+               !"".equals(item.getSubLocation()) ||
+               !"".equals(item.getCirculationRule()) ||
+               item.getLastLoanDate() != null;
+    }
+
+    private static class HasNewerItem {
+
+        private final boolean hasNewer;
+        private final boolean removed;
+
+        private HasNewerItem(boolean hasNewer, boolean removed) {
+            this.hasNewer = hasNewer;
+            this.removed = removed;
+        }
     }
 
     private static Status convert(StatusType status) {
@@ -0,0 +1,37 @@
+package dk.dbc.holdingsitems.content.response;
+
+import dk.dbc.holdingsitems.jpa.Status;
+
+import java.util.Map;
+
+/**
+ * Class to represent object to return when verifying the status counters of
+ * an agency
+ */
+public class StatusCountVerifyResponse {
+
+    public final int agencyId;
+    public final boolean ok;
+    public final Map<Status, Long> statusCounts;
+    public final Map<Status, Long> countedStatusCounts;
+    public final String trackingId;
+
+    public StatusCountVerifyResponse(int agencyId, Map<Status, Long> statusCounts, Map<Status, Long> countedStatusCounts, String trackingId) {
+        this.agencyId = agencyId;
+        this.ok = statusCounts.equals(countedStatusCounts);
+        this.statusCounts = statusCounts;
+        this.countedStatusCounts = countedStatusCounts;
+        this.trackingId = trackingId;
+    }
+
+    @Override
+    public String toString() {
+        return "StatusCountVerifyResponse{" +
+                "agencyId=" + agencyId +
+                ", ok=" + ok +
+                ", statusCounts=" + statusCounts +
+                ", countedStatusCounts=" + countedStatusCounts +
+                ", trackingId='" + trackingId + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,149 @@
+package dk.dbc.holdingsitems.content;
+
+import dk.dbc.holdingsitems.jpa.CacheCustomizer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import static org.eclipse.persistence.config.PersistenceUnitProperties.*;
+
+/**
+ * A node with the shared JPA cache enabled
+ * <p>
+ * Instead of the listener thread, cache invalidations are received on a
+ * connection of the test, and handed to the {@link JpaCacheCoordinator} of the
+ * node when {@link #deliver()} is called, so a test decides when they arrive.
+ * Gauges registered by the coordinator are kept in {@link #gauges}.
+ */
+public class CacheNode implements AutoCloseable {
+
+    private static final AtomicInteger SESSIONS = new AtomicInteger();
+
+    public final EntityManagerFactory emf;
+    public final Map<String, Supplier<?>> gauges;
+    private final Connection connection;
+    private final List<DatabaseListener.Handler> handlers;
+
+    /**
+     * Start a node
+     *
+     * @param dataSource where the database is
+     * @param ttls       time-to-live variables (JPA_CACHE_TTL_*)
+     * @throws SQLException if the listening connection cannot be made
+     */
+    public CacheNode(DataSource dataSource, Map<String, String> ttls) throws SQLException {
+        Customizer.ttls = ttls;
+        HashMap<String, Object> properties = new HashMap<>();
+        properties.put(NON_JTA_DATASOURCE, dataSource);
+        properties.put(SHARED_CACHE_MODE, "ENABLE_SELECTIVE");
+        properties.put(SESSION_CUSTOMIZER, Customizer.class.getName());
+        properties.put(SESSION_NAME, "cache-node-" + SESSIONS.incrementAndGet());
+        this.emf = Persistence.createEntityManagerFactory("holdingsItemsManual_PU", properties);
+        this.gauges = new ConcurrentHashMap<>();
+        this.handlers = new ArrayList<>();
+        this.connection = dataSource.getConnection();
+
+        JpaCacheCoordinator coordinator = new JpaCacheCoordinator();
+        coordinator.emf = emf;
+        coordinator.listener = new DatabaseListener() {
+            @Override
+            public void register(String channel, Handler handler) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("LISTEN " + channel);
+                    handler.connected(connection);
+                } catch (SQLException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                handlers.add(handler);
+            }
+        };
+        coordinator.metrics = (MetricRegistry) Proxy.newProxyInstance(
+                MetricRegistry.class.getClassLoader(), new Class<?>[] {MetricRegistry.class},
+                (proxy, method, args) -> {
+            if (!method.getName().equals("gauge"))
+                throw new UnsupportedOperationException(method.getName());
+            gauges.put((String) args[0], (Supplier<?>) args[1]);
+            return null;
+        });
+        coordinator.init();
+    }
+
+    /**
+     * Hand invalidations, that has been committed, to the coordinator
+     *
+     * @return number of notifications delivered
+     * @throws SQLException if the database communication fails
+     */
+    public int deliver() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SELECT 1"); // Read what has arrived
+        }
+        PGNotification[] notifications = connection.unwrap(PGConnection.class).getNotifications();
+        if (notifications == null || notifications.length == 0)
+            return 0;
+        List<String> payloads = new ArrayList<>();
+        for (PGNotification notification : notifications) {
+            payloads.add(notification.getParameter());
+        }
+        for (DatabaseListener.Handler handler : handlers) {
+            handler.notified(connection, payloads);
+        }
+        return notifications.length;
+    }
+
+    /**
+     * Look up an entity in a new entity manager (from the cache if it is
+     * there)
+     *
+     * @param <T>    entity type
+     * @param entity entity class
+     * @param key    primary key
+     * @return entity or null
+     */
+    public <T> T find(Class<T> entity, Object key) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return em.find(entity, key);
+        } finally {
+            em.close();
+        }
+    }
+
+    public boolean isCached(Class<?> entity, Object key) {
+        return emf.getCache().contains(entity, key);
+    }
+
+    public long gauge(String name) {
+        return ( (Number) gauges.get(name).get() ).longValue();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+        emf.close();
+    }
+
+    public static class Customizer extends CacheCustomizer {
+
+        private static volatile Map<String, String> ttls = Map.of();
+
+        public Customizer() {
+            super(ttls::get);
+        }
+    }
+}
@@ -276,6 +276,7 @@ public class ContentTest extends JpaBase {
     private ContentResource MockContentResource(EntityManager em) {
         ContentResource mock = mock(ContentResource.class);
         mock.em = em;
+        mock.supersedesCache = new SupersedesCache();
         doCallRealMethod().when(mock).getItemEntity(anyInt(), anyString(), anyString());
         doCallRealMethod().when(mock).getItemEntities(anyInt(), anyInt(), anyList(), anyString());
         doCallRealMethod().when(mock).getByBranch(anyInt(), anyString(), anyList(), anyString());
@@ -451,6 +452,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.agenciesWithHoldings(bibId, "x");
             assertThat(resp.getStatus(), is(200));
             AgenciesWithHoldingsResponse entity = (AgenciesWithHoldingsResponse) resp.getEntity();
@@ -488,6 +490,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test record 1");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.getComplete(agencyId, bibId1, "x");
             assertThat(resp.getStatus(), is(200));
             CompleteBibliographic entity = (CompleteBibliographic) resp.getEntity();
@@ -507,6 +510,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test record 1 - 404");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.getComplete(agencyId, bibId1, "x");
             assertThat(resp.getStatus(), is(404));
         });
@@ -515,6 +519,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test record 2 - record 1 content");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.getComplete(agencyId, bibId2, "x");
             assertThat(resp.getStatus(), is(200));
             CompleteBibliographic entity = (CompleteBibliographic) resp.getEntity();
@@ -539,6 +544,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test record 2 - record 2 and 1 content");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.getComplete(agencyId, bibId2, "x");
             assertThat(resp.getStatus(), is(200));
             CompleteBibliographic entity = (CompleteBibliographic) resp.getEntity();
@@ -581,6 +587,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" `- test record 2 - record 2 and 1(empty) content");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
             Response resp = bean.getComplete(agencyId, bibId2, "x");
             assertThat(resp.getStatus(), is(200));
             CompleteBibliographic entity = (CompleteBibliographic) resp.getEntity();
@@ -630,6 +637,7 @@ public class ContentTest extends JpaBase {
             System.out.println(" - get total holdings of each status for one agency");
             ContentResource bean = new ContentResource();
             bean.em = em;
+            bean.supersedesCache = new SupersedesCache();
 
             Response resp = bean.holdingsPerStatusByAgency(123456, "test-track");
             assertThat(resp.getStatus(), is(200));
@@ -650,4 +658,16 @@ public class ContentTest extends JpaBase {
             assertThat(ent.statusCounts.get(Status.ONLINE), is(2L));
         });
     }
+
+    @Test(timeout = 30_000L)
+    public void testAcceptsGzip() throws Exception {
+        System.out.println("testAcceptsGzip");
+        assertThat(ContentResource.acceptsGzip(null), is(false));
+        assertThat(ContentResource.acceptsGzip(""), is(false));
+        assertThat(ContentResource.acceptsGzip("deflate, br"), is(false));
+        assertThat(ContentResource.acceptsGzip("gzip"), is(true));
+        assertThat(ContentResource.acceptsGzip("deflate, GZIP;q=0.5"), is(true));
+        assertThat(ContentResource.acceptsGzip("gzip;q=0"), is(false));
+        assertThat(ContentResource.acceptsGzip("gzip; q=0.000"), is(false));
+    }
 }
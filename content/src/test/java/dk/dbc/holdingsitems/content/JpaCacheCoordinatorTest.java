@@ -0,0 +1,138 @@
+package dk.dbc.holdingsitems.content;
+
+import dk.dbc.holdingsitems.content.request.SupersedesRequest;
+import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.BibliographicItemKey;
+import dk.dbc.holdingsitems.jpa.CacheCustomizer;
+import dk.dbc.holdingsitems.jpa.IssueEntity;
+import dk.dbc.holdingsitems.jpa.IssueKey;
+import dk.dbc.holdingsitems.jpa.ItemEntity;
+import dk.dbc.holdingsitems.jpa.ItemKey;
+import dk.dbc.holdingsitems.jpa.LoanRestriction;
+import dk.dbc.holdingsitems.jpa.SupersedesEntity;
+import jakarta.persistence.EntityManager;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.persistence.config.CacheIsolationType;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.descriptors.invalidation.TimeToLiveCacheInvalidationPolicy;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.server.Server;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class JpaCacheCoordinatorTest extends JpaBase {
+
+    private static final Map<String, String> TTLS = Map.of("JPA_CACHE_TTL_SUPERSEDES", "60",
+                                                           "JPA_CACHE_TTL_BIBLIOGRAPHICITEM", "60",
+                                                           "JPA_CACHE_TTL_ISSUE", "60",
+                                                           "JPA_CACHE_TTL_ITEM", "30");
+
+    @Test(timeout = 10_000L)
+    public void testTimeToLivePerEntity() throws Exception {
+        System.out.println("testTimeToLivePerEntity");
+        jpa(em -> {
+            makeRecord(em, 700000, "a").save();
+            em.persist(new SupersedesEntity("a", "b"));
+        });
+        try (CacheNode node = new CacheNode(PG.datasource(), Map.of("JPA_CACHE_TTL_BIBLIOGRAPHICITEM", "60",
+                                                                    "JPA_CACHE_TTL_ISSUE", "60",
+                                                                    "JPA_CACHE_TTL_ITEM", "30"))) {
+            assertThat(CacheCustomizer.isEnabled(), is(true));
+            Server session = JpaHelper.getServerSession(node.emf);
+            assertThat(timeToLive(session.getDescriptor(BibliographicItemEntity.class)), is(60_000L));
+            assertThat(timeToLive(session.getDescriptor(IssueEntity.class)), is(60_000L));
+            assertThat(timeToLive(session.getDescriptor(ItemEntity.class)), is(30_000L));
+            assertThat(session.getDescriptor(SupersedesEntity.class).getCachePolicy().getCacheIsolation(), is(CacheIsolationType.ISOLATED));
+
+            node.find(BibliographicItemEntity.class, new BibliographicItemKey(700000, "a"));
+            node.find(SupersedesEntity.class, "a");
+            assertThat(node.isCached(BibliographicItemEntity.class, new BibliographicItemKey(700000, "a")), is(true));
+            assertThat(node.isCached(IssueEntity.class, new IssueKey(700000, "a", "i1")), is(true));
+            assertThat(node.isCached(ItemEntity.class, new ItemKey(700000, "a", "i1", "it1")), is(true));
+            assertThat(node.isCached(SupersedesEntity.class, "a"), is(false));
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void testHitsAndMissesAreCounted() throws Exception {
+        System.out.println("testHitsAndMissesAreCounted");
+        jpa(em -> {
+            em.persist(new SupersedesEntity("a", "b"));
+        });
+        try (CacheNode node = new CacheNode(PG.datasource(), TTLS)) {
+            assertThat(node.gauges.keySet(), containsInAnyOrder("jpa_cache_hits", "jpa_cache_misses"));
+            long hits = node.gauge("jpa_cache_hits");
+            long misses = node.gauge("jpa_cache_misses");
+            node.find(SupersedesEntity.class, "a");
+            assertThat(node.gauge("jpa_cache_misses"), greaterThan(misses));
+            node.find(SupersedesEntity.class, "a");
+            assertThat(node.gauge("jpa_cache_hits"), greaterThan(hits));
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void testSupersedesEvictsAfterCommit() throws Exception {
+        System.out.println("testSupersedesEvictsAfterCommit");
+        jpa(em -> {
+            em.persist(new SupersedesEntity("a", "b"));
+        });
+        try (CacheNode node = new CacheNode(PG.datasource(), TTLS)) {
+            assertThat(node.find(SupersedesEntity.class, "a").getSuperseding(), is("b"));
+            assertThat(node.isCached(SupersedesEntity.class, "a"), is(true));
+            jpa(em -> {
+                SupersedesRequest req = new SupersedesRequest();
+                req.supersedes = List.of("a");
+                bean(em).put(req, "c", "t1");
+                assertThat(node.deliver(), is(0)); // Not committed yet
+                assertThat(node.isCached(SupersedesEntity.class, "a"), is(true));
+            });
+            assertThat(node.deliver(), greaterThan(0));
+            assertThat(node.isCached(SupersedesEntity.class, "a"), is(false));
+            assertThat(node.find(SupersedesEntity.class, "a").getSuperseding(), is("c"));
+        }
+    }
+
+    private static long timeToLive(ClassDescriptor descriptor) {
+        assertThat(descriptor.getCachePolicy().getCacheIsolation(), is(CacheIsolationType.SHARED));
+        assertThat(descriptor.getCacheInvalidationPolicy(), instanceOf(TimeToLiveCacheInvalidationPolicy.class));
+        return ( (TimeToLiveCacheInvalidationPolicy) descriptor.getCacheInvalidationPolicy() ).getTimeToLive();
+    }
+
+    private static BibliographicItemEntity makeRecord(EntityManager em, int agencyId, String bibliographicRecordId) {
+        Instant now = Instant.now();
+        LocalDate today = LocalDate.now();
+        BibliographicItemEntity bib = BibliographicItemEntity.from(em, agencyId, bibliographicRecordId, now, today);
+        bib.setTrackingId("x");
+        IssueEntity issue = bib.issue("i1", now);
+        issue.setExpectedDelivery(today);
+        issue.setFirstAccessionDate(today);
+        issue.setReadyForLoan(1);
+        issue.setIssueText("");
+        ItemEntity item = issue.item("it1", now);
+        item.setAccessionDate(today);
+        item.setBranch("bran");
+        item.setBranchId("710100");
+        item.setCirculationRule("None");
+        item.setDepartment("dep");
+        item.setLoanRestriction(LoanRestriction.EMPTY);
+        item.setLocation("loc");
+        item.setStatus(dk.dbc.holdingsitems.jpa.Status.ON_SHELF);
+        item.setSubLocation("sub-loc");
+        item.setTrackingId("x");
+        return bib;
+    }
+
+    private Supersedes bean(EntityManager em) {
+        Supersedes supersedes = new Supersedes();
+        supersedes.em = em;
+        supersedes.cacheCoordinator = new JpaCacheCoordinator();
+        supersedes.queueRulesCache = new QueueRulesCache();
+        supersedes.supplier = "SUPERSEDE";
+        return supersedes;
+    }
+}
@@ -168,6 +168,8 @@ public class SupersedesTest extends JpaBase {
     private Supersedes bean(EntityManager em) {
         Supersedes supersedes = new Supersedes();
         supersedes.em = em;
+        supersedes.cacheCoordinator = new JpaCacheCoordinator();
+        supersedes.queueRulesCache = new QueueRulesCache();
         supersedes.supplier = "SUPERSEDE";
         return supersedes;
     }
@@ -0,0 +1,83 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.Authentication;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class AuthenticationCacheTest {
+
+    @Test(timeout = 2_000L)
+    public void testLookupStore() throws Exception {
+        System.out.println("testLookupStore");
+        AuthenticationCache cache = cache(10);
+        String allowed = cache.key(auth("user", "710100", "secret"));
+        String denied = cache.key(auth("user", "710100", "wrong"));
+
+        assertThat(cache.lookup(allowed), nullValue());
+        cache.store(allowed, true);
+        cache.store(denied, false);
+        assertThat(cache.lookup(allowed), is(true));
+        assertThat(cache.lookup(denied), is(false));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testKeyIsHashOfAllFields() throws Exception {
+        System.out.println("testKeyIsHashOfAllFields");
+        AuthenticationCache cache = cache(10);
+        String key = cache.key(auth("user", "710100", "secret"));
+
+        assertThat(key, is(cache.key(auth("user", "710100", "secret"))));
+        assertThat(key, not(containsString("secret")));
+        assertThat(key, not(cache.key(auth("user", "710101", "secret"))));
+        assertThat(key, not(cache.key(auth("use", "r710100", "secret"))));
+        assertThat(key, not(cache.key(auth("user", "710100", null))));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBounded() throws Exception {
+        System.out.println("testBounded");
+        AuthenticationCache cache = cache(2);
+        cache.store("a", true);
+        cache.store("b", true);
+        cache.store("c", true);
+
+        assertThat(cache.lookup("a"), nullValue());
+        assertThat(cache.lookup("b"), is(true));
+        assertThat(cache.lookup("c"), is(true));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFullEvictsOldest() throws Exception {
+        System.out.println("testFullEvictsOldest");
+        AuthenticationCache cache = cache(10);
+        for (int i = 0 ; i < 10 ; i++) {
+            cache.store("k" + i, i % 2 == 0);
+        }
+        cache.lookup("k0"); // Being used doesn't keep it
+        cache.store("new", true);
+
+        assertThat(cache.lookup("k0"), nullValue());
+        for (int i = 1 ; i < 10 ; i++) {
+            assertThat(cache.lookup("k" + i), is(i % 2 == 0));
+        }
+        assertThat(cache.lookup("new"), is(true));
+    }
+
+    private static AuthenticationCache cache(int maxSize) {
+        AuthenticationCache cache = new AuthenticationCache();
+        cache.ttl = 60;
+        cache.negativeTtl = 10;
+        cache.maxSize = maxSize;
+        return cache;
+    }
+
+    private static Authentication auth(String user, String group, String password) {
+        Authentication auth = new Authentication();
+        auth.setUserIdAut(user);
+        auth.setGroupIdAut(group);
+        auth.setPasswordAut(password);
+        return auth;
+    }
+}
@@ -0,0 +1,105 @@
+package dk.dbc.holdingsitems.content.api.v1.update;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.microprofile.metrics.Histogram;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class UpdateMetricsTest {
+
+    @Test(timeout = 2_000L)
+    public void testSizeBucket() throws Exception {
+        System.out.println("testSizeBucket");
+        assertThat(UpdateMetrics.sizeBucket(0), is("1"));
+        assertThat(UpdateMetrics.sizeBucket(1), is("1"));
+        assertThat(UpdateMetrics.sizeBucket(2), is("10"));
+        assertThat(UpdateMetrics.sizeBucket(10), is("10"));
+        assertThat(UpdateMetrics.sizeBucket(11), is("100"));
+        assertThat(UpdateMetrics.sizeBucket(100), is("100"));
+        assertThat(UpdateMetrics.sizeBucket(101), is("many"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testSlowThreshold() throws Exception {
+        System.out.println("testSlowThreshold");
+        UpdateMetrics updateMetrics = new UpdateMetrics();
+        updateMetrics.slowTraceMs = 1000;
+        assertThat(updateMetrics.isSlow(999), is(false));
+        assertThat(updateMetrics.isSlow(1000), is(true));
+        assertThat(updateMetrics.isSlow(1001), is(true));
+
+        updateMetrics.slowTraceMs = 0; // Disabled
+        assertThat(updateMetrics.isSlow(0), is(false));
+        assertThat(updateMetrics.isSlow(Long.MAX_VALUE), is(false));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testFailedIsRecordedWithOutcome() throws Exception {
+        System.out.println("testFailedIsRecordedWithOutcome");
+        List<String> recorded = new ArrayList<>();
+        UpdateMetrics updateMetrics = updateMetrics(recorded);
+
+        UpdateTrace ok = new UpdateTrace("update", "t1");
+        ok.items(2);
+        ok.lap(UpdateTrace.Phase.MERGE);
+        updateMetrics.record(ok);
+        assertThat(recorded, hasItems("update_total_ms operation=update outcome=ok size=10",
+                                      "update_lock_wait_ms operation=update",
+                                      "update_phase_ms operation=update phase=merge size=10"));
+
+        recorded.clear();
+        UpdateTrace failed = new UpdateTrace("online", "t2");
+        failed.lap(UpdateTrace.Phase.VALIDATE);
+        updateMetrics.record(failed.failed(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR));
+        assertThat(failed.getOutcome(), is(HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR.value()));
+        assertThat(recorded, contains("update_total_ms operation=online outcome=" + HoldingsItemsUpdateStatusEnum.AUTHENTICATION_ERROR.value() + " size=1"));
+    }
+
+    @Test(timeout = 2_000L)
+    public void testRecordWithoutRegistry() throws Exception {
+        System.out.println("testRecordWithoutRegistry");
+        UpdateMetrics updateMetrics = new UpdateMetrics();
+        updateMetrics.record(new UpdateTrace("complete", "t1").failed(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR));
+        updateMetrics.record(new UpdateTrace("complete", "t2"));
+    }
+
+    private static UpdateMetrics updateMetrics(List<String> recorded) {
+        UpdateMetrics updateMetrics = new UpdateMetrics();
+        updateMetrics.metrics = (MetricRegistry) Proxy.newProxyInstance(
+                MetricRegistry.class.getClassLoader(), new Class<?>[] {MetricRegistry.class},
+                (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "gauge":
+                    return null;
+                case "histogram":
+                    StringBuilder name = new StringBuilder((String) args[0]);
+                    for (Tag tag : (Tag[]) args[1]) {
+                        name.append(' ').append(tag.getTagName()).append('=').append(tag.getTagValue());
+                    }
+                    return histogram(recorded, name.toString());
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        updateMetrics.init();
+        return updateMetrics;
+    }
+
+    private static Histogram histogram(List<String> recorded, String name) {
+        return (Histogram) Proxy.newProxyInstance(
+                Histogram.class.getClassLoader(), new Class<?>[] {Histogram.class},
+                (proxy, method, args) -> {
+            if (!method.getName().equals("update"))
+                throw new UnsupportedOperationException(method.getName());
+            recorded.add(name);
+            return null;
+        });
+    }
+}
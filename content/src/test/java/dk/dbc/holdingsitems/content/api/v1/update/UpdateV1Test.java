@@ -1,28 +1,41 @@
 package dk.dbc.holdingsitems.content.api.v1.update;
 
+import dk.dbc.holdingsitems.content.CacheNode;
 import dk.dbc.holdingsitems.content.JpaBase;
+import dk.dbc.holdingsitems.content.JpaCacheCoordinator;
+import dk.dbc.holdingsitems.content.QueueRulesCache;
+import dk.dbc.holdingsitems.content.SupersedesCache;
 import dk.dbc.holdingsitems.jpa.BibliographicItemEntity;
+import dk.dbc.holdingsitems.jpa.BibliographicItemKey;
 import dk.dbc.holdingsitems.jpa.IssueEntity;
 import dk.dbc.holdingsitems.jpa.ItemEntity;
+import dk.dbc.holdingsitems.jpa.ItemKey;
 import dk.dbc.oss.ns.holdingsitemsupdate.BibliographicItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.CompleteBibliographicItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.Holding;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResponse;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
 import dk.dbc.oss.ns.holdingsitemsupdate.ModificationTimeStamp;
 import dk.dbc.oss.ns.holdingsitemsupdate.OnlineBibliographicItem;
 import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.StatusType;
+import jakarta.ejb.SessionContext;
 import jakarta.persistence.EntityManager;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Instant;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.junit.After;
 import org.junit.Before;
@@ -180,6 +193,440 @@ public class UpdateV1Test extends JpaBase {
         testQueue("update/700000/a");
     }
 
+    @Test(timeout = 2_000L)
+    public void testUnchangedIsNotEnqueued() throws Exception {
+        System.out.println("testUnchangedIsNotEnqueued");
+        Instant now = Instant.now();
+        Function<Instant, HoldingsItemsUpdateRequest> request = modified -> new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("fool")
+                .useBibliographicItem(bibliographic("a")
+                        .useModificationTimeStamp(ts(modified))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1")
+                                        .useAccessionDate(now.minus(4, DAYS))
+                                        .useStatus(StatusType.ON_SHELF))));
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(request.apply(now));
+        });
+        testQueue("update/700000/a");
+
+        // Same content resent later
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(request.apply(now.plusSeconds(60)));
+        });
+        testQueue();
+
+        // Changed content
+        jpa(em -> {
+            HoldingsItemsUpdateRequest req = request.apply(now.plusSeconds(120));
+            req.getBibliographicItem().get(0).getHolding().get(0).getHoldingsItem().get(0).setStatus(StatusType.ON_LOAN);
+            bean(em).holdingsItemsUpdate(req);
+        });
+        try (Connection connection = PG.createConnection();
+             Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("SELECT stateChange FROM queue")) {
+            assertThat(resultSet.next(), is(true));
+            assertThat(resultSet.getString(1), containsString("\"items\":{\"i1\":{\"newStatus\":\"OnLoan\",\"oldStatus\":\"OnShelf\","));
+        }
+        testQueue("update/700000/a");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testUnchangedNewerKeepsModified() throws Exception {
+        System.out.println("testUnchangedNewerKeepsModified");
+        Instant now = Instant.now();
+        Function<Instant, HoldingsItemsUpdateRequest> request = modified -> new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("fool")
+                .useBibliographicItem(bibliographic("a")
+                        .useModificationTimeStamp(ts(modified))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1")
+                                        .useAccessionDate(now.minus(4, DAYS))
+                                        .useStatus(StatusType.ON_SHELF))));
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(request.apply(now));
+        });
+        testQueue("update/700000/a");
+
+        // Same content resent later
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(request.apply(now.plusSeconds(120)));
+        });
+        testQueue();
+
+        // Changed content, that is older than the resend
+        jpa(em -> {
+            HoldingsItemsUpdateRequest req = request.apply(now.plusSeconds(60));
+            req.getBibliographicItem().get(0).getHolding().get(0).getHoldingsItem().get(0).setStatus(StatusType.ON_LOAN);
+            bean(em).holdingsItemsUpdate(req);
+        });
+        testQueue();
+        jpa(em -> {
+            BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, 700000, "a");
+            ItemEntity item = entity.issue("1", now).item("i1", now);
+            assertThat(item.getStatus(), is(dk.dbc.holdingsitems.jpa.Status.ON_SHELF));
+            assertThat(item.getModified(), is(now.plusSeconds(120)));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testIdenticalResendKeepsVersions() throws Exception {
+        System.out.println("testIdenticalResendKeepsVersions");
+        Instant now = Instant.now();
+        CompleteHoldingsItemsUpdateRequest request = new CompleteHoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("fool")
+                .useCompleteBibliographicItem(complete("a")
+                        .useModificationTimeStamp(ts(now))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1")
+                                        .useAccessionDate(now.minus(4, DAYS)))));
+        jpa(em -> {
+            bean(em).completeHoldingsItemsUpdate(request);
+        });
+        testQueue("complete/700000/a");
+        Set<String> versions = versions(700000, "a");
+
+        jpa(em -> {
+            bean(em).completeHoldingsItemsUpdate(request);
+        });
+        testQueue();
+        assertThat(versions(700000, "a"), is(versions));
+
+        // Same content, newer timestamp
+        request.getCompleteBibliographicItem().setModificationTimeStamp(ts(now.plusSeconds(60)));
+        jpa(em -> {
+            bean(em).completeHoldingsItemsUpdate(request);
+        });
+        testQueue();
+        assertThat(versions(700000, "a"), is(versions));
+        testItems(700000, "a", "a/1/i1");
+        jpa(em -> {
+            BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, 700000, "a");
+            assertThat(entity.getModified(), is(now.plusSeconds(60)));
+            IssueEntity issue = entity.issue("1", now);
+            assertThat(issue.getModified(), is(now.plusSeconds(60)));
+            assertThat(issue.getComplete(), is(now.plusSeconds(60)));
+            assertThat(issue.item("i1", now).getModified(), is(now.plusSeconds(60)));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testUnchangedOnlineIsNotEnqueued() throws Exception {
+        System.out.println("testUnchangedOnlineIsNotEnqueued");
+        Instant now = Instant.now();
+        Function<Instant, OnlineHoldingsItemsUpdateRequest> request = modified -> new OnlineHoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("fool")
+                .useOnlineBibliographicItem(online("a")
+                        .useModificationTimeStamp(ts(modified))
+                        .useHasOnlineHolding(true));
+        jpa(em -> {
+            bean(em).onlineHoldingsItemsUpdate(request.apply(now));
+        });
+        testQueue("online/700000/a");
+        Set<String> versions = versions(700000, "a");
+
+        // Same content resent later
+        jpa(em -> {
+            bean(em).onlineHoldingsItemsUpdate(request.apply(now.plusSeconds(60)));
+        });
+        testQueue();
+        assertThat(versions(700000, "a"), is(versions));
+        jpa(em -> {
+            BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, 700000, "a");
+            assertThat(entity.issue("", now).item("", now).getModified(), is(now.plusSeconds(60)));
+        });
+
+        // Removing online, that is older than the resend
+        jpa(em -> {
+            OnlineHoldingsItemsUpdateRequest req = request.apply(now.plusSeconds(30));
+            req.getOnlineBibliographicItem().get(0).setHasOnlineHolding(false);
+            bean(em).onlineHoldingsItemsUpdate(req);
+        });
+        testQueue();
+        testItems(700000, "a", "a//");
+
+        // Removing online
+        jpa(em -> {
+            OnlineHoldingsItemsUpdateRequest req = request.apply(now.plusSeconds(120));
+            req.getOnlineBibliographicItem().get(0).setHasOnlineHolding(false);
+            bean(em).onlineHoldingsItemsUpdate(req);
+        });
+        testQueue("online/700000/a");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBulkCompleteKeepsNewerModified() throws Exception {
+        System.out.println("testBulkCompleteKeepsNewerModified");
+        Instant now = Instant.now();
+        Supplier<Holding> holding = () -> new Holding()
+                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                .useIssueId("1")
+                .useIssueText("Volume 1")
+                .useReadyForLoan(0L)
+                .useHoldingsItem(holdingsItem("i1")
+                        .useAccessionDate(now.minus(4, DAYS)));
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(new HoldingsItemsUpdateRequest()
+                    .useAgencyId(700000)
+                    .useAuthentication(null)
+                    .useTrackingId("fool")
+                    .useBibliographicItem(bibliographic("a")
+                            .useModificationTimeStamp(ts(now))
+                            .useHolding(holding.get())));
+        });
+        testQueue("update/700000/a");
+        Set<String> versions = versions(700000, "a");
+
+        // Same content in a bulk complete later
+        jpa(em -> {
+            int changed = bean(em).updateLogic.bulkComplete(700000, "bulk", List.of(complete("a")
+                    .useModificationTimeStamp(ts(now.plusSeconds(120)))
+                    .useHolding(holding.get())).iterator());
+            assertThat(changed, is(0));
+        });
+        testQueue();
+        assertThat(versions(700000, "a"), is(versions));
+
+        // Changed content, that is older than the bulk complete
+        jpa(em -> {
+            HoldingsItemsUpdateRequest req = new HoldingsItemsUpdateRequest()
+                    .useAgencyId(700000)
+                    .useAuthentication(null)
+                    .useTrackingId("fool")
+                    .useBibliographicItem(bibliographic("a")
+                            .useModificationTimeStamp(ts(now.plusSeconds(60)))
+                            .useHolding(holding.get()));
+            req.getBibliographicItem().get(0).getHolding().get(0).getHoldingsItem().get(0).setStatus(StatusType.ON_LOAN);
+            bean(em).holdingsItemsUpdate(req);
+        });
+        // Complete without the item, that is older than the bulk complete
+        jpa(em -> {
+            bean(em).completeHoldingsItemsUpdate(new CompleteHoldingsItemsUpdateRequest()
+                    .useAgencyId(700000)
+                    .useAuthentication(null)
+                    .useTrackingId("fool")
+                    .useCompleteBibliographicItem(complete("a")
+                            .useModificationTimeStamp(ts(now.plusSeconds(60)))));
+        });
+        testQueue();
+        testItems(700000, "a", "a/1/i1");
+        jpa(em -> {
+            BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, 700000, "a");
+            assertThat(entity.getModified(), is(now.plusSeconds(120)));
+            ItemEntity item = entity.issue("1", now).item("i1", now);
+            assertThat(item.getStatus(), is(dk.dbc.holdingsitems.jpa.Status.ON_SHELF));
+            assertThat(item.getModified(), is(now.plusSeconds(120)));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testStagedUpdatesAreAppliedInOrder() throws Exception {
+        System.out.println("testStagedUpdatesAreAppliedInOrder");
+        Instant now = Instant.now();
+        Function<StatusType, HoldingsItemsUpdateRequest> request = status -> new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("staged")
+                .useBibliographicItem(bibliographic("a")
+                        .useModificationTimeStamp(ts(now))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1")
+                                        .useStatus(status))));
+        jpa(em -> {
+            UpdateStaging staging = staging(em);
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "staged", request.apply(StatusType.ON_SHELF));
+            HoldingsItemsUpdateRequest later = request.apply(StatusType.ON_LOAN);
+            later.getBibliographicItem().get(0).setModificationTimeStamp(ts(now.plusSeconds(60)));
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "staged", later);
+            assertThat(staging.status(700000, "staged").size(), is(2));
+            assertThat(staging.status(700001, "staged"), empty());
+            assertThat(staging.status(700000, "staged"), everyItem(field("state", is("PENDING"))));
+
+            assertThat(staging.applyNext(), contains(HoldingsItemsUpdateStatusEnum.OK));
+            assertThat(staging.applyNext(), contains(HoldingsItemsUpdateStatusEnum.OK));
+            assertThat(staging.applyNext(), empty());
+            assertThat(staging.status(700000, "staged"), everyItem(field("state", is("DONE"))));
+
+            BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, 700000, "a");
+            assertThat(entity.issue("1", now).item("i1", now).getStatus(), is(dk.dbc.holdingsitems.jpa.Status.ON_LOAN));
+        });
+    }
+
+    @Test(timeout = 2_000L)
+    public void testStagedUpdatesAreGrouped() throws Exception {
+        System.out.println("testStagedUpdatesAreGrouped");
+        Instant now = Instant.now();
+        Function<String, HoldingsItemsUpdateRequest> request = bibliographicRecordId -> new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("grouped")
+                .useBibliographicItem(bibliographic(bibliographicRecordId)
+                        .useModificationTimeStamp(ts(now))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1"))));
+        jpa(em -> {
+            UpdateStaging staging = staging(em);
+            staging.groupSize = 10;
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "grouped", request.apply("a"));
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "grouped", request.apply("b"));
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "grouped", request.apply("c"));
+
+            assertThat(staging.applyNext(), contains(HoldingsItemsUpdateStatusEnum.OK, HoldingsItemsUpdateStatusEnum.OK, HoldingsItemsUpdateStatusEnum.OK));
+            assertThat(staging.applyNext(), empty());
+            assertThat(staging.status(700000, "grouped"), everyItem(field("state", is("DONE"))));
+        });
+        testItems(700000, "a", "a/1/i1");
+        testItems(700000, "c", "c/1/i1");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testStagedUpdatesAreLeased() throws Exception {
+        System.out.println("testStagedUpdatesAreLeased");
+        HoldingsItemsUpdateRequest request = new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useAuthentication(null)
+                .useTrackingId("leased")
+                .useBibliographicItem(bibliographic("a")
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(Instant.now().plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1"))));
+        jpa(em -> {
+            UpdateStaging staging = staging(em);
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "leased", request);
+            staging.stage(UpdateStaging.Kind.UPDATE, 700000, "leased", request);
+
+            assertThat(staging.applier.claim(1, 900).size(), is(1));
+            assertThat(staging.status(700000, "leased"), contains(field("state", is("RUNNING")), field("state", is("PENDING"))));
+            // The agency has a running request
+            assertThat(staging.applyNext(), empty());
+
+            em.createNativeQuery("UPDATE update_staging SET leased = clock_timestamp() - INTERVAL '1 second' WHERE state = 'RUNNING'")
+                    .executeUpdate();
+            // The lease has expired (worker died), both are claimed
+            staging.groupSize = 10;
+            assertThat(staging.applyNext(), contains(HoldingsItemsUpdateStatusEnum.OK, HoldingsItemsUpdateStatusEnum.OK));
+            assertThat(staging.status(700000, "leased"), everyItem(field("state", is("DONE"))));
+        });
+        testItems(700000, "a", "a/1/i1");
+    }
+
+    @Test(timeout = 2_000L)
+    public void testBatchLeavesOutFailedRequest() throws Exception {
+        System.out.println("testBatchLeavesOutFailedRequest");
+        Instant now = Instant.now();
+        Function<String, BibliographicItem> record = bibliographicRecordId -> bibliographic(bibliographicRecordId)
+                .useModificationTimeStamp(ts(now))
+                .useHolding(new Holding()
+                        .useExpectedDeliveryDate(now.plus(5, DAYS))
+                        .useIssueId("1")
+                        .useIssueText("Volume 1")
+                        .useReadyForLoan(0L)
+                        .useHoldingsItem(holdingsItem("i1")));
+        // Fails at the second record, after the first has been saved
+        HoldingsItemsUpdateRequest failing = new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useTrackingId("batch-b")
+                .useBibliographicItem(record.apply("b"));
+        failing.getBibliographicItem().add(record.apply("b2"));
+        failing.getBibliographicItem().get(1).getHolding().get(0).getHoldingsItem().get(0).setStatus(StatusType.ONLINE);
+        List<HoldingsItemsUpdateRequest> requests = List.of(
+                new HoldingsItemsUpdateRequest()
+                        .useAgencyId(700000)
+                        .useTrackingId("batch-a")
+                        .useBibliographicItem(record.apply("a")),
+                failing,
+                new HoldingsItemsUpdateRequest()
+                        .useAgencyId(700000)
+                        .useTrackingId("batch-c")
+                        .useBibliographicItem(record.apply("c")));
+        jpa(em -> {
+            @SuppressWarnings("unchecked")
+            List<HoldingsItemsUpdateResponse> responses = (List<HoldingsItemsUpdateResponse>) bean(em).batchHoldingsItemsUpdate(requests).getEntity();
+            assertThat(responses.stream()
+                    .map(resp -> resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus())
+                    .collect(Collectors.toList()),
+                       contains(HoldingsItemsUpdateStatusEnum.OK, HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR, HoldingsItemsUpdateStatusEnum.OK));
+        });
+        testQueue("update/700000/a", "update/700000/c");
+        testItems(700000, "a", "a/1/i1");
+        testItems(700000, "c", "c/1/i1");
+        assertThat(versions(700000, "b"), empty());
+        assertThat(versions(700000, "b2"), empty());
+        jpa(em -> {
+            assertThat(BibliographicItemEntity.fromUnLocked(em, 700000, "a").issue("1", now).getTrackingId(), is("batch-a"));
+            assertThat(BibliographicItemEntity.fromUnLocked(em, 700000, "c").issue("1", now).getTrackingId(), is("batch-c"));
+        });
+    }
+
+    @Test(timeout = 10_000L)
+    public void testUpdateEvictsAfterCommit() throws Exception {
+        System.out.println("testUpdateEvictsAfterCommit");
+        Instant now = Instant.now();
+        Function<Instant, HoldingsItemsUpdateRequest> request = modified -> new HoldingsItemsUpdateRequest()
+                .useAgencyId(700000)
+                .useTrackingId("evict")
+                .useBibliographicItem(bibliographic("a")
+                        .useModificationTimeStamp(ts(modified))
+                        .useHolding(new Holding()
+                                .useExpectedDeliveryDate(now.plus(5, DAYS))
+                                .useIssueId("1")
+                                .useIssueText("Volume 1")
+                                .useReadyForLoan(0L)
+                                .useHoldingsItem(holdingsItem("i1"))));
+        jpa(em -> {
+            bean(em).holdingsItemsUpdate(request.apply(now));
+        });
+        try (CacheNode node = new CacheNode(PG.datasource(), Map.of("JPA_CACHE_TTL_BIBLIOGRAPHICITEM", "60",
+                                                                    "JPA_CACHE_TTL_ISSUE", "60",
+                                                                    "JPA_CACHE_TTL_ITEM", "60"))) {
+            ItemKey key = new ItemKey(700000, "a", "1", "i1");
+            node.find(BibliographicItemEntity.class, new BibliographicItemKey(700000, "a"));
+            assertThat(node.isCached(ItemEntity.class, key), is(true));
+            jpa(em -> {
+                HoldingsItemsUpdateRequest req = request.apply(now.plusSeconds(60));
+                req.getBibliographicItem().get(0).getHolding().get(0).getHoldingsItem().get(0).setStatus(StatusType.ON_LOAN);
+                bean(em).holdingsItemsUpdate(req);
+                assertThat(node.deliver(), is(0)); // Not committed yet
+                assertThat(node.isCached(ItemEntity.class, key), is(true));
+            });
+            assertThat(node.deliver(), greaterThan(0));
+            assertThat(node.isCached(ItemEntity.class, key), is(false));
+            assertThat(node.isCached(BibliographicItemEntity.class, new BibliographicItemKey(700000, "a")), is(false));
+            assertThat(node.find(ItemEntity.class, key).getStatus(), is(dk.dbc.holdingsitems.jpa.Status.ON_LOAN));
+        }
+    }
+
     private CompleteBibliographicItem complete(String bibliographicRecordId) {
         return new CompleteBibliographicItem()
                 .useBibliographicRecordId(bibliographicRecordId)
@@ -227,6 +674,26 @@ public class UpdateV1Test extends JpaBase {
         assertThat(rows, containsInAnyOrder(queueItems));
     }
 
+    private Set<String> versions(int agencyId, String bibliographicRecordId) throws SQLException {
+        HashSet<String> rows = new HashSet<>();
+        try (Connection connection = PG.createConnection();
+             Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery(
+                     "SELECT bibliographicRecordId || '=' || version FROM bibliographicItem" +
+                     " WHERE agencyId = " + agencyId + " AND bibliographicRecordId = '" + bibliographicRecordId + "'" +
+                     " UNION ALL" +
+                     " SELECT bibliographicRecordId || '/' || issueId || '=' || version FROM issue" +
+                     " WHERE agencyId = " + agencyId + " AND bibliographicRecordId = '" + bibliographicRecordId + "'" +
+                     " UNION ALL" +
+                     " SELECT bibliographicRecordId || '/' || issueId || '/' || itemId || '=' || version FROM item" +
+                     " WHERE agencyId = " + agencyId + " AND bibliographicRecordId = '" + bibliographicRecordId + "'")) {
+            while (resultSet.next()) {
+                rows.add(resultSet.getString(1));
+            }
+        }
+        return rows;
+    }
+
     private void testItems(int agencyId, String bibliographicRecordId, String... itemIds) {
         jpa(em -> {
             BibliographicItemEntity entity = BibliographicItemEntity.fromUnLocked(em, agencyId, bibliographicRecordId);
@@ -241,15 +708,44 @@ public class UpdateV1Test extends JpaBase {
         bean.accessValidator.disableAuthentication = true;
         bean.updateLogic = new UpdateV1Logic();
         bean.updateLogic.em = em;
+        bean.updateLogic.cacheCoordinator = new JpaCacheCoordinator();
+        bean.updateLogic.supersedesCache = new SupersedesCache();
+        bean.updateLogic.queueRulesCache = new QueueRulesCache();
+        bean.updateLogic.updateMetrics = new UpdateMetrics();
+        bean.updateMetrics = bean.updateLogic.updateMetrics;
         bean.updateLogic.completeOriginalSupplier = "COMPLETE_ORIGINAL";
         bean.updateLogic.completeSupplier = "COMPLETE";
         bean.updateLogic.onlineOriginalSupplier = "ONLINE_ORIGINAL";
         bean.updateLogic.onlineSupplier = "ONLINE";
         bean.updateLogic.updateOriginalSupplier = "UPDATE_ORIGINAL";
         bean.updateLogic.updateSupplier = "UPDATE";
+        bean.batchApplier = new BatchUpdateApplier();
+        bean.batchApplier.updateLogic = bean.updateLogic;
+        bean.batchApplier.updateMetrics = bean.updateMetrics;
+        // Rolls back the transaction of the test, and starts a new one
+        bean.batchApplier.context = (SessionContext) Proxy.newProxyInstance(
+                SessionContext.class.getClassLoader(), new Class<?>[] {SessionContext.class},
+                (proxy, method, args) -> {
+            if (!method.getName().equals("setRollbackOnly"))
+                throw new UnsupportedOperationException(method.getName());
+            em.getTransaction().rollback();
+            em.getTransaction().begin();
+            return null;
+        });
         return bean;
     }
 
+    private UpdateStaging staging(EntityManager em) {
+        UpdateStaging staging = new UpdateStaging();
+        staging.em = em;
+        staging.leaseSeconds = 900;
+        staging.applier = new StagedUpdateApplier();
+        staging.applier.em = em;
+        staging.applier.updateLogic = bean(em).updateLogic;
+        staging.applier.updateMetrics = staging.applier.updateLogic.updateMetrics;
+        return staging;
+    }
+
     private ModificationTimeStamp ts(Instant i) {
         return new ModificationTimeStamp()
                 .useModificationDateTime(i)
@@ -143,7 +143,7 @@ public class Purge {
     private int purge(Set<String> bibliographicIds) throws HoldingsItemsException, SQLException {
         log.trace("Purging {} records", bibliographicIds.size());
         int purged = 0;
-        try (EnqueueService enqueueService = dao.enqueueService()) {
+        try (EnqueueService enqueueService = dao.bufferedEnqueueService()) {
             for (String bibliographicId : bibliographicIds) {
                 log.trace("Bibliographic Id '{}'", bibliographicId);
                 BibliographicItemEntity bibItem = dao.getRecordCollection(bibliographicId, agencyId, null);
@@ -0,0 +1,14 @@
+package dk.dbc.holdingsitems.facade;
+
+/**
+ * The lock of an agency couldn't be acquired in time, most likely because
+ * other requests for the agency are taking long
+ */
+public class AgencyLockTimeoutException extends RequestTimeoutException {
+
+    private static final long serialVersionUID = 0x6F3A2C1E8B4D7A52L;
+
+    public AgencyLockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -1,18 +1,24 @@
 package dk.dbc.holdingsitems.facade;
 
-import com.hazelcast.collection.ISet;
-import com.hazelcast.collection.ItemEvent;
-import com.hazelcast.collection.ItemListener;
 import com.hazelcast.config.Config;
 import com.hazelcast.config.XmlConfigBuilder;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,16 +29,67 @@ public class Hazelcast {
 
     private static final Logger log = LoggerFactory.getLogger(Hazelcast.class);
 
-    private static final String AGENCYSET = "agencyset";
+    private static final String AGENCYLOCKS = "agencylocks";
+
+    private static final long DEFAULT_LOCK_TIMEOUT_MS = 60_000L;
+    private static final long DEFAULT_LOCK_LEASE_MS = 600_000L;
 
     private final HazelcastInstance instance;
+    private final IMap<Integer, Boolean> agencyLocks;
+    private final ConcurrentHashMap<Integer, LocalQueue> localQueues;
+    private final long lockTimeoutMs;
+    private final long lockLeaseMs;
+    private final int maxWaitingPerAgency;
+    private final int maxWaiting;
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<Integer, AtomicInteger> agencyWaiting;
+    private final AtomicInteger waiting;
+    private final Timer lockWait;
+    private final Timer lockHold;
+    private final Counter lockTimeouts;
+    private final Counter agencyRejected;
+    private final Counter globalRejected;
     private boolean stopping = false;
 
-    Hazelcast() {
-        this(Map.of());
+    Hazelcast(long lockTimeoutMs, long lockLeaseMs, int maxWaitingPerAgency, int maxWaiting, MeterRegistry registry) {
+        this(Map.of(), lockTimeoutMs, lockLeaseMs, maxWaitingPerAgency, maxWaiting, registry);
     }
 
     public Hazelcast(Map<String, String> extra) {
+        this(extra, DEFAULT_LOCK_TIMEOUT_MS, DEFAULT_LOCK_LEASE_MS, new SimpleMeterRegistry());
+    }
+
+    public Hazelcast(Map<String, String> extra, long lockTimeoutMs, long lockLeaseMs, MeterRegistry registry) {
+        this(extra, lockTimeoutMs, lockLeaseMs, 0, 0, registry);
+    }
+
+    /**
+     * Start a hazelcast node
+     *
+     * @param extra               environment overrides
+     * @param lockTimeoutMs       max time to wait for an agency lock
+     * @param lockLeaseMs         time after which a held agency lock is
+     *                            released
+     * @param maxWaitingPerAgency max threads waiting for the lock of one
+     *                            agency (0 is unlimited)
+     * @param maxWaiting          max threads waiting for agency locks in total
+     *                            (0 is unlimited)
+     * @param registry            where to register metrics
+     */
+    public Hazelcast(Map<String, String> extra, long lockTimeoutMs, long lockLeaseMs, int maxWaitingPerAgency, int maxWaiting, MeterRegistry registry) {
+        this.lockTimeoutMs = lockTimeoutMs;
+        this.lockLeaseMs = lockLeaseMs;
+        this.maxWaitingPerAgency = maxWaitingPerAgency;
+        this.maxWaiting = maxWaiting;
+        this.registry = registry;
+        this.localQueues = new ConcurrentHashMap<>();
+        this.agencyWaiting = new ConcurrentHashMap<>();
+        this.waiting = registry.gauge("agency_lock_waiting", new AtomicInteger());
+        this.lockWait = registry.timer("agency_lock_wait");
+        this.lockHold = registry.timer("agency_lock_hold");
+        this.lockTimeouts = registry.counter("agency_lock_timeouts");
+        this.agencyRejected = registry.counter("agency_lock_rejected", "limit", "agency");
+        this.globalRejected = registry.counter("agency_lock_rejected", "limit", "global");
         HashMap<String, String> env = new HashMap<>(System.getenv());
         env.putAll(extra);
         try (InputStream is = substInFile("hz.xml", env)) {
@@ -40,6 +97,7 @@ public class Hazelcast {
             hzConfig.setInstanceName(getOrRaise(env, "HOSTNAME"));
             hzConfig.setClassLoader(Hazelcast.class.getClassLoader());
             this.instance = com.hazelcast.core.Hazelcast.newHazelcastInstance(hzConfig);
+            this.agencyLocks = instance.getMap(AGENCYLOCKS);
             Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownNode));
         } catch (IOException e) {
             throw new IllegalStateException("Failed to start hazelcast data instance", e);
@@ -79,80 +137,145 @@ public class Hazelcast {
         return !stopping && instance.getLifecycleService().isRunning() && instance.getPartitionService().isClusterSafe();
     }
 
-    public ISet<Integer> getAgencySet() {
-        return instance.getSet(AGENCYSET);
-    }
-
+    /**
+     * Run an action while holding the cluster wide lock of an agency
+     * <p>
+     * Threads of this node queue up (FIFO) for the agency locally, so only
+     * the first of them competes for the cluster wide lock. That lock is a
+     * Hazelcast map key lock, waiters are woken when it is released, and it
+     * is released when the lease expires or the holding node leaves the
+     * cluster.
+     * <p>
+     * If too many threads are already waiting for the agency (or for any
+     * agency), the action is rejected at once instead of waiting.
+     *
+     * @param <T>      type of result
+     * @param agencyId the agency to lock
+     * @param sup      the action
+     * @return the result of the action
+     * @throws AgencyLockTimeoutException if the lock couldn't be acquired in
+     *                                    time
+     * @throws TooManyWaitingException    if the waiting limits are exceeded
+     */
     public <T> T withAgencyLock(int agencyId, Supplier<T> sup) {
-        try (AgencyLock lock = registerAgency(agencyId)) {
-            return sup.get();
-        }
+        return withAgencyLock(agencyId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMs), sup);
     }
 
-    private AgencyLock registerAgency(int agencyId) {
-        ISet<Integer> agencySet = getAgencySet();
-        try (AgencyNotifierLock lock = new AgencyNotifierLock(agencySet, agencyId)) {
-            synchronized (lock) {
-                if (agencySet.add(agencyId)) {
-                    return new AgencyLock(agencySet, agencyId);
-                }
-                for (int i = 0 ; i < 60 ; i++) {
-                    lock.wait(1000);
-                    if (agencySet.add(agencyId)) {
-                        return new AgencyLock(agencySet, agencyId);
+    /**
+     * Run an action while holding the cluster wide lock of an agency
+     * <p>
+     * Like {@link #withAgencyLock(int, Supplier)}, but don't wait past a
+     * deadline, if it is earlier than the configured lock timeout.
+     *
+     * @param <T>      type of result
+     * @param agencyId the agency to lock
+     * @param deadline {@link System#nanoTime()} after which to give up
+     * @param sup      the action
+     * @return the result of the action
+     * @throws AgencyLockTimeoutException if the lock couldn't be acquired in
+     *                                    time
+     * @throws TooManyWaitingException    if the waiting limits are exceeded
+     */
+    public <T> T withAgencyLock(int agencyId, long deadline, Supplier<T> sup) {
+        long start = System.nanoTime();
+        deadline = Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(lockTimeoutMs));
+        AtomicInteger waitingForAgency = admit(agencyId);
+        LocalQueue queue = enter(agencyId);
+        boolean isWaiting = true;
+        try {
+            if (!queue.lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                throw timeout(agencyId, start);
+            try {
+                if (!agencyLocks.tryLock(agencyId, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS, lockLeaseMs, TimeUnit.MILLISECONDS))
+                    throw timeout(agencyId, start);
+                waiting.decrementAndGet();
+                waitingForAgency.decrementAndGet();
+                isWaiting = false;
+                long acquired = System.nanoTime();
+                lockWait.record(acquired - start, TimeUnit.NANOSECONDS);
+                try {
+                    return sup.get();
+                } finally {
+                    lockHold.record(System.nanoTime() - acquired, TimeUnit.NANOSECONDS);
+                    try {
+                        agencyLocks.unlock(agencyId);
+                    } catch (IllegalMonitorStateException ex) {
+                        log.warn("Agency lock of {} expired while being held", agencyId);
                     }
                 }
+            } finally {
+                queue.lock.unlock();
             }
         } catch (InterruptedException ex) {
-            throw new IllegalStateException("Could not get agency lock (interrupted)");
+            Thread.currentThread().interrupt();
+            throw new AgencyLockTimeoutException("Could not get agency lock for " + agencyId + " (interrupted)");
+        } finally {
+            if (isWaiting) {
+                waiting.decrementAndGet();
+                waitingForAgency.decrementAndGet();
+            }
+            leave(agencyId);
         }
-        throw new IllegalStateException("Could not get agency lock");
     }
 
-    private static final class AgencyLock implements AutoCloseable {
-
-        private final ISet<Integer> agencySet;
-        private final int agencyId;
-
-        private AgencyLock(ISet<Integer> agencySet, int agencyId) {
-            this.agencySet = agencySet;
-            this.agencyId = agencyId;
-        }
-
-        @Override
-        public void close() {
-            agencySet.remove(agencyId);
+    /**
+     * Count a thread as waiting for an agency lock, if within the limits
+     * <p>
+     * The retry hint is the time the waiting threads of the agency are
+     * expected to hold the lock.
+     *
+     * @param agencyId the agency
+     * @return the waiting count of the agency (also the queue depth gauge)
+     * @throws TooManyWaitingException if a limit is exceeded
+     */
+    private AtomicInteger admit(int agencyId) {
+        AtomicInteger waitingForAgency = agencyWaiting.computeIfAbsent(
+                agencyId, k -> registry.gauge("agency_lock_queue_depth", Tags.of("agency", String.valueOf(k)), new AtomicInteger()));
+        int agencyDepth = waitingForAgency.incrementAndGet();
+        int depth = waiting.incrementAndGet();
+        boolean agencyFull = maxWaitingPerAgency > 0 && agencyDepth > maxWaitingPerAgency;
+        boolean globalFull = maxWaiting > 0 && depth > maxWaiting;
+        if (agencyFull || globalFull) {
+            waitingForAgency.decrementAndGet();
+            waiting.decrementAndGet();
+            long retryAfter = Math.max(1, (long) Math.ceil(agencyDepth * lockHold.mean(TimeUnit.SECONDS)));
+            if (agencyFull) {
+                agencyRejected.increment();
+                throw new TooManyWaitingException("Too many requests (" + agencyDepth + ") waiting for agency " + agencyId, retryAfter);
+            }
+            globalRejected.increment();
+            throw new TooManyWaitingException("Too many requests (" + depth + ") waiting for agency locks", retryAfter);
         }
+        return waitingForAgency;
     }
 
-    private static final class AgencyNotifierLock implements AutoCloseable, ItemListener<Integer> {
-
-        private final ISet<Integer> agencySet;
-        private final int agencyId;
-        private final UUID uuid;
+    private AgencyLockTimeoutException timeout(int agencyId, long start) {
+        lockTimeouts.increment();
+        return new AgencyLockTimeoutException("Could not get agency lock for " + agencyId + " within " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
 
-        private AgencyNotifierLock(ISet<Integer> agencySet, int agencyId) {
-            this.agencySet = agencySet;
-            this.agencyId = agencyId;
-            this.uuid = agencySet.addItemListener(this, true);
-        }
+    private LocalQueue enter(int agencyId) {
+        return localQueues.compute(agencyId, (k, queue) -> {
+                               if (queue == null)
+                                   queue = new LocalQueue();
+                               queue.users++;
+                               return queue;
+                           });
+    }
 
-        @Override
-        public void close() {
-            agencySet.removeItemListener(uuid);
-        }
+    private void leave(int agencyId) {
+        localQueues.computeIfPresent(agencyId, (k, queue) -> --queue.users == 0 ? null : queue);
+    }
 
-        @Override
-        public void itemAdded(ItemEvent<Integer> item) {
-        }
+    /**
+     * Threads of this node, that wants the lock of an agency
+     * <p>
+     * The user count is only changed inside {@link ConcurrentHashMap#compute},
+     * so the queue is removed when the last user leaves.
+     */
+    private static final class LocalQueue {
 
-        @Override
-        public void itemRemoved(ItemEvent<Integer> item) {
-            if (item.getItem() == agencyId) {
-                synchronized (this) {
-                    notify();
-                }
-            }
-        }
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private int users;
     }
 }
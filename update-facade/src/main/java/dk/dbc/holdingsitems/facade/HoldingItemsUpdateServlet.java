@@ -1,17 +1,12 @@
 package dk.dbc.holdingsitems.facade;
 
 import dk.dbc.oss.ns.holdingsitemsupdate.BibliographicItem;
-import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdate;
-import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.Holding;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdate;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResponse;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
 import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
-import dk.dbc.oss.ns.holdingsitemsupdate.OnlineBibliographicItem;
-import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdate;
-import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdateRequest;
 import dk.dbc.soap.facade.service.AbstractSoapServletWithRestClient;
 import dk.dbc.soap.facade.service.SharedInstances;
 import dk.dbc.soap.facade.service.instrumentation.MDCContext;
@@ -19,7 +14,9 @@ import dk.dbc.soap.facade.service.instrumentation.TimingRecorder;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Timer;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.WebApplicationException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.core.MediaType;
@@ -29,6 +26,7 @@ import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.eclipse.jetty.http.HttpHeader;
 import org.slf4j.Logger;
@@ -40,7 +38,10 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
 
     private static final Logger log = LoggerFactory.getLogger(HoldingItemsUpdateServlet.class);
 
+    private static final String READ_TIMEOUT = "jersey.config.client.readTimeout"; // ClientProperties.READ_TIMEOUT
+
     private final Hazelcast hazelcast;
+    private final UpdateBatcher updateBatcher;
     private final PrometheusMeterRegistry registry;
     private final URI baseUri;
     private final Timer completeTimer;
@@ -56,12 +57,14 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
     private final Counter completeFailures;
     private final Counter updateFailures;
     private final Counter onlineFailures;
+    private final Counter backendTimeouts;
+    private final long requestTimeout;
     private final EnumMap<HoldingsItemsUpdateStatusEnum, Counter> responseErrors;
     private final EnumMap<Response.Status, Counter> httpErrors;
 
     public HoldingItemsUpdateServlet(HoldingsItemsFacade config, PrometheusMeterRegistry registry) throws JAXBException {
         super(config, "holdingsItemsUpdate.wsdl");
-        this.hazelcast = new Hazelcast();
+        this.hazelcast = new Hazelcast(config.agencyLockTimeout, config.agencyLockLease, config.maxWaitingPerAgency, config.maxWaiting, registry);
         this.registry = registry;
         this.baseUri = URI.create(config.target.endsWith("/") ? config.target : config.target + "/");
         this.completeTimer = registry.timer("request_timings", "type", "complete");
@@ -86,6 +89,12 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
         this.completeFailures = registry.counter("method_error", "type", "complete");
         this.updateFailures = registry.counter("method_error", "type", "update");
         this.onlineFailures = registry.counter("method_error", "type", "online");
+        this.backendTimeouts = registry.counter("errors", "type", "backend_timeout");
+        this.requestTimeout = config.requestTimeout;
+        this.updateBatcher = new UpdateBatcher(hazelcast,
+                                               (req, remoteIp, deadline) -> post("holdingsItemsUpdate", req, HoldingsItemsUpdateResponse.class, remoteIp, deadline),
+                                               (reqs, remoteIp, deadline) -> List.of(post("batch/holdingsItemsUpdate", reqs, HoldingsItemsUpdateResponse[].class, remoteIp, deadline)),
+                                               config.batchMaxRequests, config.batchMaxRecords, registry);
         waitForHazelcast();
     }
 
@@ -112,33 +121,26 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
             case "completeHoldingsItemsUpdate":
                 timingRecorder.set(completeTimer);
                 try {
-                    CompleteHoldingsItemsUpdateRequest req = unmarshall(element, CompleteHoldingsItemsUpdate.class)
-                            .getCompleteHoldingsItemsUpdateRequest();
-                    if (req.getAuthentication() != null && req.getAuthentication().getGroupIdAut() != null)
-                        mdc.with("agencyId", req.getAuthentication().getGroupIdAut());
+                    JsonRequest req;
+                    try {
+                        req = JsonRequest.of(element);
+                    } catch (IllegalArgumentException ex) {
+                        return processError(operation, ex.getMessage(), timingRecorder, mdc, remoteIp);
+                    }
+                    if (req.getGroupIdAut() != null)
+                        mdc.with("agencyId", req.getGroupIdAut());
 
-                    HoldingsItemsUpdateResponse resp = hazelcast.withAgencyLock(
-                            req.getAgencyId(),
-                            () -> client.target(baseUri.resolve(operation))
-                                    .request(MediaType.APPLICATION_JSON_TYPE)
-                                    .header(HttpHeader.X_FORWARDED_FOR.asString(), remoteIp)
-                                    .post(Entity.json(req), HoldingsItemsUpdateResponse.class));
+                    HoldingsItemsUpdateResponse resp = forward(operation, req.getAgencyId(), req.getJson(), remoteIp);
 
                     try (MDC.MDCCloseable closeable = MDC.putCloseable("type", "statistics")) {
                         this.bibliographicsUpdated.increment();
-                        int itemsProcessed = req.getCompleteBibliographicItem()
-                                .getHolding()
-                                .stream()
-                                .map(Holding::getHoldingsItem)
-                                .mapToInt(List::size)
-                                .sum();
-                        this.itemsUpdated.increment(itemsProcessed);
-                        log.info("bibliographic={}; items={}", req.getCompleteBibliographicItem().getBibliographicRecordId(), itemsProcessed);
+                        this.itemsUpdated.increment(req.getItems());
+                        log.info("bibliographic={}; items={}", String.join(",", req.getBibliographicRecordIds()), req.getItems());
                     }
 
                     if (resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus() != HoldingsItemsUpdateStatusEnum.OK) {
                         log.warn("completeHoldingsItemsUpdate ({}/{}) from: {} returned: {}/{}",
-                                 req.getAgencyId(), req.getCompleteBibliographicItem().getBibliographicRecordId(),
+                                 req.getAgencyId(), String.join(",", req.getBibliographicRecordIds()),
                                  remoteIp,
                                  resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus(),
                                  resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatusMessage());
@@ -148,6 +150,10 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
                         responseErrors.get(resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus()).increment();
                     }
                     return resp;
+                } catch (RequestTimeoutException ex) {
+                    return requestTimeout(ex, completeFailures);
+                } catch (TooManyWaitingException ex) {
+                    return tooManyWaiting(ex, completeFailures);
                 } catch (WebApplicationException ex) {
                     httpErrors.computeIfAbsent(ex.getResponse().getStatusInfo().toEnum(), this::createHttpErrorCounter)
                             .increment();
@@ -160,13 +166,7 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
                             .getHoldingsItemsUpdateRequest();
                     if (req.getAuthentication() != null && req.getAuthentication().getGroupIdAut() != null)
                         mdc.with("agencyId", req.getAuthentication().getGroupIdAut());
-                    HoldingsItemsUpdateResponse resp = hazelcast.withAgencyLock(
-                            req.getAgencyId(),
-                            () ->
-                            client.target(baseUri.resolve(operation))
-                                    .request(MediaType.APPLICATION_JSON_TYPE)
-                                    .header(HttpHeader.X_FORWARDED_FOR.asString(), remoteIp)
-                                    .post(Entity.json(req), HoldingsItemsUpdateResponse.class));
+                    HoldingsItemsUpdateResponse resp = updateBatcher.update(req, remoteIp, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeout));
 
                     try (MDC.MDCCloseable closeable = MDC.putCloseable("type", "statistics")) {
                         String bibliographicIds = req.getBibliographicItem().stream()
@@ -197,6 +197,10 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
                         responseErrors.get(resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus()).increment();
                     }
                     return resp;
+                } catch (RequestTimeoutException ex) {
+                    return requestTimeout(ex, updateFailures);
+                } catch (TooManyWaitingException ex) {
+                    return tooManyWaiting(ex, updateFailures);
                 } catch (WebApplicationException ex) {
                     httpErrors.computeIfAbsent(ex.getResponse().getStatusInfo().toEnum(), this::createHttpErrorCounter)
                             .increment();
@@ -205,19 +209,18 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
             case "onlineHoldingsItemsUpdate":
                 timingRecorder.set(onlineTimer);
                 try {
-                    OnlineHoldingsItemsUpdateRequest req = unmarshall(element, OnlineHoldingsItemsUpdate.class)
-                            .getOnlineHoldingsItemsUpdateRequest();
-                    if (req.getAuthentication() != null && req.getAuthentication().getGroupIdAut() != null)
-                        mdc.with("agencyId", req.getAuthentication().getGroupIdAut());
-                    HoldingsItemsUpdateResponse resp = hazelcast.withAgencyLock(
-                            req.getAgencyId(),
-                            () -> client.target(baseUri.resolve(operation))
-                                    .request(MediaType.APPLICATION_JSON_TYPE)
-                                    .header(HttpHeader.X_FORWARDED_FOR.asString(), remoteIp)
-                                    .post(Entity.json(req), HoldingsItemsUpdateResponse.class));
+                    JsonRequest req;
+                    try {
+                        req = JsonRequest.of(element);
+                    } catch (IllegalArgumentException ex) {
+                        return processError(operation, ex.getMessage(), timingRecorder, mdc, remoteIp);
+                    }
+                    if (req.getGroupIdAut() != null)
+                        mdc.with("agencyId", req.getGroupIdAut());
+                    HoldingsItemsUpdateResponse resp = forward(operation, req.getAgencyId(), req.getJson(), remoteIp);
                     if (resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus() != HoldingsItemsUpdateStatusEnum.OK) {
                         log.warn("onlineHoldingsItemsUpdate ({}/{}) from: {} returned: {}/{}",
-                                 req.getAgencyId(), req.getOnlineBibliographicItem().stream().map(OnlineBibliographicItem::getBibliographicRecordId).collect(Collectors.joining(",")),
+                                 req.getAgencyId(), String.join(",", req.getBibliographicRecordIds()),
                                  remoteIp,
                                  resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus(),
                                  resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatusMessage());
@@ -227,6 +230,10 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
                         responseErrors.get(resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus()).increment();
                     }
                     return resp;
+                } catch (RequestTimeoutException ex) {
+                    return requestTimeout(ex, onlineFailures);
+                } catch (TooManyWaitingException ex) {
+                    return tooManyWaiting(ex, onlineFailures);
                 } catch (WebApplicationException ex) {
                     httpErrors.computeIfAbsent(ex.getResponse().getStatusInfo().toEnum(), this::createHttpErrorCounter)
                             .increment();
@@ -240,6 +247,86 @@ public class HoldingItemsUpdateServlet extends AbstractSoapServletWithRestClient
         }
     }
 
+    /**
+     * Send a request to the content service, while holding the agency lock
+     * <p>
+     * The lock wait and the call share one deadline, so a request doesn't
+     * hold a thread for longer than the configured request timeout.
+     *
+     * @param operation path of the content service endpoint
+     * @param agencyId  agency of the request
+     * @param req       the request (object or JSON text)
+     * @param remoteIp  the client
+     * @return the response from the content service
+     * @throws RequestTimeoutException if the deadline is exceeded
+     */
+    private HoldingsItemsUpdateResponse forward(String operation, int agencyId, Object req, String remoteIp) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeout);
+        return hazelcast.withAgencyLock(agencyId, deadline, () -> post(operation, req, HoldingsItemsUpdateResponse.class, remoteIp, deadline));
+    }
+
+    /**
+     * Send a request to the content service
+     * <p>
+     * The call is made on the calling thread, with the read timeout of the
+     * client set to what is left until the deadline.
+     *
+     * @param <T>       type of the response
+     * @param operation path of the content service endpoint
+     * @param req       the request (object or JSON text)
+     * @param type      class of the response
+     * @param remoteIp  the client
+     * @param deadline  {@link System#nanoTime()} to give up at
+     * @return the response from the content service
+     * @throws RequestTimeoutException if the deadline is exceeded
+     */
+    private <T> T post(String operation, Object req, Class<T> type, String remoteIp, long deadline) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) { // 0 would mean no timeout
+            backendTimeouts.increment();
+            throw new RequestTimeoutException("No time left to call content service for " + operation + " within the deadline");
+        }
+        try {
+            return client.target(baseUri.resolve(operation))
+                    .request(MediaType.APPLICATION_JSON_TYPE)
+                    .header(HttpHeader.X_FORWARDED_FOR.asString(), remoteIp)
+                    .property(READ_TIMEOUT, (int) Math.min(Integer.MAX_VALUE, remaining))
+                    .post(Entity.json(req), type);
+        } catch (ProcessingException ex) {
+            if (ex.getCause() instanceof SocketTimeoutException) {
+                backendTimeouts.increment();
+                throw new RequestTimeoutException("No response from content service for " + operation + " within the deadline");
+            }
+            throw ex;
+        }
+    }
+
+    private HoldingsItemsUpdateResponse requestTimeout(RequestTimeoutException ex, Counter methodFailures) {
+        log.warn("Request timed out: {}", ex.getMessage());
+        return internalError(ex instanceof AgencyLockTimeoutException ?
+                             "Timed out waiting for other updates of the agency, please retry" :
+                             "Timed out waiting for the update service, the update might have been applied, please retry",
+                             methodFailures);
+    }
+
+    private HoldingsItemsUpdateResponse tooManyWaiting(TooManyWaitingException ex, Counter methodFailures) {
+        log.warn("Request rejected: {}", ex.getMessage());
+        return internalError("Too many updates are queued, please retry in " + ex.getRetryAfter() + " seconds",
+                             methodFailures);
+    }
+
+    private HoldingsItemsUpdateResponse internalError(String message, Counter methodFailures) {
+        failures.increment();
+        methodFailures.increment();
+        responseErrors.get(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR).increment();
+        HoldingsItemsUpdateResponse resp = new HoldingsItemsUpdateResponse();
+        HoldingsItemsUpdateResult result = new HoldingsItemsUpdateResult();
+        result.setHoldingsItemsUpdateStatus(HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR);
+        result.setHoldingsItemsUpdateStatusMessage(message);
+        resp.setHoldingsItemsUpdateResult(result);
+        return resp;
+    }
+
     @Override
     protected Object processError(String operation, String error, TimingRecorder timingRecorder, MDCContext mdc, String remoteIp) throws Exception {
         timingRecorder.set(badRequestTimer);
@@ -14,6 +14,48 @@ public class HoldingsItemsFacade extends AbstractSoapServiceWithRestClient {
                         description = "Request url for the REST context root (without operation name)")
     public String target;
 
+    @CommandLine.Option(names = {"--agency-lock-timeout"},
+                        paramLabel = "MS",
+                        defaultValue = "60000",
+                        description = "Max time to wait for other requests of the same agency (default: ${DEFAULT-VALUE})")
+    public long agencyLockTimeout;
+
+    @CommandLine.Option(names = {"--request-timeout"},
+                        paramLabel = "MS",
+                        defaultValue = "90000",
+                        description = "Max time a request may take, waiting for the agency lock and the update service (default: ${DEFAULT-VALUE})")
+    public long requestTimeout;
+
+    @CommandLine.Option(names = {"--agency-lock-lease"},
+                        paramLabel = "MS",
+                        defaultValue = "600000",
+                        description = "Time after which an agency lock is released, if the holder hasn't released it (default: ${DEFAULT-VALUE})")
+    public long agencyLockLease;
+
+    @CommandLine.Option(names = {"--max-waiting-per-agency"},
+                        paramLabel = "N",
+                        defaultValue = "30",
+                        description = "Max number of requests waiting for the same agency, before new ones are rejected (default: ${DEFAULT-VALUE}, 0 is unlimited)")
+    public int maxWaitingPerAgency;
+
+    @CommandLine.Option(names = {"--max-waiting"},
+                        paramLabel = "N",
+                        defaultValue = "150",
+                        description = "Max number of requests waiting for any agency, before new ones are rejected (default: ${DEFAULT-VALUE}, 0 is unlimited)")
+    public int maxWaiting;
+
+    @CommandLine.Option(names = {"--batch-max-requests"},
+                        paramLabel = "N",
+                        defaultValue = "20",
+                        description = "Max number of queued holdingsItemsUpdate requests of an agency to send as one batch (default: ${DEFAULT-VALUE}, 1 disables batching)")
+    public int batchMaxRequests;
+
+    @CommandLine.Option(names = {"--batch-max-records"},
+                        paramLabel = "N",
+                        defaultValue = "500",
+                        description = "Max number of records in a batch of holdingsItemsUpdate requests (default: ${DEFAULT-VALUE})")
+    public int batchMaxRecords;
+
     @Override
     public AbstractSoapServletWithRestClient getServlet(PrometheusMeterRegistry registry) throws Exception {
         return new HoldingItemsUpdateServlet(this, registry);
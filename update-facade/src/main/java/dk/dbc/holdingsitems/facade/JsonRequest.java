@@ -0,0 +1,284 @@
+package dk.dbc.holdingsitems.facade;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.StatusType;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A SOAP request converted directly to the JSON the content service takes
+ * <p>
+ * The request element is walked once, writing the JSON as it goes, instead of
+ * unmarshalling it into the JAXB object graph and having that serialized.
+ * Only the values needed for locking, logging and metrics are kept besides the
+ * JSON. Values are written the way the content service reads them: dates as
+ * ISO instants (dates without zone at the start of the day in the local time
+ * zone, as JAXB does), status as the enum constant name. Unknown elements, and
+ * elements of other namespaces, are skipped.
+ */
+public final class JsonRequest {
+
+    private static final String NS = "http://oss.dbc.dk/ns/holdingsItemsUpdate";
+
+    private enum Kind {
+        OBJECT, LIST, STRING, NUMBER, BOOLEAN, DATE, DATE_TIME, STATUS
+    }
+
+    private static final Map<String, Kind> FIELDS = Map.ofEntries(
+            Map.entry("authentication", Kind.OBJECT),
+            Map.entry("groupIdAut", Kind.STRING),
+            Map.entry("passwordAut", Kind.STRING),
+            Map.entry("userIdAut", Kind.STRING),
+            Map.entry("agencyId", Kind.NUMBER),
+            Map.entry("trackingId", Kind.STRING),
+            Map.entry("bibliographicItem", Kind.LIST),
+            Map.entry("completeBibliographicItem", Kind.OBJECT),
+            Map.entry("onlineBibliographicItem", Kind.LIST),
+            Map.entry("bibliographicRecordId", Kind.STRING),
+            Map.entry("note", Kind.STRING),
+            Map.entry("hasOnlineHolding", Kind.BOOLEAN),
+            Map.entry("modificationTimeStamp", Kind.OBJECT),
+            Map.entry("modificationDateTime", Kind.DATE_TIME),
+            Map.entry("modificationMilliSeconds", Kind.NUMBER),
+            Map.entry("holding", Kind.LIST),
+            Map.entry("expectedDeliveryDate", Kind.DATE),
+            Map.entry("readyForLoan", Kind.NUMBER),
+            Map.entry("issueId", Kind.STRING),
+            Map.entry("issueText", Kind.STRING),
+            Map.entry("holdingsItem", Kind.LIST),
+            Map.entry("itemId", Kind.STRING),
+            Map.entry("branchId", Kind.STRING),
+            Map.entry("branch", Kind.STRING),
+            Map.entry("department", Kind.STRING),
+            Map.entry("location", Kind.STRING),
+            Map.entry("subLocation", Kind.STRING),
+            Map.entry("circulationRule", Kind.STRING),
+            Map.entry("loanRestriction", Kind.STRING),
+            Map.entry("status", Kind.STATUS),
+            Map.entry("accessionDate", Kind.DATE),
+            Map.entry("lastLoanDate", Kind.DATE));
+
+    private final StringBuilder json;
+    private final List<String> bibliographicRecordIds;
+    private int agencyId;
+    private String groupIdAut;
+    private String trackingId;
+    private int items;
+
+    private JsonRequest() {
+        this.json = new StringBuilder(1024);
+        this.bibliographicRecordIds = new ArrayList<>();
+    }
+
+    /**
+     * Convert an operation element (like completeHoldingsItemsUpdate) to JSON
+     *
+     * @param operation the SOAP body element
+     * @return the converted request
+     * @throws IllegalArgumentException if the request has invalid values
+     */
+    public static JsonRequest of(Element operation) {
+        Element request = firstElement(operation);
+        if (request == null || !NS.equals(request.getNamespaceURI()))
+            throw new IllegalArgumentException("No request in " + operation.getLocalName());
+        JsonRequest jsonRequest = new JsonRequest();
+        jsonRequest.object(request);
+        return jsonRequest;
+    }
+
+    public String getJson() {
+        return json.toString();
+    }
+
+    public int getAgencyId() {
+        return agencyId;
+    }
+
+    public String getGroupIdAut() {
+        return groupIdAut;
+    }
+
+    public String getTrackingId() {
+        return trackingId;
+    }
+
+    public List<String> getBibliographicRecordIds() {
+        return Collections.unmodifiableList(bibliographicRecordIds);
+    }
+
+    /**
+     * Number of holdingsItem elements in the request
+     *
+     * @return count
+     */
+    public int getItems() {
+        return items;
+    }
+
+    private void object(Element element) {
+        json.append('{');
+        boolean first = true;
+        HashSet<String> lists = new HashSet<>();
+        for (Element child = firstElement(element) ; child != null ; child = nextElement(child)) {
+            if (!NS.equals(child.getNamespaceURI()))
+                continue;
+            String name = child.getLocalName();
+            Kind kind = FIELDS.get(name);
+            if (kind == null || kind == Kind.LIST && !lists.add(name))
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            string(name);
+            json.append(':');
+            if (kind == Kind.LIST) {
+                list(name, child);
+            } else if (kind == Kind.OBJECT) {
+                object(child);
+            } else {
+                value(name, kind, child.getTextContent());
+            }
+        }
+        json.append('}');
+    }
+
+    private void list(String name, Element firstOfName) {
+        json.append('[');
+        boolean first = true;
+        for (Element child = firstOfName ; child != null ; child = nextElement(child)) {
+            if (!NS.equals(child.getNamespaceURI()) || !name.equals(child.getLocalName()))
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            if (name.equals("holdingsItem"))
+                items++;
+            object(child);
+        }
+        json.append(']');
+    }
+
+    private void value(String name, Kind kind, String text) {
+        try {
+            switch (kind) {
+                case NUMBER:
+                    long number = Long.parseLong(text.trim());
+                    if (name.equals("agencyId"))
+                        agencyId = Math.toIntExact(number);
+                    json.append(number);
+                    break;
+                case BOOLEAN:
+                    json.append(bool(text.trim()));
+                    break;
+                case DATE:
+                    string(instant(text.trim(), true).toString());
+                    break;
+                case DATE_TIME:
+                    string(instant(text.trim(), false).toString());
+                    break;
+                case STATUS:
+                    string(StatusType.fromValue(text.trim()).name());
+                    break;
+                default:
+                    switch (name) {
+                        case "groupIdAut":
+                            groupIdAut = text;
+                            break;
+                        case "trackingId":
+                            trackingId = text;
+                            break;
+                        case "bibliographicRecordId":
+                            bibliographicRecordIds.add(text);
+                            break;
+                        default:
+                            break;
+                    }
+                    string(text);
+                    break;
+            }
+        } catch (IllegalArgumentException | ArithmeticException | DateTimeException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + text, ex);
+        }
+    }
+
+    private void string(String text) {
+        json.append('"');
+        for (int i = 0 ; i < text.length() ; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                    break;
+            }
+        }
+        json.append('"');
+    }
+
+    private static boolean bool(String text) {
+        switch (text) {
+            case "true":
+            case "1":
+                return true;
+            case "false":
+            case "0":
+                return false;
+            default:
+                throw new IllegalArgumentException("Not a boolean");
+        }
+    }
+
+    private static Instant instant(String text, boolean dateOnly) {
+        TemporalAccessor parsed = ( dateOnly ? DateTimeFormatter.ISO_DATE : DateTimeFormatter.ISO_DATE_TIME ).parse(text);
+        ZoneId zone = parsed.isSupported(ChronoField.OFFSET_SECONDS) ? ZoneOffset.from(parsed) : ZoneId.systemDefault();
+        LocalDateTime local = dateOnly ? LocalDate.from(parsed).atStartOfDay() : LocalDateTime.from(parsed);
+        return local.atZone(zone).toInstant();
+    }
+
+    private static Element firstElement(Node parent) {
+        Node node = parent.getFirstChild();
+        while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+            node = node.getNextSibling();
+        }
+        return (Element) node;
+    }
+
+    private static Element nextElement(Node sibling) {
+        Node node = sibling.getNextSibling();
+        while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+            node = node.getNextSibling();
+        }
+        return (Element) node;
+    }
+}
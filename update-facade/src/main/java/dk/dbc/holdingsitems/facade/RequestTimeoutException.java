@@ -0,0 +1,13 @@
+package dk.dbc.holdingsitems.facade;
+
+/**
+ * A request couldn't be completed before its deadline
+ */
+public class RequestTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 0x1C95E04B7D3F6A28L;
+
+    public RequestTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,26 @@
+package dk.dbc.holdingsitems.facade;
+
+/**
+ * A request wasn't allowed to wait for its agency lock, because too many
+ * requests are already waiting
+ */
+public class TooManyWaitingException extends RuntimeException {
+
+    private static final long serialVersionUID = 0x4B7E19D2A6C3F085L;
+
+    private final long retryAfter;
+
+    public TooManyWaitingException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Suggested time before retrying
+     *
+     * @return number of seconds
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,236 @@
+package dk.dbc.holdingsitems.facade;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.Authentication;
+import dk.dbc.oss.ns.holdingsitemsupdate.BibliographicItem;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResponse;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends holdingsItemsUpdate requests, that are waiting for the same agency
+ * lock, to the content service in one call
+ * <p>
+ * Every request is queued for its agency before waiting for the lock. The
+ * thread that gets the lock takes as many queued requests as allowed (same
+ * credentials, no record in more than one request, size limits) and sends
+ * them as a list to the batch endpoint, which applies them in one transaction.
+ * Every request keeps its own trackingId, and every caller gets the result of
+ * its own request. A request that fails is left out by the content service, so
+ * it doesn't leave partial changes, or keep the others from being applied.
+ * Threads whose request has been sent by another thread, just wait for the
+ * result.
+ */
+public class UpdateBatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(UpdateBatcher.class);
+
+    @FunctionalInterface
+    public interface Forwarder {
+
+        /**
+         * Send a request to the content service
+         *
+         * @param req      the request
+         * @param remoteIp the client
+         * @param deadline {@link System#nanoTime()} to give up at
+         * @return the response
+         */
+        HoldingsItemsUpdateResponse forward(HoldingsItemsUpdateRequest req, String remoteIp, long deadline);
+    }
+
+    @FunctionalInterface
+    public interface BatchForwarder {
+
+        /**
+         * Send requests to the content service, to be applied in one
+         * transaction
+         *
+         * @param reqs     the requests
+         * @param remoteIp the client
+         * @param deadline {@link System#nanoTime()} to give up at
+         * @return a response for each request, in the same order
+         */
+        List<HoldingsItemsUpdateResponse> forward(List<HoldingsItemsUpdateRequest> reqs, String remoteIp, long deadline);
+    }
+
+    private final Hazelcast hazelcast;
+    private final Forwarder forwarder;
+    private final BatchForwarder batchForwarder;
+    private final int maxRequests;
+    private final int maxRecords;
+    private final ConcurrentHashMap<Integer, ArrayDeque<Pending>> queues;
+    private final Counter batches;
+    private final Counter batchedRequests;
+    private final Counter failedRequests;
+
+    public UpdateBatcher(Hazelcast hazelcast, Forwarder forwarder, BatchForwarder batchForwarder, int maxRequests, int maxRecords, MeterRegistry registry) {
+        this.hazelcast = hazelcast;
+        this.forwarder = forwarder;
+        this.batchForwarder = batchForwarder;
+        this.maxRequests = maxRequests;
+        this.maxRecords = maxRecords;
+        this.queues = new ConcurrentHashMap<>();
+        this.batches = registry.counter("update_batches");
+        this.batchedRequests = registry.counter("update_batched_requests");
+        this.failedRequests = registry.counter("update_batch_failed_requests");
+    }
+
+    /**
+     * Send a request, possibly together with other requests of the agency
+     *
+     * @param req      the request
+     * @param remoteIp the client
+     * @param deadline {@link System#nanoTime()} to give up at
+     * @return the response for this request
+     * @throws RequestTimeoutException if the deadline is exceeded
+     * @throws TooManyWaitingException if too many requests are waiting for
+     *                                 the agency
+     */
+    public HoldingsItemsUpdateResponse update(HoldingsItemsUpdateRequest req, String remoteIp, long deadline) {
+        if (maxRequests <= 1)
+            return hazelcast.withAgencyLock(req.getAgencyId(), deadline, () -> forwarder.forward(req, remoteIp, deadline));
+        int agencyId = req.getAgencyId();
+        Pending own = new Pending(req, remoteIp);
+        ArrayDeque<Pending> queue = queues.computeIfAbsent(agencyId, k -> new ArrayDeque<>());
+        synchronized (queue) {
+            queue.add(own);
+        }
+        try {
+            hazelcast.withAgencyLock(agencyId, deadline, () -> {
+                while (!own.result.isDone()) {
+                    List<Pending> batch = take(queue);
+                    if (batch.isEmpty())
+                        break; // Claimed by another thread (lease expired), await its result
+                    send(batch, deadline);
+                }
+                return null;
+            });
+        } catch (RequestTimeoutException | TooManyWaitingException ex) {
+            synchronized (queue) {
+                if (queue.remove(own))
+                    throw ex; // Not claimed by anybody
+            }
+        }
+        return await(own, deadline);
+    }
+
+    private HoldingsItemsUpdateResponse await(Pending own, long deadline) {
+        try {
+            return own.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            throw new RequestTimeoutException("No response for batched request within the deadline");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RequestTimeoutException("Interrupted waiting for batched request");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Claim the requests, that can be sent together
+     *
+     * @param queue the queue of the agency
+     * @return list of requests (in arrival order)
+     */
+    private List<Pending> take(ArrayDeque<Pending> queue) {
+        ArrayList<Pending> batch = new ArrayList<>();
+        HashSet<String> records = new HashSet<>();
+        synchronized (queue) {
+            Iterator<Pending> iterator = queue.iterator();
+            while (iterator.hasNext() && batch.size() < maxRequests) {
+                Pending pending = iterator.next();
+                List<String> ids = pending.req.getBibliographicItem().stream()
+                        .map(BibliographicItem::getBibliographicRecordId)
+                        .collect(Collectors.toList());
+                if (!batch.isEmpty()) {
+                    if (!sameCredentials(batch.get(0).req.getAuthentication(), pending.req.getAuthentication()) ||
+                        records.size() + ids.size() > maxRecords ||
+                        ids.stream().anyMatch(records::contains))
+                        break; // Keep the order of the requests
+                }
+                records.addAll(ids);
+                batch.add(pending);
+                iterator.remove();
+            }
+        }
+        return batch;
+    }
+
+    private void send(List<Pending> batch, long deadline) {
+        Pending first = batch.get(0);
+        if (batch.size() == 1) {
+            sendOne(first, deadline);
+            return;
+        }
+        log.info("Sending {} requests for {} as one", batch.size(), first.req.getAgencyId());
+        batches.increment();
+        batchedRequests.increment(batch.size());
+        List<HoldingsItemsUpdateResponse> resps;
+        try {
+            resps = batchForwarder.forward(batch.stream().map(pending -> pending.req).collect(Collectors.toList()), first.remoteIp, deadline);
+            if (resps.size() != batch.size())
+                throw new IllegalStateException("Got " + resps.size() + " responses for a batch of " + batch.size() + " requests");
+        } catch (RuntimeException ex) {
+            batch.forEach(pending -> pending.result.completeExceptionally(ex));
+            return;
+        }
+        for (int i = 0 ; i < batch.size() ; i++) {
+            HoldingsItemsUpdateResponse resp = resps.get(i);
+            if (resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus() != HoldingsItemsUpdateStatusEnum.OK) {
+                log.info("Request {} of batch for {} ({}) failed: {}", i, first.req.getAgencyId(), batch.get(i).req.getTrackingId(),
+                         resp.getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatusMessage());
+                failedRequests.increment();
+            }
+            batch.get(i).result.complete(resp);
+        }
+    }
+
+    private void sendOne(Pending pending, long deadline) {
+        try {
+            pending.result.complete(forwarder.forward(pending.req, pending.remoteIp, deadline));
+        } catch (RuntimeException ex) {
+            pending.result.completeExceptionally(ex);
+        }
+    }
+
+    private static boolean sameCredentials(Authentication a, Authentication b) {
+        if (a == null || b == null)
+            return a == b;
+        return Objects.equals(a.getUserIdAut(), b.getUserIdAut()) &&
+               Objects.equals(a.getGroupIdAut(), b.getGroupIdAut()) &&
+               Objects.equals(a.getPasswordAut(), b.getPasswordAut());
+    }
+
+    private static final class Pending {
+
+        private final HoldingsItemsUpdateRequest req;
+        private final String remoteIp;
+        private final CompletableFuture<HoldingsItemsUpdateResponse> result;
+
+        private Pending(HoldingsItemsUpdateRequest req, String remoteIp) {
+            this.req = req;
+            this.remoteIp = remoteIp;
+            this.result = new CompletableFuture<>();
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package dk.dbc.holdingsitems.facade;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
@@ -59,4 +62,92 @@ public class HazelcastTest {
         assertThat(requiredAgain.get(), is(true));
         hazelcast.shutdownNode();
     }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    public void testAgencyLockTimeout() throws Exception {
+        System.out.println("testAgencyLockTimeout");
+
+        Hazelcast hazelcast = new Hazelcast(Map.of("HAZELCAST_CLUSTER", "localhost",
+                                                   "HOSTNAME", "localhost"),
+                                            500, 10_000, new SimpleMeterRegistry());
+        for (int i = 0 ; i < 600 ; i++) {
+            Thread.sleep(100);
+            if (hazelcast.isReady())
+                break;
+        }
+        assertThat(hazelcast.isReady(), is(true));
+
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                hazelcast.withAgencyLock(123456, () -> null);
+            } catch (RuntimeException ex) {
+                failure.set(ex);
+            }
+        });
+        hazelcast.withAgencyLock(123456, () -> {
+                             thread.start();
+                             try {
+                                 thread.join();
+                             } catch (InterruptedException ex) {
+                                 System.err.println(ex);
+                             }
+                             return null;
+                         });
+        assertThat(failure.get(), instanceOf(AgencyLockTimeoutException.class));
+        // Released again
+        assertThat(hazelcast.withAgencyLock(123456, () -> true), is(true));
+        hazelcast.shutdownNode();
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    public void testTooManyWaiting() throws Exception {
+        System.out.println("testTooManyWaiting");
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Hazelcast hazelcast = new Hazelcast(Map.of("HAZELCAST_CLUSTER", "localhost",
+                                                   "HOSTNAME", "localhost"),
+                                            10_000, 10_000, 1, 0, registry);
+        for (int i = 0 ; i < 600 ; i++) {
+            Thread.sleep(100);
+            if (hazelcast.isReady())
+                break;
+        }
+        assertThat(hazelcast.isReady(), is(true));
+
+        AtomicBoolean waiterRan = new AtomicBoolean(false);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> hazelcast.withAgencyLock(123456, () -> {
+                                                              waiterRan.set(true);
+                                                              return null;
+                                                          }));
+        Thread rejected = new Thread(() -> {
+            try {
+                hazelcast.withAgencyLock(123456, () -> null);
+            } catch (RuntimeException ex) {
+                failure.set(ex);
+            }
+        });
+        hazelcast.withAgencyLock(123456, () -> {
+                             try {
+                                 waiter.start();
+                                 while (registry.get("agency_lock_queue_depth").tag("agency", "123456").gauge().value() < 1) {
+                                     Thread.sleep(10);
+                                 }
+                                 rejected.start();
+                                 rejected.join();
+                             } catch (InterruptedException ex) {
+                                 System.err.println(ex);
+                             }
+                             return null;
+                         });
+        waiter.join();
+        assertThat(failure.get(), instanceOf(TooManyWaitingException.class));
+        assertThat(waiterRan.get(), is(true));
+        assertThat(registry.get("agency_lock_rejected").tag("limit", "agency").counter().count(), is(1.0));
+        assertThat(registry.get("agency_lock_queue_depth").tag("agency", "123456").gauge().value(), is(0.0));
+        hazelcast.shutdownNode();
+    }
 }
@@ -0,0 +1,197 @@
+package dk.dbc.holdingsitems.facade;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import dk.dbc.oss.ns.holdingsitemsupdate.CompleteHoldingsItemsUpdate;
+import dk.dbc.oss.ns.holdingsitemsupdate.OnlineHoldingsItemsUpdate;
+import jakarta.xml.bind.JAXBContext;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.w3c.dom.Element;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class JsonRequestTest {
+
+    // How the JAXB objects were serialized, when they were sent to the content service
+    private static final ObjectMapper O = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.SECONDS)
+    public void testCompleteRequest() throws Exception {
+        System.out.println("testCompleteRequest");
+        JsonRequest req = JsonRequest.of(element(
+                "<hi:completeHoldingsItemsUpdate xmlns:hi='http://oss.dbc.dk/ns/holdingsItemsUpdate'>" +
+                "<hi:completeHoldingsItemsUpdateRequest>" +
+                "<hi:authentication><hi:groupIdAut>710100</hi:groupIdAut><hi:passwordAut>p\"w</hi:passwordAut><hi:userIdAut>user</hi:userIdAut></hi:authentication>" +
+                "<hi:agencyId> 710100 </hi:agencyId>" +
+                "<hi:completeBibliographicItem>" +
+                "<hi:bibliographicRecordId>12345678</hi:bibliographicRecordId>" +
+                "<hi:modificationTimeStamp><hi:modificationDateTime>2024-01-02T03:04:05Z</hi:modificationDateTime><hi:modificationMilliSeconds>6</hi:modificationMilliSeconds></hi:modificationTimeStamp>" +
+                "<hi:holding><hi:readyForLoan>1</hi:readyForLoan><hi:issueId>i1</hi:issueId><hi:issueText>vol. 1</hi:issueText>" +
+                "<hi:holdingsItem><hi:itemId>a</hi:itemId><hi:status>OnShelf</hi:status><hi:accessionDate>2024-01-02</hi:accessionDate></hi:holdingsItem>" +
+                "<hi:holdingsItem><hi:itemId>b</hi:itemId><hi:status>NotForLoan</hi:status><hi:unknown>x</hi:unknown></hi:holdingsItem>" +
+                "</hi:holding>" +
+                "</hi:completeBibliographicItem>" +
+                "<hi:trackingId>track</hi:trackingId>" +
+                "</hi:completeHoldingsItemsUpdateRequest>" +
+                "</hi:completeHoldingsItemsUpdate>"));
+
+        String accessionDate = LocalDate.of(2024, 1, 2).atStartOfDay(ZoneId.systemDefault()).toInstant().toString();
+        assertThat(req.getJson(), is(
+                   "{\"authentication\":{\"groupIdAut\":\"710100\",\"passwordAut\":\"p\\\"w\",\"userIdAut\":\"user\"}," +
+                   "\"agencyId\":710100," +
+                   "\"completeBibliographicItem\":{\"bibliographicRecordId\":\"12345678\"," +
+                   "\"modificationTimeStamp\":{\"modificationDateTime\":\"2024-01-02T03:04:05Z\",\"modificationMilliSeconds\":6}," +
+                   "\"holding\":[{\"readyForLoan\":1,\"issueId\":\"i1\",\"issueText\":\"vol. 1\"," +
+                   "\"holdingsItem\":[{\"itemId\":\"a\",\"status\":\"ON_SHELF\",\"accessionDate\":\"" + accessionDate + "\"}," +
+                   "{\"itemId\":\"b\",\"status\":\"NOT_FOR_LOAN\"}]}]}," +
+                   "\"trackingId\":\"track\"}"));
+        assertThat(req.getAgencyId(), is(710100));
+        assertThat(req.getGroupIdAut(), is("710100"));
+        assertThat(req.getTrackingId(), is("track"));
+        assertThat(req.getBibliographicRecordIds(), is(List.of("12345678")));
+        assertThat(req.getItems(), is(2));
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.SECONDS)
+    public void testOnlineRequest() throws Exception {
+        System.out.println("testOnlineRequest");
+        JsonRequest req = JsonRequest.of(element(
+                "<onlineHoldingsItemsUpdate xmlns='http://oss.dbc.dk/ns/holdingsItemsUpdate'>" +
+                "<onlineHoldingsItemsUpdateRequest>" +
+                "<agencyId>710100</agencyId>" +
+                "<onlineBibliographicItem><bibliographicRecordId>a</bibliographicRecordId><hasOnlineHolding>true</hasOnlineHolding></onlineBibliographicItem>" +
+                "<onlineBibliographicItem><bibliographicRecordId>b</bibliographicRecordId><hasOnlineHolding>0</hasOnlineHolding></onlineBibliographicItem>" +
+                "</onlineHoldingsItemsUpdateRequest>" +
+                "</onlineHoldingsItemsUpdate>"));
+
+        assertThat(req.getJson(), is(
+                   "{\"agencyId\":710100," +
+                   "\"onlineBibliographicItem\":[{\"bibliographicRecordId\":\"a\",\"hasOnlineHolding\":true}," +
+                   "{\"bibliographicRecordId\":\"b\",\"hasOnlineHolding\":false}]}"));
+        assertThat(req.getBibliographicRecordIds(), is(List.of("a", "b")));
+        assertThat(req.getItems(), is(0));
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.SECONDS)
+    public void testInvalidValue() throws Exception {
+        System.out.println("testInvalidValue");
+        Element element = element(
+                "<onlineHoldingsItemsUpdate xmlns='http://oss.dbc.dk/ns/holdingsItemsUpdate'>" +
+                "<onlineHoldingsItemsUpdateRequest><agencyId>abc</agencyId></onlineHoldingsItemsUpdateRequest>" +
+                "</onlineHoldingsItemsUpdate>");
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> JsonRequest.of(element));
+        assertThat(ex.getMessage(), is("Invalid value for agencyId: abc"));
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testSameAsJaxb() throws Exception {
+        System.out.println("testSameAsJaxb");
+        Element complete = element(
+                "<hi:completeHoldingsItemsUpdate xmlns:hi='http://oss.dbc.dk/ns/holdingsItemsUpdate' xmlns:x='urn:other'>" +
+                "<hi:completeHoldingsItemsUpdateRequest>" +
+                "<hi:authentication><hi:groupIdAut>710100</hi:groupIdAut><hi:passwordAut>p\"w&amp;</hi:passwordAut><hi:userIdAut>user</hi:userIdAut></hi:authentication>" +
+                "<hi:agencyId>710100</hi:agencyId>" +
+                "<hi:completeBibliographicItem>" +
+                "<hi:bibliographicRecordId>12345678</hi:bibliographicRecordId>" +
+                "<hi:note>æøå\ttab</hi:note>" +
+                "<hi:modificationTimeStamp><hi:modificationDateTime>2024-01-02T03:04:05+02:00</hi:modificationDateTime><hi:modificationMilliSeconds>6</hi:modificationMilliSeconds></hi:modificationTimeStamp>" +
+                "<hi:holding><hi:readyForLoan>1</hi:readyForLoan><hi:issueId>i1</hi:issueId><hi:issueText>vol. 1</hi:issueText>" +
+                "<hi:expectedDeliveryDate>2024-02-03</hi:expectedDeliveryDate>" +
+                "<hi:holdingsItem><hi:itemId>a</hi:itemId><hi:status>OnShelf</hi:status><hi:accessionDate>2024-01-02</hi:accessionDate>" +
+                "<hi:branch>br</hi:branch><hi:loanRestriction>a</hi:loanRestriction><x:itemId>ignored</x:itemId></hi:holdingsItem>" +
+                "<hi:holdingsItem><hi:itemId>b</hi:itemId><hi:status>NotForLoan</hi:status><hi:unknown>x</hi:unknown></hi:holdingsItem>" +
+                "</hi:holding>" +
+                "<hi:holding><hi:readyForLoan>0</hi:readyForLoan><hi:issueId>i2</hi:issueId><hi:issueText></hi:issueText></hi:holding>" +
+                "</hi:completeBibliographicItem>" +
+                "<hi:trackingId>track</hi:trackingId>" +
+                "</hi:completeHoldingsItemsUpdateRequest>" +
+                "</hi:completeHoldingsItemsUpdate>");
+        CompleteHoldingsItemsUpdate completeJaxb = JAXBContext.newInstance(CompleteHoldingsItemsUpdate.class)
+                .createUnmarshaller()
+                .unmarshal(complete, CompleteHoldingsItemsUpdate.class)
+                .getValue();
+        assertThat(O.readTree(JsonRequest.of(complete).getJson()),
+                   is(withoutEmpty(O.readTree(O.writeValueAsString(completeJaxb.getCompleteHoldingsItemsUpdateRequest())))));
+
+        Element online = element(
+                "<onlineHoldingsItemsUpdate xmlns='http://oss.dbc.dk/ns/holdingsItemsUpdate'>" +
+                "<onlineHoldingsItemsUpdateRequest>" +
+                "<agencyId>710100</agencyId>" +
+                "<onlineBibliographicItem><bibliographicRecordId>a</bibliographicRecordId><hasOnlineHolding>true</hasOnlineHolding>" +
+                "<modificationTimeStamp><modificationDateTime>2024-01-02T03:04:05</modificationDateTime><modificationMilliSeconds>0</modificationMilliSeconds></modificationTimeStamp>" +
+                "</onlineBibliographicItem>" +
+                "<onlineBibliographicItem><bibliographicRecordId>b</bibliographicRecordId><hasOnlineHolding>0</hasOnlineHolding></onlineBibliographicItem>" +
+                "</onlineHoldingsItemsUpdateRequest>" +
+                "</onlineHoldingsItemsUpdate>");
+        OnlineHoldingsItemsUpdate onlineJaxb = JAXBContext.newInstance(OnlineHoldingsItemsUpdate.class)
+                .createUnmarshaller()
+                .unmarshal(online, OnlineHoldingsItemsUpdate.class)
+                .getValue();
+        assertThat(O.readTree(JsonRequest.of(online).getJson()),
+                   is(withoutEmpty(O.readTree(O.writeValueAsString(onlineJaxb.getOnlineHoldingsItemsUpdateRequest())))));
+    }
+
+    @Test
+    @Timeout(value = 2, unit = TimeUnit.SECONDS)
+    public void testOtherNamespace() throws Exception {
+        System.out.println("testOtherNamespace");
+        Element element = element(
+                "<onlineHoldingsItemsUpdate xmlns='http://oss.dbc.dk/ns/holdingsItemsUpdate'>" +
+                "<onlineHoldingsItemsUpdateRequest xmlns='urn:other'><agencyId>710100</agencyId></onlineHoldingsItemsUpdateRequest>" +
+                "</onlineHoldingsItemsUpdate>");
+        assertThrows(IllegalArgumentException.class, () -> JsonRequest.of(element));
+    }
+
+    /**
+     * Remove null values and empty lists, the content service reads them as
+     * absent
+     *
+     * @param node json
+     * @return copy of json
+     */
+    private static JsonNode withoutEmpty(JsonNode node) {
+        if (node.isObject()) {
+            ObjectNode copy = O.createObjectNode();
+            node.fields().forEachRemaining(field -> {
+                JsonNode value = withoutEmpty(field.getValue());
+                if (!value.isNull() && !( value.isArray() && value.size() == 0 ))
+                    copy.set(field.getKey(), value);
+            });
+            return copy;
+        }
+        if (node.isArray()) {
+            ArrayNode copy = O.createArrayNode();
+            node.forEach(element -> copy.add(withoutEmpty(element)));
+            return copy;
+        }
+        return node;
+    }
+
+    private static Element element(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder()
+                .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                .getDocumentElement();
+    }
+}
@@ -0,0 +1,134 @@
+package dk.dbc.holdingsitems.facade;
+
+import dk.dbc.oss.ns.holdingsitemsupdate.BibliographicItem;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateRequest;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResponse;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateResult;
+import dk.dbc.oss.ns.holdingsitemsupdate.HoldingsItemsUpdateStatusEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class UpdateBatcherTest {
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    public void testQueuedRequestsAreBatched() throws Exception {
+        System.out.println("testQueuedRequestsAreBatched");
+        List<String> sent = new ArrayList<>();
+        Map<String, HoldingsItemsUpdateStatusEnum> results = sendQueued(Map.of("a", "track-a", "b", "track-b", "c", "track-c"), Set.of(), sent);
+        assertThat(sent, is(List.of("a:track-a,b:track-b,c:track-c")));
+        assertThat(results, is(Map.of("a", HoldingsItemsUpdateStatusEnum.OK,
+                                      "b", HoldingsItemsUpdateStatusEnum.OK,
+                                      "c", HoldingsItemsUpdateStatusEnum.OK)));
+    }
+
+    @Test
+    @Timeout(value = 20, unit = TimeUnit.SECONDS)
+    public void testFailureInBatchIsOnlyReportedToItsRequest() throws Exception {
+        System.out.println("testFailureInBatchIsOnlyReportedToItsRequest");
+        List<String> sent = new ArrayList<>();
+        Map<String, HoldingsItemsUpdateStatusEnum> results = sendQueued(Map.of("a", "track-a", "b", "track-b", "c", "track-c"), Set.of("b"), sent);
+        assertThat(sent, is(List.of("a:track-a,b:track-b,c:track-c")));
+        assertThat(results, is(Map.of("a", HoldingsItemsUpdateStatusEnum.OK,
+                                      "b", HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR,
+                                      "c", HoldingsItemsUpdateStatusEnum.OK)));
+    }
+
+    /**
+     * Send requests, that are queued up behind the agency lock
+     *
+     * @param trackingIds trackingId of the request for each record
+     * @param failing     records whose request the content service fails
+     * @param sent        the record:trackingId of the requests of every call
+     *                    to the content service
+     * @return status of the response for each record
+     * @throws Exception if the test fails
+     */
+    private static Map<String, HoldingsItemsUpdateStatusEnum> sendQueued(Map<String, String> trackingIds, Set<String> failing, List<String> sent) throws Exception {
+        Hazelcast hazelcast = new Hazelcast(Map.of("HAZELCAST_CLUSTER", "localhost",
+                                                   "HOSTNAME", "localhost"));
+        for (int i = 0 ; i < 600 ; i++) {
+            Thread.sleep(100);
+            if (hazelcast.isReady())
+                break;
+        }
+        assertThat(hazelcast.isReady(), is(true));
+
+        UpdateBatcher batcher = new UpdateBatcher(hazelcast, (req, remoteIp, deadline) -> {
+                                                      synchronized (sent) {
+                                                          sent.add(describe(req));
+                                                      }
+                                                      return response(req, failing);
+                                                  }, (reqs, remoteIp, deadline) -> {
+                                                      synchronized (sent) {
+                                                          sent.add(reqs.stream()
+                                                                  .map(UpdateBatcherTest::describe)
+                                                                  .sorted()
+                                                                  .collect(Collectors.joining(",")));
+                                                      }
+                                                      return reqs.stream()
+                                                              .map(req -> response(req, failing))
+                                                              .collect(Collectors.toList());
+                                                  }, 10, 100, new SimpleMeterRegistry());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        Map<String, HoldingsItemsUpdateStatusEnum> results = new ConcurrentHashMap<>();
+        List<Thread> threads = new ArrayList<>();
+        trackingIds.forEach((id, trackingId) -> {
+            threads.add(new Thread(() -> results.put(id, batcher.update(request(id, trackingId), "127.0.0.1", deadline)
+                                                   .getHoldingsItemsUpdateResult().getHoldingsItemsUpdateStatus())));
+        });
+        hazelcast.withAgencyLock(123456, () -> {
+                             threads.forEach(Thread::start);
+                             try {
+                                 Thread.sleep(1000); // Let them queue up
+                             } catch (InterruptedException ex) {
+                                 System.err.println(ex);
+                             }
+                             return null;
+                         });
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        hazelcast.shutdownNode();
+        return results;
+    }
+
+    private static String describe(HoldingsItemsUpdateRequest req) {
+        return req.getBibliographicItem().stream()
+                .map(BibliographicItem::getBibliographicRecordId)
+                .collect(Collectors.joining("+")) + ":" + req.getTrackingId();
+    }
+
+    private static HoldingsItemsUpdateRequest request(String bibliographicRecordId, String trackingId) {
+        HoldingsItemsUpdateRequest req = new HoldingsItemsUpdateRequest();
+        req.setAgencyId(123456);
+        req.setTrackingId(trackingId);
+        BibliographicItem item = new BibliographicItem();
+        item.setBibliographicRecordId(bibliographicRecordId);
+        req.getBibliographicItem().add(item);
+        return req;
+    }
+
+    private static HoldingsItemsUpdateResponse response(HoldingsItemsUpdateRequest req, Set<String> failing) {
+        boolean failed = req.getBibliographicItem().stream()
+                .map(BibliographicItem::getBibliographicRecordId)
+                .anyMatch(failing::contains);
+        HoldingsItemsUpdateResponse resp = new HoldingsItemsUpdateResponse();
+        HoldingsItemsUpdateResult result = new HoldingsItemsUpdateResult();
+        result.setHoldingsItemsUpdateStatus(failed ? HoldingsItemsUpdateStatusEnum.FAILED_UPDATE_INTERNAL_ERROR : HoldingsItemsUpdateStatusEnum.OK);
+        resp.setHoldingsItemsUpdateResult(result);
+        return resp;
+    }
+}